@@ -0,0 +1,184 @@
+#!/usr/bin/env python3
+# generated-code benchmarks: compile each program in src/bench/programs at
+# each -O level, assemble with nasm, link with gcc, run on its .in and check
+# the output with its .ans, then record runtime and executed instructions.
+# NAME.test.in and NAME.test.ans are a small run for CodegenTest
+#
+# usage (from the repo root, after build.bash):
+#   python3 src/bench/codegen_bench.py --out bench.json
+#   python3 src/bench/codegen_bench.py --baseline bench.json
+# exit 1 if a program fails, or is slower than baseline beyond threshold
+
+import argparse
+import json
+import os
+import re
+import shutil
+import subprocess
+import sys
+import time
+
+ROOT = os.path.normpath(os.path.join(os.path.dirname(os.path.abspath(__file__)), "..", ".."))
+
+
+def run(cmd, **kw):
+    return subprocess.run(cmd, stdout=subprocess.PIPE, stderr=subprocess.PIPE, **kw)
+
+
+def pick_counter(name):
+    if name == "auto":
+        if shutil.which("perf") and run(["perf", "stat", "-x,", "-e", "instructions:u", "true"]).returncode == 0:
+            return "perf"
+        if shutil.which("valgrind"):
+            return "callgrind"
+        return "none"
+    return name
+
+
+def count_instructions(counter, exe, input_file):
+    """executed instructions in user mode, None if not counted"""
+    if counter == "perf":
+        with open(input_file) as fin:
+            p = run(["perf", "stat", "-x,", "-e", "instructions:u", exe], stdin=fin)
+        for line in p.stderr.decode().splitlines():
+            fields = line.split(",")
+            if len(fields) > 2 and fields[2].startswith("instructions") and fields[0].isdigit():
+                return int(fields[0])
+        return None
+    if counter == "callgrind":
+        with open(input_file) as fin:
+            p = run(["valgrind", "--tool=callgrind", "--callgrind-out-file=/dev/null", exe], stdin=fin)
+        m = re.search(r"Collected\s*:\s*(\d+)", p.stderr.decode())
+        return int(m.group(1)) if m else None
+    return None
+
+
+def build(args, src, level, work):
+    name = os.path.splitext(os.path.basename(src))[0]
+    asm = os.path.join(work, "%s-O%d.asm" % (name, level))
+    obj = os.path.join(work, "%s-O%d.o" % (name, level))
+    exe = os.path.join(work, "%s-O%d" % (name, level))
+
+    # BuiltIn.asm is appended by the compiler itself (path relative to ROOT)
+    p = run(["java", "-cp", args.classpath, "mxcompiler.main.Compiler", "--test",
+             "-o", asm, "-O%d" % level, src], cwd=ROOT)
+    if p.returncode != 0:
+        raise RuntimeError("compile failed:\n" + p.stdout.decode() + p.stderr.decode())
+    p = run([args.nasm, "-felf64", "-o", obj, asm])
+    if p.returncode != 0:
+        raise RuntimeError("nasm failed:\n" + p.stderr.decode())
+    p = run([args.cc, "-no-pie", "-o", exe, obj])
+    if p.returncode != 0:
+        raise RuntimeError("link failed:\n" + p.stderr.decode())
+
+    with open(asm) as f:
+        asm_lines = sum(1 for line in f if line.strip())
+    return exe, asm_lines
+
+
+def bench(args, src, level, counter, work):
+    base = os.path.splitext(src)[0]
+    input_file = base + ".in" if os.path.exists(base + ".in") else os.devnull
+    exe, asm_lines = build(args, src, level, work)
+
+    best = None
+    for _ in range(args.repeat):
+        with open(input_file) as fin:
+            start = time.perf_counter()
+            p = run([exe], stdin=fin, timeout=args.timeout)
+            elapsed = time.perf_counter() - start
+        if p.returncode != 0:
+            raise RuntimeError("exit code %d" % p.returncode)
+        if os.path.exists(base + ".ans"):
+            with open(base + ".ans", "rb") as f:
+                if p.stdout != f.read():
+                    raise RuntimeError("wrong answer")
+        best = elapsed if best is None else min(best, elapsed)
+
+    return {
+        "seconds": round(best, 6),
+        "instructions": count_instructions(counter, exe, input_file),
+        "asmLines": asm_lines,
+    }
+
+
+def compare(results, baseline, same_counter, threshold, time_threshold):
+    """list of regressions against baseline, counts of different counters are not compared"""
+    regressions = []
+    for key, cur in sorted(results.items()):
+        old = baseline.get(key)
+        if old is None or "error" in cur or "error" in old:
+            continue
+        if same_counter and cur["instructions"] is not None and old.get("instructions"):
+            ratio = cur["instructions"] / old["instructions"] - 1
+            if ratio * 100 > threshold:
+                regressions.append("%s: instructions %d -> %d (+%.2f%%)"
+                                   % (key, old["instructions"], cur["instructions"], ratio * 100))
+        elif old.get("seconds"):
+            # no instruction count in one of them, use the noisier runtime
+            ratio = cur["seconds"] / old["seconds"] - 1
+            if ratio * 100 > time_threshold:
+                regressions.append("%s: seconds %.4f -> %.4f (+%.2f%%)"
+                                   % (key, old["seconds"], cur["seconds"], ratio * 100))
+    return regressions
+
+
+def main():
+    parser = argparse.ArgumentParser(description="benchmark the code generated by mxc")
+    parser.add_argument("--programs", default=os.path.join(ROOT, "src", "bench", "programs"))
+    parser.add_argument("--levels", default="0,2", help="comma separated -O levels")
+    parser.add_argument("--classpath", default=os.path.join(ROOT, "lib", "antlr-4.7.2-complete.jar")
+                        + os.pathsep + os.path.join(ROOT, "bin"))
+    parser.add_argument("--nasm", default="nasm")
+    parser.add_argument("--cc", default="gcc")
+    parser.add_argument("--counter", default="auto", choices=["auto", "perf", "callgrind", "none"])
+    parser.add_argument("--repeat", type=int, default=3, help="runs per program, fastest is kept")
+    parser.add_argument("--timeout", type=float, default=60)
+    parser.add_argument("--work", default=os.path.join(ROOT, "target", "codegen-bench"))
+    parser.add_argument("--out", help="write results as JSON")
+    parser.add_argument("--baseline", help="JSON written by --out before")
+    parser.add_argument("--threshold", type=float, default=2.0, help="allowed instruction increase in %%")
+    parser.add_argument("--time-threshold", type=float, default=10.0,
+                        help="allowed runtime increase in %%, only without instruction counts")
+    args = parser.parse_args()
+
+    os.makedirs(args.work, exist_ok=True)
+    counter = pick_counter(args.counter)
+    levels = [int(x) for x in args.levels.split(",")]
+    programs = sorted(os.path.join(args.programs, f) for f in os.listdir(args.programs) if f.endswith(".mx"))
+
+    results = {}
+    failed = False
+    for src in programs:
+        name = os.path.splitext(os.path.basename(src))[0]
+        for level in levels:
+            key = "%s -O%d" % (name, level)
+            try:
+                results[key] = bench(args, src, level, counter, args.work)
+                r = results[key]
+                print("%-20s %10.4fs %14s instrs %6d asm lines"
+                      % (key, r["seconds"], r["instructions"] if r["instructions"] is not None else "-",
+                         r["asmLines"]))
+            except (RuntimeError, subprocess.TimeoutExpired) as e:
+                results[key] = {"error": str(e)}
+                failed = True
+                print("%-20s FAILED %s" % (key, e))
+
+    if args.out:
+        with open(args.out, "w") as f:
+            json.dump({"counter": counter, "results": results}, f, indent=2, sort_keys=True)
+
+    if args.baseline:
+        with open(args.baseline) as f:
+            baseline = json.load(f)
+        regressions = compare(results, baseline["results"], baseline["counter"] == counter,
+                              args.threshold, args.time_threshold)
+        for line in regressions:
+            print("REGRESSION " + line)
+        failed |= bool(regressions)
+
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,136 @@
+package mxcompiler.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+
+/**
+ * Mx sources for benchmarks, synthetic ones are generated and scaled by size,
+ * others are read from resources/corpus
+ * <p>
+ * names: "funcs:N" N functions calling each other, "chain:N" N functions in
+ * one call chain, "expr:N" an expression nested N levels, "nest:N" if/while
+ * nested N levels, "file:NAME" a file in corpus
+ */
+public class CorpusGenerator {
+    public static String get(String name) throws IOException {
+        String kind = name.substring(0, name.indexOf(':'));
+        String arg = name.substring(name.indexOf(':') + 1);
+        switch (kind) {
+        case "funcs":
+            return manyFunctions(Integer.parseInt(arg), false);
+        case "chain":
+            return manyFunctions(Integer.parseInt(arg), true);
+        case "expr":
+            return deepExpression(Integer.parseInt(arg));
+        case "nest":
+            return deepNest(Integer.parseInt(arg));
+        case "file":
+            return readCorpus(arg);
+        default:
+            throw new IllegalArgumentException("unknown corpus: " + name);
+        }
+    }
+
+    /**
+     * each func has a loop, a branch and calls f(i/2), so that the call graph
+     * is a tree of depth log(N), or f(i-1) if chain
+     */
+    public static String manyFunctions(int n, boolean chain) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("int g = 0;\n");
+        for (int i = 0; i < n; ++i) {
+            sb.append("int f").append(i).append("(int a, int b) {\n");
+            sb.append("  int s = a * ").append(i % 7 + 1).append(" + b;\n");
+            sb.append("  int i;\n");
+            sb.append("  for (i = 0; i < b; ++i) {\n");
+            sb.append("    if ((s ^ i) % 3 == 0) s = s + i; else s = s - (i >> 1);\n");
+            sb.append("  }\n");
+            sb.append("  g = g + s;\n");
+            if (i > 0)
+                sb.append("  return s + f").append(chain ? i - 1 : i / 2).append("(b, a % 5);\n");
+            else
+                sb.append("  return s;\n");
+            sb.append("}\n");
+        }
+
+        sb.append("int main() {\n");
+        sb.append("  int x = 0;\n");
+        for (int i = 0; i < n; i += Math.max(1, n / 64))
+            sb.append("  x = x + f").append(i).append("(x % 7, 3);\n");
+        sb.append("  println(toString(x + g));\n");
+        sb.append("  return 0;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /** one expression of depth levels, on local vars */
+    public static String deepExpression(int depth) {
+        String[] ops = { "+", "-", "*", "^", "&", "|", "<<", ">>" };
+        StringBuilder sb = new StringBuilder();
+        sb.append("int main() {\n");
+        sb.append("  int a = getInt(); int b = a + 1; int c = a * 3;\n");
+
+        StringBuilder expr = new StringBuilder();
+        for (int i = 0; i < depth; ++i)
+            expr.append("(");
+        expr.append("a");
+        for (int i = 0; i < depth; ++i) {
+            String op = ops[i % ops.length];
+            String rhs = (op.equals("<<") || op.equals(">>")) ? "1" : ((i % 3 == 0) ? "b" : "c");
+            expr.append(" ").append(op).append(" ").append(rhs).append(")");
+        }
+
+        sb.append("  int r = ").append(expr).append(";\n");
+        sb.append("  println(toString(r));\n");
+        sb.append("  return 0;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /** if and while nested depth levels */
+    public static String deepNest(int depth) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("int main() {\n");
+        sb.append("  int s = 0;\n");
+        for (int i = 0; i < depth; ++i) {
+            sb.append("  int v").append(i).append(" = ").append(i).append(";\n");
+            if (i % 2 == 0)
+                sb.append("  if (s < ").append(i * 10 + 100).append(") {\n");
+            else
+                sb.append("  while (v").append(i).append(" < ").append(i + 2).append(") {\n");
+            sb.append("  s = s + v").append(i).append(";\n");
+            if (i % 2 == 1)
+                sb.append("  v").append(i).append(" = v").append(i).append(" + 1;\n");
+        }
+        for (int i = 0; i < depth; ++i)
+            sb.append("  }\n");
+        sb.append("  println(toString(s));\n");
+        sb.append("  return 0;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    public static String readCorpus(String file) throws IOException {
+        InputStream in = CorpusGenerator.class.getResourceAsStream("/corpus/" + file);
+        if (in == null)
+            throw new FileNotFoundException("corpus/" + file);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null)
+                sb.append(line).append('\n');
+            return sb.toString();
+        }
+    }
+
+    /** write a generated source to look at or compile by hand */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CorpusGenerator <corpus> <out.mx>");
+            System.exit(1);
+        }
+        Files.write(Paths.get(args[1]), get(args[0]).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,118 @@
+package mxcompiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.openjdk.jmh.annotations.*;
+
+import mxcompiler.ast.ASTNode;
+import mxcompiler.ir.Root;
+
+
+/**
+ * each compiler phase alone, on the output of the ones before
+ * <p>
+ * phases changing their input (ResolverAndChecker, IRBuilder, Lifeness,
+ * RegisterAllocator) get a fresh one per invocation
+ * <p>
+ * mvn -P jmh package, then
+ * java -cp target/benchmarks.jar:lib/antlr-4.7.2-complete.jar org.openjdk.jmh.Main PhaseBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xss64m", "-Xmx4g" })
+public class PhaseBenchmark {
+    @State(Scope.Benchmark)
+    public static class Source {
+        @Param({ "file:matrix.mx", "file:class.mx", "file:string.mx", "funcs:1000", "funcs:10000", "chain:200",
+                "expr:256", "nest:64" })
+        public String corpus;
+
+        @Param({ "2" })
+        public int optLevel;
+
+        public String src;
+        public Phases phases;
+        public ParseTree tree;
+        public Root allocatedIR;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            src = CorpusGenerator.get(corpus);
+            phases = new Phases(optLevel);
+            tree = phases.parse(src);
+            allocatedIR = phases.allocatedIR(src);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshAST {
+        public ASTNode ast;
+
+        @Setup(Level.Invocation)
+        public void setup(Source s) {
+            ast = s.phases.buildAST(s.tree);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshResolvedAST {
+        public ASTNode ast;
+
+        @Setup(Level.Invocation)
+        public void setup(Source s) {
+            ast = s.phases.resolve(s.phases.buildAST(s.tree));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshIR {
+        public Root root;
+
+        @Setup(Level.Invocation)
+        public void setup(Source s) {
+            root = s.phases.optimizedIR(s.src);
+        }
+    }
+
+    @Benchmark
+    public ParseTree parse(Source s) {
+        return s.phases.parse(s.src);
+    }
+
+    @Benchmark
+    public ASTNode astBuilder(Source s) {
+        return s.phases.buildAST(s.tree);
+    }
+
+    @Benchmark
+    public ASTNode resolverAndChecker(Source s, FreshAST in) {
+        return s.phases.resolve(in.ast);
+    }
+
+    @Benchmark
+    public Root irBuilder(Source s, FreshResolvedAST in) {
+        return s.phases.buildIR(in.ast);
+    }
+
+    @Benchmark
+    public Root lifeness(Source s, FreshIR in) {
+        s.phases.lifeness(in.root);
+        return in.root;
+    }
+
+    @Benchmark
+    public Root registerAllocator(Source s, FreshIR in) {
+        s.phases.allocate(in.root);
+        return in.root;
+    }
+
+    @Benchmark
+    public long assemblyDump(Source s) {
+        Phases.CountingStream out = new Phases.CountingStream();
+        s.phases.dumpAsm(s.allocatedIR, out);
+        return out.count;
+    }
+}
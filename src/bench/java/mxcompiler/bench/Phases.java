@@ -0,0 +1,116 @@
+package mxcompiler.bench;
+
+import java.io.*;
+import java.util.List;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import mxcompiler.ast.ASTNode;
+import mxcompiler.ir.Root;
+import mxcompiler.ir.instruction.Function;
+import mxcompiler.main.*;
+import mxcompiler.main.dump.AssemblyDump;
+import mxcompiler.main.optim.UsagePreChecker;
+import mxcompiler.parser.*;
+
+
+/**
+ * compiler phases called one by one as mxcompiler.main.Compiler does, so
+ * that each can be measured alone on the output of the ones before
+ */
+public class Phases {
+    public final Option opts;
+
+    public Phases(int optLevel) {
+        this.opts = new Option(new String[] { "--test", "-O" + optLevel });
+    }
+
+    public ParseTree parse(String src) {
+        MxLexer lexer = new MxLexer(CharStreams.fromString(src));
+        MxParser parser = new MxParser(new CommonTokenStream(lexer));
+        return parser.compilationUnit();
+    }
+
+    public ASTNode buildAST(ParseTree tree) {
+        return (ASTNode) new ASTBuilder().visit(tree);
+    }
+
+    /** ResolverAndChecker, and UsagePreChecker at O>0 */
+    public ASTNode resolve(ASTNode ast) {
+        new ResolverAndChecker().visit(ast);
+        if (opts.OptimizationLevel() > 0)
+            new UsagePreChecker().visit(ast);
+        return ast;
+    }
+
+    public Root buildIR(ASTNode ast) {
+        return new IRBuilder(opts).build(ast);
+    }
+
+    /** IR passes of the -O level */
+    public void optimize(Root root) {
+        PassManager passManager = new PassManager(root);
+        passManager.run(passManager.irPipeline(opts.OptimizationLevel()));
+    }
+
+    /** with fresh BB-orders, as RegisterAllocator gets from PassManager */
+    public void lifeness(Root root) {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+            func.initReversePostOrder();
+            func.initReversePreOrder();
+        }
+        new Lifeness(root).execute();
+    }
+
+    public void allocate(Root root) {
+        PassManager passManager = new PassManager(root);
+        List<Pass> passes = passManager.asmPipeline(opts.OptimizationLevel(), opts.isLinearScan());
+        passManager.run(passes.subList(0, 1));
+    }
+
+    /** the asm passes after RegisterAllocator */
+    public void finishAsm(Root root) {
+        PassManager passManager = new PassManager(root);
+        List<Pass> passes = passManager.asmPipeline(opts.OptimizationLevel(), opts.isLinearScan());
+        passManager.run(passes.subList(1, passes.size()));
+    }
+
+    public void dumpAsm(Root root, OutputStream out) {
+        PrintStream ps = new PrintStream(out);
+        new AssemblyDump(ps).dump(root);
+        ps.flush();
+    }
+
+    /** IR ready for Lifeness or RegisterAllocator */
+    public Root optimizedIR(String src) {
+        Root root = buildIR(resolve(buildAST(parse(src))));
+        optimize(root);
+        return root;
+    }
+
+    /** IR ready for AssemblyDump */
+    public Root allocatedIR(String src) {
+        Root root = optimizedIR(src);
+        allocate(root);
+        finishAsm(root);
+        return root;
+    }
+
+    /** sink of AssemblyDump, only counts bytes */
+    public static class CountingStream extends OutputStream {
+        public long count = 0;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
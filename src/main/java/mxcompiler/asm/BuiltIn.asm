@@ -17,6 +17,13 @@ default rel
         global _Z27__member___string_substringPcii
         global _Z26__member___string_parseIntPc
         global _Z21__member___string_ordPci
+        global __builtin_profile_dump
+        global __builtin_arena_alloc
+        global __builtin_arena_refill
+        global __builtin_arena_ptr
+        global __builtin_arena_end
+        global __builtin_bounds_fail
+        global __builtin_null_fail
 
         extern getchar
         extern strlen
@@ -28,6 +35,14 @@ default rel
         extern strcmp
         extern malloc
         extern _GLOBAL_OFFSET_TABLE_
+        extern fopen
+        extern fprintf
+        extern fclose
+        extern mmap
+        extern fflush
+        extern fputs
+        extern exit
+        extern stderr
 
 
         section .text   
@@ -50,7 +65,7 @@ __builtin_string_concat:
         add     eax, edx
         cdqe
         mov     rdi, rax
-        call    malloc
+        call    __builtin_alloc
         mov     qword [rbp-8H], rax
         mov     edx, dword [rbp-10H]
         mov     eax, dword [rbp-0CH]
@@ -240,18 +255,15 @@ L_005:  cmp     dword [rbp-74H], 0
         call    putchar
 L_006:  mov     dword [rbp-68H], 0
 L_007:  cmp     dword [rbp-74H], 0
-        jle     L_008
+        jz      L_008
         mov     esi, dword [rbp-68H]
         lea     eax, [rsi+1H]
         mov     dword [rbp-68H], eax
         mov     ecx, dword [rbp-74H]
-        mov     edx, 1717986919
+        mov     edx, -858993459
         mov     eax, ecx
-        imul    edx
-        sar     edx, 2
-        mov     eax, ecx
-        sar     eax, 31
-        sub     edx, eax
+        mul     edx
+        shr     edx, 3
         mov     eax, edx
         shl     eax, 2
         add     eax, edx
@@ -261,13 +273,10 @@ L_007:  cmp     dword [rbp-74H], 0
         movsxd  rax, esi
         mov     dword [rbp+rax*4-60H], edx
         mov     ecx, dword [rbp-74H]
-        mov     edx, 1717986919
-        mov     eax, ecx
-        imul    edx
-        sar     edx, 2
+        mov     edx, -858993459
         mov     eax, ecx
-        sar     eax, 31
-        sub     edx, eax
+        mul     edx
+        shr     edx, 3
         mov     eax, edx
         mov     dword [rbp-74H], eax
         jmp     L_007
@@ -318,18 +327,15 @@ L_012:  cmp     dword [rbp-74H], 0
         call    putchar
 L_013:  mov     dword [rbp-68H], 0
 L_014:  cmp     dword [rbp-74H], 0
-        jle     L_015
+        jz      L_015
         mov     esi, dword [rbp-68H]
         lea     eax, [rsi+1H]
         mov     dword [rbp-68H], eax
         mov     ecx, dword [rbp-74H]
-        mov     edx, 1717986919
-        mov     eax, ecx
-        imul    edx
-        sar     edx, 2
+        mov     edx, -858993459
         mov     eax, ecx
-        sar     eax, 31
-        sub     edx, eax
+        mul     edx
+        shr     edx, 3
         mov     eax, edx
         shl     eax, 2
         add     eax, edx
@@ -339,13 +345,10 @@ L_014:  cmp     dword [rbp-74H], 0
         movsxd  rax, esi
         mov     dword [rbp+rax*4-60H], edx
         mov     ecx, dword [rbp-74H]
-        mov     edx, 1717986919
+        mov     edx, -858993459
         mov     eax, ecx
-        imul    edx
-        sar     edx, 2
-        mov     eax, ecx
-        sar     eax, 31
-        sub     edx, eax
+        mul     edx
+        shr     edx, 3
         mov     eax, edx
         mov     dword [rbp-74H], eax
         jmp     L_014
@@ -382,7 +385,7 @@ _Z9getStringv:
         mov     rbp, rsp
         sub     rsp, 16
         mov     edi, 266
-        call    malloc
+        call    __builtin_alloc
         mov     qword [rbp-8H], rax
         mov     rax, qword [rbp-8H]
         add     rax, 8
@@ -450,7 +453,8 @@ L_024:  cmp     byte [rbp-5H], 0
         jmp     L_026
 
 L_025:  mov     eax, dword [rbp-4H]
-L_026:  leave
+L_026:  cdqe
+        leave
         ret
 
 
@@ -482,13 +486,10 @@ L_028:  cmp     dword [rbp-84H], 0
         jz      L_029
         add     dword [rbp-70H], 1
         mov     ecx, dword [rbp-84H]
-        mov     edx, 1717986919
+        mov     edx, -858993459
         mov     eax, ecx
-        imul    edx
-        sar     edx, 2
-        mov     eax, ecx
-        sar     eax, 31
-        sub     edx, eax
+        mul     edx
+        shr     edx, 3
         mov     eax, edx
         shl     eax, 2
         add     eax, edx
@@ -499,13 +500,10 @@ L_028:  cmp     dword [rbp-84H], 0
         cdqe
         mov     dword [rbp+rax*4-60H], edx
         mov     ecx, dword [rbp-84H]
-        mov     edx, 1717986919
-        mov     eax, ecx
-        imul    edx
-        sar     edx, 2
+        mov     edx, -858993459
         mov     eax, ecx
-        sar     eax, 31
-        sub     edx, eax
+        mul     edx
+        shr     edx, 3
         mov     eax, edx
         mov     dword [rbp-84H], eax
         jmp     L_028
@@ -516,7 +514,7 @@ L_029:  mov     edx, dword [rbp-70H]
         add     eax, 9
         cdqe
         mov     rdi, rax
-        call    malloc
+        call    __builtin_alloc
         mov     qword [rbp-68H], rax
         mov     edx, dword [rbp-70H]
         mov     eax, dword [rbp-74H]
@@ -583,7 +581,7 @@ _Z27__member___string_substringPcii:
         add     eax, 9
         cdqe
         mov     rdi, rax
-        call    malloc
+        call    __builtin_alloc
         mov     qword [rbp-8H], rax
         mov     eax, dword [rbp-0CH]
         movsxd  rdx, eax
@@ -629,11 +627,14 @@ _Z26__member___string_parseIntPc:
         add     qword [rbp-18H], 8
         mov     byte [rbp-9H], 0
         mov     dword [rbp-8H], 0
+        mov     dword [rbp-4H], 0
 L_036:  mov     eax, dword [rbp-8H]
         movsxd  rdx, eax
         mov     rax, qword [rbp-18H]
         add     rax, rdx
         movzx   eax, byte [rax]
+        test    al, al
+        jz      L_040
         cmp     al, 47
         jle     L_037
         mov     eax, dword [rbp-8H]
@@ -707,7 +708,8 @@ L_040:  cmp     byte [rbp-9H], 0
         jmp     L_042
 
 L_041:  mov     eax, dword [rbp-4H]
-L_042:  pop     rbp
+L_042:  cdqe
+        pop     rbp
         ret
 
 
@@ -722,20 +724,178 @@ _Z21__member___string_ordPci:
         mov     rax, qword [rbp-8H]
         add     rax, rdx
         movzx   eax, byte [rax]
-        movsx   eax, al
+        movsx   rax, al
+        pop     rbp
+        ret
+
+
+; (counters, n, checksum, file as Mx string)
+__builtin_profile_dump:
+        push    rbp
+        mov     rbp, rsp
+        push    rbx
+        push    r12
+        push    r13
+        push    r14
+        mov     rbx, rdi
+        mov     r12, rsi
+        mov     r13, rdx
+        lea     rdi, [rcx+8H]
+        lea     rsi, [rel L_044]
+        call    fopen
+        test    rax, rax
+        jz      L_049
+        mov     r14, rax
+        mov     rdx, r13
+        mov     rcx, r12
+        lea     rsi, [rel L_045]
+        mov     rdi, r14
+        mov     eax, 0
+        call    fprintf
+L_047:  test    r12, r12
+        jz      L_048
+        mov     rdx, qword [rbx]
+        lea     rsi, [rel L_046]
+        mov     rdi, r14
+        mov     eax, 0
+        call    fprintf
+        add     rbx, 8
+        sub     r12, 1
+        jmp     L_047
+
+L_048:  mov     rdi, r14
+        call    fclose
+L_049:  pop     r14
+        pop     r13
+        pop     r12
+        pop     rbx
         pop     rbp
         ret
 
 
+; (size) as malloc, 8-byte aligned, bumped in the chunk
+; [__builtin_arena_ptr, __builtin_arena_end). Keeps all regs but rax
+__builtin_arena_alloc:
+        push    rdi
+        add     rdi, 7
+        and     rdi, -8
+        mov     eax, 8
+        cmovz   rdi, rax
+        mov     rax, qword [rel __builtin_arena_ptr]
+        add     rax, rdi
+        cmp     rax, qword [rel __builtin_arena_end]
+        jbe     L_050
+        mov     rax, rdi
+        call    __builtin_arena_refill
+L_050:  mov     qword [rel __builtin_arena_ptr], rax
+        sub     rax, rdi
+        pop     rdi
+        ret
+
+; (rax = size) new chunk of max(size, 16M) by mmap, the rest of the old one
+; is dropped, returns rax = chunk + size. Other regs are kept, for HeapAlloc
+; bumped inline by generated code. If mmap fails, exits as __builtin_null_fail
+__builtin_arena_refill:
+        push    rbp
+        mov     rbp, rsp
+        and     rsp, -16
+        push    rcx
+        push    rdx
+        push    rsi
+        push    rdi
+        push    r8
+        push    r9
+        push    r10
+        push    r11
+        push    rbx
+        push    r12
+        mov     rbx, rax
+        mov     r12, 1000000H
+        cmp     r12, rax
+        cmovb   r12, rax
+        xor     edi, edi
+        mov     rsi, r12
+        mov     edx, 3
+        mov     ecx, 22H
+        mov     r8, -1
+        xor     r9d, r9d
+        call    mmap
+        cmp     rax, -1
+        jnz     L_051
+        lea     rdi, [rel L_055]
+        jmp     L_052
+
+L_051:  lea     rdx, [rax+r12]
+        mov     qword [rel __builtin_arena_end], rdx
+        add     rax, rbx
+        pop     r12
+        pop     rbx
+        pop     r11
+        pop     r10
+        pop     r9
+        pop     r8
+        pop     rdi
+        pop     rsi
+        pop     rdx
+        pop     rcx
+        mov     rsp, rbp
+        pop     rbp
+        ret
+
+
+__builtin_bounds_fail:
+        lea     rdi, [rel L_053]
+        jmp     L_052
+
+__builtin_null_fail:
+        lea     rdi, [rel L_054]
+L_052:  and     rsp, -16
+        mov     rbx, rdi
+        xor     edi, edi
+        call    fflush
+        mov     rdi, rbx
+        mov     rsi, qword [rel stderr]
+        call    fputs
+        mov     edi, 1
+        call    exit
+
+
 
         section .data   
 
 
         section .bss    
 
+__builtin_arena_ptr:
+        resq    1
+
+__builtin_arena_end:
+        resq    1
+
 
         section .rodata 
 
 L_043:
         db 25H, 73H, 00H
 
+L_044:
+        db 77H, 00H
+
+L_045:
+        db 6DH, 78H, 70H, 72H, 6FH, 66H, 20H, 25H, 6CH, 64H, 20H, 25H
+        db 6CH, 64H, 0AH, 00H
+
+L_046:
+        db 25H, 6CH, 64H, 0AH, 00H
+
+L_053:
+        db 69H, 6EH, 64H, 65H, 78H, 20H, 6FH, 75H, 74H, 20H, 6FH, 66H
+        db 20H, 62H, 6FH, 75H, 6EH, 64H, 73H, 0AH, 00H
+
+L_054:
+        db 6EH, 75H, 6CH, 6CH, 20H, 70H, 6FH, 69H, 6EH, 74H, 65H, 72H
+        db 20H, 61H, 63H, 63H, 65H, 73H, 73H, 0AH, 00H
+
+L_055:
+        db 6FH, 75H, 74H, 20H, 6FH, 66H, 20H, 6DH, 65H, 6DH, 6FH, 72H
+        db 79H, 0AH, 00H
@@ -1,6 +1,7 @@
 package mxcompiler.ast.expression;
 
 import mxcompiler.ast.Node;
+import mxcompiler.ir.AliasTag;
 import mxcompiler.ir.instruction.BasicBlock;
 import mxcompiler.ir.register.RegValue;
 import mxcompiler.utils.type.Type;
@@ -81,5 +82,7 @@ abstract public class ExprNode extends Node {
 	public RegValue addrValue;
 	/** addr-base-offset */
 	public int offset;
+	/** alias class of addr, for Store */
+	public AliasTag aliasTag;
 
 }
\ No newline at end of file
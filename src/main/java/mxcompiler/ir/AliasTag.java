@@ -0,0 +1,50 @@
+package mxcompiler.ir;
+
+import mxcompiler.utils.type.*;
+
+
+/**
+ * type-based alias class of a heap Load or Store, set by IRBuilder from the
+ * types of AST entities
+ * <p>
+ * a field is its class and offset, an element is its array type, the length
+ * (offset 0 of arrays and strings) is one more. Mx has no cast, inheritance
+ * or pointer arithmetic, so accesses of different tags never alias, e.g. a
+ * store to int[] and a field of class A. A MemQuad without tag may alias any
+ */
+public class AliasTag {
+    public static final AliasTag LENGTH = new AliasTag("length");
+
+    private final String name;
+
+    private AliasTag(String name) {
+        this.name = name;
+    }
+
+    public static AliasTag field(String className, int offset) {
+        return new AliasTag(className + "." + offset);
+    }
+
+    /** null if not of array type */
+    public static AliasTag element(Type arrayType) {
+        return (arrayType instanceof ArrayType) ? new AliasTag(typeName(arrayType)) : null;
+    }
+
+    private static String typeName(Type type) {
+        if (type instanceof ArrayType)
+            return typeName(((ArrayType) type).getBaseType()) + "[]";
+        if (type instanceof ClassType)
+            return ((ClassType) type).getName();
+        return type.toString();
+    }
+
+    /** null may alias any tag */
+    public static boolean mayAlias(AliasTag a, AliasTag b) {
+        return a == null || b == null || a.name.equals(b.name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
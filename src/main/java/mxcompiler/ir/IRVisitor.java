@@ -12,6 +12,7 @@ public interface IRVisitor {
     public void visit(Function node);
     public void visit(Bin node);
     public void visit(CJump node);
+    public void visit(Check node);
     public void visit(Cmp node);
     public void visit(Funcall node);
     public void visit(HeapAlloc node);
@@ -20,6 +21,8 @@ public interface IRVisitor {
     public void visit(Load node);
     public void visit(MemQuad node);
     public void visit(Move node);
+    public void visit(MulHigh node);
+    public void visit(Phi node);
     public void visit(Pop node);
     public void visit(Push node);
     public void visit(Return node);
@@ -12,6 +12,8 @@ import static mxcompiler.utils.Tool.*;
 
 public class Root {
     public boolean hasDivShiftInst = false;
+    /** profileCount of BBs is set, seen at {@link mxcompiler.main.optim.ProfileReader} */
+    public boolean hasProfile = false;
 
     /** pregs -> used for stack slot (defined once) */
     public PhysicalRegister preg0, preg1;
@@ -49,6 +51,8 @@ public class Root {
         addFunc(STRING_INEQUAL_KEY, "__builtin_string_inequal");
         addFunc(STRING_LESS_KEY, "__builtin_string_less");
         addFunc(STRING_LESS_EQUAL_KEY, "__builtin_string_less_equal");
+
+        addFunc(PROFILE_DUMP_KEY, "__builtin_profile_dump");
     }
 
     public Map<String, Function> getBuiltInFunc() {
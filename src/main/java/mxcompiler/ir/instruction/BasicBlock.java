@@ -17,6 +17,51 @@ public class BasicBlock {
 
     public int postOrder, preOrder; // get order of cfg
 
+    // region dominator tree, seen at {@link Function#initDominatorTree()}
+    public BasicBlock idom = null; // null for start or unreachable BB
+    public List<BasicBlock> domChildren = new ArrayList<>();
+    public Set<BasicBlock> domFrontier = new HashSet<>();
+    public int domIn, domOut; // dfs order in dominator tree
+
+    /** this dominates bb (include itself) */
+    public boolean dominates(BasicBlock bb) {
+        return domIn <= bb.domIn && bb.domOut <= domOut;
+    }
+    // endregion
+
+    // region loop, seen at {@link Function#initLoops()}
+    public Loop loop = null; // innermost loop
+    public int loopDepth = 0;
+    // endregion
+
+    // region profile, seen at {@link mxcompiler.main.optim.ProfileReader}
+    /** times executed in the profiled run, -1 if unknown */
+    public long profileCount = -1;
+
+    /**
+     * profileCount, or for a BB made after the profile is read (preheader,
+     * split edge, ...) the smaller of the sums of known prev and next
+     * counts, -1 if none is known
+     */
+    public long estimateProfileCount() {
+        if (profileCount >= 0)
+            return profileCount;
+
+        long prevSum = sumProfileCount(prev), nextSum = sumProfileCount(next);
+        if (prevSum < 0 || nextSum < 0)
+            return Math.max(prevSum, nextSum);
+        return Math.min(prevSum, nextSum);
+    }
+
+    private static long sumProfileCount(Set<BasicBlock> bbs) {
+        long sum = -1;
+        for (BasicBlock bb : bbs)
+            if (bb != null && bb.profileCount >= 0)
+                sum = Math.max(sum, 0) + bb.profileCount;
+        return sum;
+    }
+    // endregion
+
     public BasicBlock(Function func, String name) {
         this.func = func;
         this.name = (name == null) ? "" : name;
@@ -64,10 +109,10 @@ public class BasicBlock {
     // endregion
 
     // region insts
-    private LinkedList<Quad> insts = new LinkedList<>();
+    private InstList insts = new InstList();
     private boolean hasJump = false; // hasJumpInst
 
-    public LinkedList<Quad> getInsts() {
+    public InstList getInsts() {
         return insts;
     }
 
@@ -87,67 +132,6 @@ public class BasicBlock {
         insts.removeLast();
     }
 
-    /**
-     * remove (support Last but not Jump Inst<Already Delete Jump>)
-     * <p>
-     * 
-     * 
-     * <pre>
-     * // origin: iter inst(select) (inst2)
-     * iter.next(); inst ...
-     * // before: inst(select) iter (inst2)
-     * delInst(iter)
-     * // after: iter (inst2)
-     * </pre>
-     * 
-     * @illigal don't have iter.next() after origin
-     *          <p>
-     *          can't use iter.previous() to replace iter.next()
-     */
-    public ListIterator<Quad> removeInst(ListIterator<Quad> iter) {
-        Quad inst = iter.previous(); // check if inst is removed ??
-        inst.removed = true;
-        if (inst == insts.getLast()) {
-            // only to make sure it is last
-            if (hasJump)
-                delJumpSideEffect();
-        }
-
-        iter.remove(); // remove inst
-        return iter;
-    }
-
-    /**
-     * remove (support Last but not Jump Inst<Already Delete Jump>)
-     * <p>
-     * 
-     * <pre>
-     * // origin: (inst2) iter inst(select)
-     * iter.next(); inst ...
-     * // before: (inst2) inst(select) iter
-     * delInst(iter)
-     * // after: iter (inst2)
-     * </pre>
-     * 
-     * @illigal don't have iter.previous() after origin
-     *          <p>
-     *          can't use iter.next() to replace iter.previous()
-     */
-    public ListIterator<Quad> removeInstFromPrevious(ListIterator<Quad> iter) {
-        Quad inst = iter.next(); // check if inst is removed ??
-        inst.removed = true;
-        if (inst == insts.getLast()) {
-            // only to make sure it is last
-            if (hasJump)
-                delJumpSideEffect();
-        }
-
-        iter.remove(); // remove inst
-        return iter;
-    }
-
-    // remove, add indx, del index implement with iter
-    // add, del with last
     /** can not do what setJump() does */
     public void addLastInst(Quad inst) {
         if (hasJump || inst instanceof JumpQuad)
@@ -156,75 +140,38 @@ public class BasicBlock {
         insts.addLast(inst);
     }
 
-    /**
-     * append
-     * <p>
-     * illigal: don't have iter.next() after origin
-     * <p>
-     * stick means stick on cur iter
-     * 
-     * <pre>
-     * // origin: iter inst(will select) inst2
-     * inst = iter.next(); inst ...
-     * // before: inst(select) iter inst2
-     * bb.addBeforeInst(iter, new_inst)
-     * // if(!stick) after: inst(select) new_inst iter inst2
-     * // if(stick)  after: inst(select) iter new_inst inst2
-     * </pre>
-     */
-    public void addAfterInst(ListIterator<Quad> iter, Quad newInst, boolean stick) {
-        iter.add(newInst);
-        if (stick)
-            iter.previous();
-    }
-
-    /**
-     * prepend
-     * <p>
-     * illigal: don't have iter.next() before
-     * 
-     * <pre>
-     * // origin: inst1 iter inst(will select) inst2
-     * inst = iter.next(); inst ...
-     * // before: inst1 inst(select) iter inst2
-     * bb.addBeforeInst(iter, new_inst)
-     * // after : inst1 new_inst origin_iter inst(select) return_iter inst2
-     * </pre>
-     */
-    public void addBeforeInst(ListIterator<Quad> iter, Quad newInst) {
-        if (!iter.hasPrevious()) // check origin inst
-            throw new CompileError("Error add-before inst");
+    // region relative to inst, O(1)
+    public void addBefore(Quad inst, Quad newInst) {
         if (newInst instanceof JumpQuad)
             throw new CompileError("can not add before with jump");
+        insts.insertBefore(inst, newInst);
+    }
 
-        iter.previous(); // get inst1
-        iter.add(newInst); // get origin_iter
-        iter.next(); // get return_iter
+    public void addAfter(Quad inst, Quad newInst) {
+        if (hasJump && inst == insts.getLast())
+            throw new CompileError("can not add after jump");
+        insts.insertAfter(inst, newInst);
     }
 
-    /**
-     * replace
-     * <p>
-     * check Jump outside
-     * 
-     * <pre>
-     * // origin:  iter inst(will select) inst2
-     * before: inst = iter.next(); inst ...
-     * // before: inst(select) iter inst2
-     * bb.addBeforeInst(iter, new_inst)
-     * // after: new_inst iter inst2
-     * </pre>
-     */
-    public void replaceInst(ListIterator<Quad> iter, Quad newInst) {
-        if (!iter.hasPrevious()) // check origin inst
-            throw new CompileError("can not get iter.previous");
+    /** replace inst (not jump) */
+    public void replaceInst(Quad inst, Quad newInst) {
+        addBefore(inst, newInst);
+        inst.removed = true;
+        insts.unlink(inst);
+    }
 
-        iter.set(newInst);
+    /** remove inst, jump included */
+    public void removeInst(Quad inst) {
+        inst.removed = true;
+        if (hasJump && inst == insts.getLast())
+            delJumpSideEffect();
+        insts.unlink(inst);
     }
+    // endregion
 
     /** reInit() -- only for insts and jumps */
     public void clearInsts() {
-        insts = new LinkedList<>();
+        insts.clear();
         hasJump = false;
     }
 
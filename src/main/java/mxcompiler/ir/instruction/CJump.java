@@ -2,16 +2,24 @@ package mxcompiler.ir.instruction;
 
 import java.util.Map;
 
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
 import mxcompiler.ir.IRVisitor;
 import mxcompiler.ir.register.RegValue;
 import mxcompiler.ir.register.Register;
 import mxcompiler.utils.Dump;
 
 
-/** branch */
+/**
+ * branch
+ * <p>
+ * to then iff cond == 1, or iff lhs op rhs if fused with its Cmp by
+ * FuseCmpBranch (then cond is null)
+ */
 public class CJump extends JumpQuad {
     private RegValue cond;
     private BasicBlock thenBB, elseBB;
+    private Op op = null;
+    private RegValue lhs, rhs;
 
     public CJump(BasicBlock parent, RegValue cond, BasicBlock thenBB, BasicBlock elseBB) {
         super(parent);
@@ -21,6 +29,33 @@ public class CJump extends JumpQuad {
         reloadUsedRegs();
     }
 
+    /** fused compare-and-branch, lhs can not be IntImm */
+    public CJump(BasicBlock parent, Op op, RegValue lhs, RegValue rhs, BasicBlock thenBB, BasicBlock elseBB) {
+        super(parent);
+        this.op = op;
+        this.lhs = lhs;
+        this.rhs = rhs;
+        this.thenBB = thenBB;
+        this.elseBB = elseBB;
+        reloadUsedRegs();
+    }
+
+    public boolean isFused() {
+        return op != null;
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public RegValue getLhs() {
+        return lhs;
+    }
+
+    public RegValue getRhs() {
+        return rhs;
+    }
+
     public RegValue getCond() {
         return cond;
     }
@@ -43,6 +78,12 @@ public class CJump extends JumpQuad {
 
     @Override
     public CJump copyRename(Map<Object, Object> renameMap) {
+        if (isFused())
+            return new CJump((BasicBlock) renameMap.getOrDefault(parent, parent), op,
+                    (RegValue) renameMap.getOrDefault(lhs, lhs),
+                    (RegValue) renameMap.getOrDefault(rhs, rhs),
+                    (BasicBlock) renameMap.getOrDefault(thenBB, thenBB),
+                    (BasicBlock) renameMap.getOrDefault(elseBB, elseBB));
         return new CJump((BasicBlock) renameMap.getOrDefault(parent, parent),
                 (RegValue) renameMap.getOrDefault(cond, cond),
                 (BasicBlock) renameMap.getOrDefault(thenBB, thenBB),
@@ -54,6 +95,15 @@ public class CJump extends JumpQuad {
     protected void reloadUsedRegs() {
         usedRegisters.clear();
         usedRegValues.clear();
+        if (isFused()) {
+            if (lhs instanceof Register)
+                usedRegisters.add((Register) lhs);
+            if (rhs instanceof Register)
+                usedRegisters.add((Register) rhs);
+            usedRegValues.add(lhs);
+            usedRegValues.add(rhs);
+            return;
+        }
         if (cond instanceof Register)
             usedRegisters.add((Register) cond);
         usedRegValues.add(cond);
@@ -62,6 +112,10 @@ public class CJump extends JumpQuad {
     /** {@inheritDoc} */
     @Override
     public void setUsedRegisters(Map<Register, Register> renameMap) {
+        if (lhs instanceof Register)
+            lhs = renameMap.get(lhs);
+        if (rhs instanceof Register)
+            rhs = renameMap.get(rhs);
         if (cond instanceof Register)
             cond = renameMap.get(cond);
         reloadUsedRegs();
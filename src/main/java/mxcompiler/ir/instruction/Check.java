@@ -0,0 +1,98 @@
+package mxcompiler.ir.instruction;
+
+import java.util.Map;
+
+import mxcompiler.ir.IRVisitor;
+import mxcompiler.ir.register.RegValue;
+import mxcompiler.ir.register.Register;
+import mxcompiler.utils.Dump;
+
+
+/**
+ * runtime check of checked mode (-fchecked), the program exits with a
+ * message if it fails
+ * <p>
+ * NULL: pointer is not null
+ * <p>
+ * BOUNDS: 0 <= index < length of array pointer (at offset 0), unsigned
+ * compare. The pointer is checked not null before
+ */
+public class Check extends Quad {
+    public enum Kind {
+        NULL, BOUNDS
+    }
+
+    private final Kind kind;
+    private RegValue pointer;
+    private RegValue index;
+
+    public Check(BasicBlock parent, RegValue pointer) {
+        this(parent, Kind.NULL, pointer, null);
+    }
+
+    public Check(BasicBlock parent, RegValue pointer, RegValue index) {
+        this(parent, Kind.BOUNDS, pointer, index);
+    }
+
+    private Check(BasicBlock parent, Kind kind, RegValue pointer, RegValue index) {
+        super(parent);
+        this.kind = kind;
+        this.pointer = pointer;
+        this.index = index;
+        reloadUsedRegs();
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public RegValue getPointer() {
+        return pointer;
+    }
+
+    /** null if NULL */
+    public RegValue getIndex() {
+        return index;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Check copyRename(Map<Object, Object> renameMap) {
+        return new Check((BasicBlock) renameMap.getOrDefault(parent, parent), kind,
+                (RegValue) renameMap.getOrDefault(pointer, pointer),
+                (index == null) ? null : (RegValue) renameMap.getOrDefault(index, index));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void reloadUsedRegs() {
+        usedRegisters.clear();
+        usedRegValues.clear();
+        if (pointer instanceof Register)
+            usedRegisters.add((Register) pointer);
+        usedRegValues.add(pointer);
+        if (index != null) {
+            if (index instanceof Register)
+                usedRegisters.add((Register) index);
+            usedRegValues.add(index);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setUsedRegisters(Map<Register, Register> renameMap) {
+        if (pointer instanceof Register)
+            pointer = renameMap.get(pointer);
+        if (index instanceof Register)
+            index = renameMap.get(index);
+        reloadUsedRegs();
+    }
+
+    public void accept(IRVisitor visitor) {
+        visitor.visit(this);
+    }
+
+    public void _dump(Dump d) {
+        d.println("check");
+    }
+}
@@ -16,6 +16,7 @@ public class Funcall extends Quad {
     private Function func;
     private List<RegValue> args;
     private RegValue dst;
+    private boolean tail = false;
 
     public Funcall(BasicBlock parent, Function func, List<RegValue> args, RegValue destion) {
         super(parent);
@@ -42,6 +43,15 @@ public class Funcall extends Quad {
         return (Register) dst;
     }
 
+    /** its value is returned by the caller right after, dumped as jmp */
+    public boolean isTail() {
+        return tail;
+    }
+
+    public void setTail(boolean tail) {
+        this.tail = tail;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Funcall copyRename(Map<Object, Object> renameMap) {
@@ -90,6 +90,9 @@ public class Function {
         this.end = bb;
     }
 
+    /** order of BBs in assembly, set by BlockPlacement, reverse post-order if null */
+    public List<BasicBlock> layout = null;
+
     private List<BasicBlock> reversePostOrder = null;
     private List<BasicBlock> reversePreOrder = null;
 
@@ -155,6 +158,196 @@ public class Function {
             dfsPreOrder(nextBB);
     }
 
+    /**
+     * calc idom, dominator tree and dominance frontier (reInit BB-order first)
+     * <p>
+     * Cooper, Harvey and Kennedy: A Simple, Fast Dominance Algorithm
+     * <p>
+     * unreachable BB is ignored, prev of unreachable BB is ignored
+     */
+    public void initDominatorTree() {
+        initReversePostOrder();
+        Set<BasicBlock> reachable = new HashSet<>(reversePostOrder);
+
+        for (BasicBlock bb : reversePostOrder) {
+            bb.idom = null;
+            bb.domChildren.clear();
+            bb.domFrontier.clear();
+        }
+
+        // idom
+        start.idom = start;
+        boolean changed;
+        do {
+            changed = false;
+            for (BasicBlock bb : reversePostOrder) {
+                if (bb == start)
+                    continue;
+
+                BasicBlock newIdom = null;
+                for (BasicBlock prevBB : bb.getPrev()) {
+                    if (!reachable.contains(prevBB) || prevBB.idom == null)
+                        continue;
+                    newIdom = (newIdom == null) ? prevBB : intersectDom(prevBB, newIdom);
+                }
+
+                if (bb.idom != newIdom) {
+                    bb.idom = newIdom;
+                    changed = true;
+                }
+            }
+        } while (changed);
+        start.idom = null;
+
+        // dominator tree
+        for (BasicBlock bb : reversePostOrder)
+            if (bb.idom != null)
+                bb.idom.domChildren.add(bb);
+        domCounter = 0;
+        dfsDominatorTree(start);
+
+        // dominance frontier
+        for (BasicBlock bb : reversePostOrder) {
+            List<BasicBlock> prevBBs = new ArrayList<>();
+            for (BasicBlock prevBB : bb.getPrev())
+                if (reachable.contains(prevBB))
+                    prevBBs.add(prevBB);
+            if (prevBBs.size() < 2)
+                continue;
+
+            for (BasicBlock runner : prevBBs) {
+                while (runner != null && runner != bb.idom) {
+                    runner.domFrontier.add(bb);
+                    runner = runner.idom;
+                }
+            }
+        }
+    }
+
+    /** get common dominator by post-order (start has the largest one) */
+    private BasicBlock intersectDom(BasicBlock x, BasicBlock y) {
+        while (x != y) {
+            while (x.postOrder < y.postOrder)
+                x = x.idom;
+            while (y.postOrder < x.postOrder)
+                y = y.idom;
+        }
+        return x;
+    }
+
+    private int domCounter;
+
+    private void dfsDominatorTree(BasicBlock bb) {
+        bb.domIn = domCounter++;
+        for (BasicBlock child : bb.domChildren)
+            dfsDominatorTree(child);
+        bb.domOut = domCounter++;
+    }
+
+    /** all natural loops, outer ones first */
+    public List<Loop> loops = new ArrayList<>();
+
+    /**
+     * find natural loops by back edges (head dominates tail), set loop-nest
+     * tree, {@link BasicBlock#loopDepth}, preheaders and {@link Loop#entered}
+     * <p>
+     * will reInit dominator tree
+     */
+    public void initLoops() {
+        initDominatorTree();
+        loops.clear();
+
+        Map<BasicBlock, Loop> headerLoop = new LinkedHashMap<>();
+        for (BasicBlock bb : reversePostOrder) {
+            bb.loop = null;
+            bb.loopDepth = 0;
+
+            for (BasicBlock prevBB : bb.getPrev()) {
+                if (prevBB.idom == null && prevBB != start || !bb.dominates(prevBB))
+                    continue;
+
+                Loop loop = headerLoop.computeIfAbsent(bb, Loop::new);
+                loop.latches.add(prevBB);
+
+                // body: reach latch backward without passing header
+                Deque<BasicBlock> worklist = new ArrayDeque<>();
+                worklist.add(prevBB);
+                while (!worklist.isEmpty()) {
+                    BasicBlock cur = worklist.poll();
+                    if (cur.idom == null && cur != start) // unreachable
+                        continue;
+                    if (loop.blocks.add(cur))
+                        worklist.addAll(cur.getPrev());
+                }
+            }
+        }
+
+        // nest: the smallest loop containing the header (outer first)
+        loops.addAll(headerLoop.values());
+        loops.sort((x, y) -> y.blocks.size() - x.blocks.size());
+        for (int i = 0; i < loops.size(); ++i) {
+            Loop loop = loops.get(i);
+            for (int j = i - 1; j >= 0; --j) {
+                if (loops.get(j).contains(loop.getHeader())) {
+                    loop.parent = loops.get(j);
+                    loop.parent.children.add(loop);
+                    break;
+                }
+            }
+        }
+
+        for (Loop loop : loops)
+            for (BasicBlock bb : loop.blocks)
+                loop.addBlock(bb);
+
+        // a reg defined twice: not in SSA
+        Map<Register, Quad> defs = new HashMap<>();
+        boolean inSSA = true;
+        for (BasicBlock bb : reversePostOrder)
+            for (Quad inst : bb.getInsts())
+                if (inst.getDefinedRegister() != null)
+                    inSSA &= defs.put(inst.getDefinedRegister(), inst) == null;
+        for (Loop loop : loops)
+            loop.initEntry(inSSA ? defs : null);
+    }
+
+    /**
+     * reset prev and next of reachable BBs by their jump insts (some passes
+     * only retarget jumps), BB-order is reInit
+     */
+    public void initLinks() {
+        Set<BasicBlock> reachable = new LinkedHashSet<>();
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        worklist.add(start);
+        while (!worklist.isEmpty()) {
+            BasicBlock bb = worklist.poll();
+            if (reachable.add(bb))
+                worklist.addAll(jumpTargets(bb));
+        }
+
+        for (BasicBlock bb : reachable) {
+            bb.getPrev().clear();
+            bb.getNext().clear();
+        }
+        for (BasicBlock bb : reachable)
+            for (BasicBlock nextBB : jumpTargets(bb)) {
+                bb.getNext().add(nextBB);
+                nextBB.addPrev(bb);
+            }
+
+        initReversePreOrder();
+        initReversePostOrder();
+    }
+
+    private List<BasicBlock> jumpTargets(BasicBlock bb) {
+        Quad last = bb.getInsts().getLast();
+        if (last instanceof Jump)
+            return Arrays.asList(((Jump) last).getTarget());
+        if (last instanceof CJump)
+            return Arrays.asList(((CJump) last).getThen(), ((CJump) last).getElse());
+        return Collections.emptyList();
+    }
+
     public void setNewGraph(BasicBlock newStart, BasicBlock newEnd) {
         start = newStart;
         end = newEnd;
@@ -15,6 +15,8 @@ import mxcompiler.utils.Dump;
 public class HeapAlloc extends Quad {
     private RegValue dst;
     private RegValue allocSize;
+    private boolean inline = false;
+    private boolean onStack = false;
 
     public HeapAlloc(BasicBlock parent, RegValue destion, RegValue allocSize) {
         super(parent);
@@ -33,6 +35,27 @@ public class HeapAlloc extends Quad {
         return allocSize;
     }
 
+    /** bump of the arena dumped inline, no call around it (set by MemAndStack) */
+    public boolean isInline() {
+        return inline;
+    }
+
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    /**
+     * the object never escapes (set by EscapeAnalysis), MemAndStack gives it
+     * words of the frame
+     */
+    public boolean isOnStack() {
+        return onStack;
+    }
+
+    public void setOnStack(boolean onStack) {
+        this.onStack = onStack;
+    }
+
     @Override
     public HeapAlloc copyRename(Map<Object, Object> renameMap) {
         return new HeapAlloc((BasicBlock) renameMap.getOrDefault(parent, parent),
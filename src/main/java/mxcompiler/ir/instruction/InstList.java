@@ -0,0 +1,242 @@
+package mxcompiler.ir.instruction;
+
+import java.util.*;
+
+import mxcompiler.error.CompileError;
+
+
+/**
+ * intrusive doubly-linked list of insts in a BB, linked by
+ * {@link Quad#getPrevInst()} and {@link Quad#getNextInst()}
+ * <p>
+ * no node is allocated, insert and remove next to an inst are O(1), an inst
+ * can only be in one list at a time
+ * <p>
+ * ListIterator works as LinkedList's does
+ */
+public class InstList extends AbstractSequentialList<Quad> {
+    private Quad head = null, tail = null;
+    private int size = 0;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public Quad getFirst() {
+        if (head == null)
+            throw new NoSuchElementException();
+        return head;
+    }
+
+    public Quad getLast() {
+        if (tail == null)
+            throw new NoSuchElementException();
+        return tail;
+    }
+
+    public void addFirst(Quad inst) {
+        insertBefore(head, inst);
+    }
+
+    public void addLast(Quad inst) {
+        insertBefore(null, inst);
+    }
+
+    @Override
+    public boolean add(Quad inst) {
+        insertBefore(null, inst);
+        return true;
+    }
+
+    public Quad removeFirst() {
+        Quad inst = getFirst();
+        unlink(inst);
+        return inst;
+    }
+
+    public Quad removeLast() {
+        Quad inst = getLast();
+        unlink(inst);
+        return inst;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Quad && ((Quad) o).owner == this;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o))
+            return false;
+        unlink((Quad) o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        while (head != null)
+            unlink(head);
+    }
+
+    // region link
+    /** insert inst before pos, at last if pos is null */
+    public void insertBefore(Quad pos, Quad inst) {
+        if (inst.owner != null)
+            throw new CompileError("inst is already in a BB");
+        if (pos != null && pos.owner != this)
+            throw new CompileError("insert position is not in this BB");
+
+        inst.owner = this;
+        inst.next = pos;
+        inst.prev = (pos == null) ? tail : pos.prev;
+        if (inst.prev == null)
+            head = inst;
+        else
+            inst.prev.next = inst;
+        if (pos == null)
+            tail = inst;
+        else
+            pos.prev = inst;
+
+        ++size;
+        ++modCount;
+    }
+
+    /** insert inst after pos */
+    public void insertAfter(Quad pos, Quad inst) {
+        if (pos.owner != this)
+            throw new CompileError("insert position is not in this BB");
+        insertBefore(pos.next, inst);
+    }
+
+    public void unlink(Quad inst) {
+        if (inst.owner != this)
+            throw new CompileError("inst is not in this BB");
+
+        if (inst.prev == null)
+            head = inst.next;
+        else
+            inst.prev.next = inst.next;
+        if (inst.next == null)
+            tail = inst.prev;
+        else
+            inst.next.prev = inst.prev;
+
+        inst.owner = null;
+        inst.prev = inst.next = null;
+        --size;
+        ++modCount;
+    }
+    // endregion
+
+    // region iterator
+    @Override
+    public ListIterator<Quad> listIterator(int index) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return new Iter(index);
+    }
+
+    private class Iter implements ListIterator<Quad> {
+        private Quad nextInst; // null at end
+        private Quad lastReturned = null;
+        private int nextIndex;
+        private int expectedModCount = modCount;
+
+        Iter(int index) {
+            nextIndex = index;
+            if (index == size) {
+                nextInst = null;
+            } else if (index < (size >> 1)) {
+                nextInst = head;
+                for (int i = 0; i < index; ++i)
+                    nextInst = nextInst.next;
+            } else {
+                nextInst = tail;
+                for (int i = size - 1; i > index; --i)
+                    nextInst = nextInst.prev;
+            }
+        }
+
+        public boolean hasNext() {
+            return nextIndex < size;
+        }
+
+        public Quad next() {
+            checkModCount();
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            lastReturned = nextInst;
+            nextInst = nextInst.next;
+            ++nextIndex;
+            return lastReturned;
+        }
+
+        public boolean hasPrevious() {
+            return nextIndex > 0;
+        }
+
+        public Quad previous() {
+            checkModCount();
+            if (!hasPrevious())
+                throw new NoSuchElementException();
+
+            lastReturned = nextInst = (nextInst == null) ? tail : nextInst.prev;
+            --nextIndex;
+            return lastReturned;
+        }
+
+        public int nextIndex() {
+            return nextIndex;
+        }
+
+        public int previousIndex() {
+            return nextIndex - 1;
+        }
+
+        public void remove() {
+            checkModCount();
+            if (lastReturned == null)
+                throw new IllegalStateException();
+
+            Quad lastNext = lastReturned.next;
+            unlink(lastReturned);
+            if (nextInst == lastReturned)
+                nextInst = lastNext;
+            else
+                --nextIndex;
+            lastReturned = null;
+            expectedModCount = modCount;
+        }
+
+        public void set(Quad inst) {
+            checkModCount();
+            if (lastReturned == null)
+                throw new IllegalStateException();
+
+            insertBefore(lastReturned, inst);
+            unlink(lastReturned);
+            if (nextInst == lastReturned)
+                nextInst = inst;
+            lastReturned = inst;
+            expectedModCount = modCount;
+        }
+
+        public void add(Quad inst) {
+            checkModCount();
+            insertBefore(nextInst, inst);
+            lastReturned = null;
+            ++nextIndex;
+            expectedModCount = modCount;
+        }
+
+        private void checkModCount() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+    // endregion
+}
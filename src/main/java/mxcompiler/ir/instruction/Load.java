@@ -34,6 +34,11 @@ public class Load extends MemQuad {
         this.isLoadAddr = isLoadAddr;
     }
 
+    /** load the address of static data, not its value */
+    public boolean isLoadAddr() {
+        return isLoadAddr;
+    }
+
     /** seen at {@link #MemQuad.getValue()} */
     public Register getDst() {
         return (Register) getValue();
@@ -46,9 +51,13 @@ public class Load extends MemQuad {
                     (Register) renameMap.getOrDefault(value, value), size,
                     (StaticData) renameMap.getOrDefault(baseAddr, baseAddr), isLoadAddr);
         } else {
-            return new Load((BasicBlock) renameMap.getOrDefault(parent, parent),
+            Load load = new Load((BasicBlock) renameMap.getOrDefault(parent, parent),
                     (Register) renameMap.getOrDefault(value, value), size,
                     (RegValue) renameMap.getOrDefault(baseAddr, baseAddr), offset);
+            if (index != null)
+                load.setIndex((RegValue) renameMap.getOrDefault(index, index), scale);
+            load.setAliasTag(aliasTag);
+            return load;
         }
     }
 
@@ -59,7 +68,11 @@ public class Load extends MemQuad {
         usedRegValues.clear();
         if (baseAddr instanceof Register && !(baseAddr instanceof StackSlot))
             usedRegisters.add((Register) baseAddr);
+        if (index instanceof Register)
+            usedRegisters.add((Register) index);
         usedRegValues.add(baseAddr);
+        if (index != null)
+            usedRegValues.add(index);
     }
 
     /** {@inheritDoc} */
@@ -67,6 +80,8 @@ public class Load extends MemQuad {
     public void setUsedRegisters(Map<Register, Register> renameMap) {
         if (baseAddr instanceof Register && !(baseAddr instanceof StackSlot))
             baseAddr = renameMap.get(baseAddr);
+        if (index instanceof Register)
+            index = renameMap.get(index);
         reloadUsedRegs();
     }
 
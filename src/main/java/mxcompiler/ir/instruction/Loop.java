@@ -0,0 +1,200 @@
+package mxcompiler.ir.instruction;
+
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.ir.register.*;
+
+
+/**
+ * natural loop, seen at {@link Function#initLoops()}
+ * <p>
+ * all back edges to the same header are merged into one loop
+ */
+public class Loop {
+    private final BasicBlock header;
+
+    public Loop parent = null;
+    public List<Loop> children = new ArrayList<>();
+
+    /** include header and BBs of nested loops */
+    public Set<BasicBlock> blocks = new LinkedHashSet<>();
+    /** BBs with a back edge to header */
+    public Set<BasicBlock> latches = new HashSet<>();
+
+    /**
+     * only prev of header outside loop, which only jumps to header, null if
+     * none (LICM creates one)
+     */
+    public BasicBlock preheader = null;
+
+    /**
+     * the header is the only exit and goes into the loop at first, so a BB
+     * dominating latches runs once. Proven in SSA only: the edge of the
+     * header into the loop is i < n (or i <= n), i a phi of the header, n
+     * invariant, and init < n (init <= n) is an edge fact dominating the
+     * header or of constants
+     */
+    public boolean entered = false;
+
+    public Loop(BasicBlock header) {
+        this.header = header;
+        blocks.add(header);
+    }
+
+    public BasicBlock getHeader() {
+        return header;
+    }
+
+    public int getDepth() {
+        return (parent == null) ? 1 : parent.getDepth() + 1;
+    }
+
+    public boolean contains(BasicBlock bb) {
+        return blocks.contains(bb);
+    }
+
+    /** add bb into this and all outer loops */
+    public void addBlock(BasicBlock bb) {
+        for (Loop loop = this; loop != null; loop = loop.parent)
+            loop.blocks.add(bb);
+        if (bb.loop == null || bb.loop.getDepth() < getDepth())
+            bb.loop = this;
+        bb.loopDepth = bb.loop.getDepth();
+    }
+
+    // region entry
+    /** called by {@link Function#initLoops()}, defs is null if not in SSA */
+    void initEntry(Map<Register, Quad> defs) {
+        preheader = null;
+        for (BasicBlock prevBB : header.getPrev()) {
+            if (contains(prevBB) || prevBB.idom == null && prevBB != header.getFunc().getStart())
+                continue;
+            if (preheader != null || prevBB.getNext().size() != 1) {
+                preheader = null;
+                break;
+            }
+            preheader = prevBB;
+        }
+        entered = defs != null && isEntered(defs);
+    }
+
+    private boolean isEntered(Map<Register, Quad> defs) {
+        for (BasicBlock bb : blocks)
+            for (BasicBlock nextBB : bb.getNext())
+                if (bb != header && !contains(nextBB))
+                    return false;
+
+        Quad last = header.getInsts().getLast();
+        if (!(last instanceof CJump))
+            return false;
+        CJump cjump = (CJump) last;
+        BasicBlock inside = contains(cjump.getThen()) ? cjump.getThen() : cjump.getElse();
+        Fact fact = edgeFact(header, inside, defs);
+        if (fact == null || !(defs.get(fact.lhs) instanceof Phi))
+            return false;
+
+        Phi phi = (Phi) defs.get(fact.lhs);
+        RegValue bound = fact.rhs;
+        Quad boundDef = defs.get(bound);
+        if (phi.getParent() != header || boundDef != null && contains(boundDef.getParent()))
+            return false;
+
+        RegValue init = null;
+        for (Map.Entry<BasicBlock, RegValue> path : phi.getPaths().entrySet()) {
+            if (contains(path.getKey()))
+                continue;
+            RegValue value = origin(path.getValue(), defs);
+            if (init != null && !same(init, value))
+                return false;
+            init = value;
+        }
+        if (init == null)
+            return false;
+        if (init instanceof IntImm && bound instanceof IntImm) {
+            int diff = ((IntImm) bound).getValue() - ((IntImm) init).getValue();
+            return fact.strict ? diff > 0 : diff >= 0;
+        }
+
+        // y < n (y <= n) dominates, init <= y
+        for (BasicBlock cur = header.idom; cur != null; cur = cur.idom) {
+            if (cur.getPrev().size() != 1)
+                continue;
+            Fact known = edgeFact(cur.getPrev().iterator().next(), cur, defs);
+            if (known == null || !same(known.rhs, bound) || fact.strict && !known.strict)
+                continue;
+            if (same(known.lhs, init) || init instanceof IntImm && known.lhs instanceof IntImm
+                    && ((IntImm) init).getValue() <= ((IntImm) known.lhs).getValue())
+                return true;
+        }
+        return false;
+    }
+
+    /** lhs < rhs (lhs <= rhs if not strict) */
+    private static class Fact {
+        final RegValue lhs, rhs;
+        final boolean strict;
+
+        Fact(RegValue lhs, RegValue rhs, boolean strict) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.strict = strict;
+        }
+    }
+
+    /** order the edge from prevBB to bb proves, null if none */
+    private static Fact edgeFact(BasicBlock prevBB, BasicBlock bb, Map<Register, Quad> defs) {
+        Quad last = prevBB.getInsts().getLast();
+        if (!(last instanceof CJump) || ((CJump) last).getThen() == ((CJump) last).getElse())
+            return null;
+        CJump cjump = (CJump) last;
+        Op op;
+        RegValue lhs, rhs;
+        if (cjump.isFused()) {
+            op = cjump.getOp();
+            lhs = cjump.getLhs();
+            rhs = cjump.getRhs();
+        } else if (defs.get(cjump.getCond()) instanceof Cmp) {
+            Cmp cmp = (Cmp) defs.get(cjump.getCond());
+            op = cmp.getOp();
+            lhs = cmp.getLhs();
+            rhs = cmp.getRhs();
+        } else {
+            return null;
+        }
+        lhs = origin(lhs, defs);
+        rhs = origin(rhs, defs);
+        if (!isValue(lhs) || !isValue(rhs))
+            return null;
+
+        boolean taken = cjump.getThen() == bb;
+        if (taken ? op == Op.LESS : op == Op.GREATER_EQUAL)
+            return new Fact(lhs, rhs, true);
+        if (taken ? op == Op.GREATER : op == Op.LESS_EQUAL)
+            return new Fact(rhs, lhs, true);
+        if (taken ? op == Op.LESS_EQUAL : op == Op.GREATER)
+            return new Fact(lhs, rhs, false);
+        if (taken ? op == Op.GREATER_EQUAL : op == Op.LESS)
+            return new Fact(rhs, lhs, false);
+        return null;
+    }
+
+    /** SSA value through Moves */
+    private static RegValue origin(RegValue value, Map<Register, Quad> defs) {
+        while (value instanceof VirtualRegister && defs.get(value) instanceof Move)
+            value = ((Move) defs.get(value)).getRhs();
+        return value;
+    }
+
+    /** an SSA value, a global may change between */
+    private static boolean isValue(RegValue value) {
+        return value instanceof VirtualRegister || value instanceof IntImm;
+    }
+
+    private static boolean same(RegValue x, RegValue y) {
+        if (x instanceof IntImm && y instanceof IntImm)
+            return ((IntImm) x).getValue() == ((IntImm) y).getValue();
+        return x == y;
+    }
+    // endregion
+}
@@ -1,13 +1,76 @@
 package mxcompiler.ir.instruction;
 
+import mxcompiler.ir.AliasTag;
 import mxcompiler.ir.register.RegValue;
 
-/** abstract class for Load and Move */
+/**
+ * abstract class for Load and Move
+ * <p>
+ * address: [baseAddr + index*scale + offset], index is null unless folded
+ * by AddressModeFold
+ */
 abstract public class MemQuad extends Quad {
     public RegValue baseAddr;
     public int offset;
     protected boolean isStaticData;
 
+    protected RegValue index = null;
+    protected int scale = 1;
+    protected AliasTag aliasTag = null;
+
+    public RegValue getIndex() {
+        return index;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    /** scale is 1, 2, 4 or 8 */
+    public void setIndex(RegValue index, int scale) {
+        this.index = index;
+        this.scale = scale;
+        reloadUsedRegs();
+    }
+
+    /** same address, value and size */
+    public boolean sameAccess(MemQuad other) {
+        return sameAddress(other) && value == other.value;
+    }
+
+    /** same address and size, the regs must be unchanged between (as in SSA) */
+    public boolean sameAddress(MemQuad other) {
+        return baseAddr == other.baseAddr && offset == other.offset && index == other.index
+                && scale == other.scale && size == other.size
+                && isStaticData == other.isStaticData;
+    }
+
+    /** of a heap Load or Store, null if unknown */
+    public AliasTag getAliasTag() {
+        return aliasTag;
+    }
+
+    public void setAliasTag(AliasTag aliasTag) {
+        this.aliasTag = aliasTag;
+    }
+
+    /**
+     * may two Loads or Stores overlap: static data only by itself (and heap
+     * ones without tag), heap ones by {@link AliasTag#mayAlias}, except at
+     * apart offsets of one address
+     */
+    public boolean mayAlias(MemQuad other) {
+        if (isStaticData && other.isStaticData)
+            return baseAddr == other.baseAddr;
+        if (isStaticData || other.isStaticData)
+            return (isStaticData ? other.aliasTag : aliasTag) == null;
+
+        if (baseAddr == other.baseAddr && index == other.index && scale == other.scale
+                && (offset + size <= other.offset || other.offset + other.size <= offset))
+            return false;
+        return AliasTag.mayAlias(aliasTag, other.aliasTag);
+    }
+
     protected RegValue value; // Register
 
     /**
@@ -40,6 +40,7 @@ public class Move extends MemQuad {
      */
     public void setRhs(RegValue rhs) {
         this.rhs = rhs;
+        reloadUsedRegs();
     }
 
     /** {@inheritDoc} */
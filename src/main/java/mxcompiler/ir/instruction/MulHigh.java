@@ -0,0 +1,90 @@
+package mxcompiler.ir.instruction;
+
+import java.util.Map;
+
+import mxcompiler.error.CompileError;
+import mxcompiler.ir.IRVisitor;
+import mxcompiler.ir.register.RegValue;
+import mxcompiler.ir.register.Register;
+import mxcompiler.utils.Dump;
+
+
+/**
+ * dst = high 64 bits of the signed 128-bit lhs * magic
+ * <p>
+ * made by StrengthReduction for division by constant, magic does not fit
+ * in IntImm
+ */
+public class MulHigh extends Quad {
+    private RegValue dst;
+    private RegValue lhs;
+    private long magic;
+
+    public MulHigh(BasicBlock parent, RegValue destion, RegValue lhs, long magic) {
+        super(parent);
+        if (!(destion instanceof Register))
+            throw new CompileError("Error mul high");
+        this.dst = destion;
+        this.lhs = lhs;
+        this.magic = magic;
+        reloadUsedRegs();
+    }
+
+    public Register getDst() {
+        return (Register) dst;
+    }
+
+    public RegValue getLhs() {
+        return lhs;
+    }
+
+    public long getMagic() {
+        return magic;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MulHigh copyRename(Map<Object, Object> renameMap) {
+        return new MulHigh((BasicBlock) renameMap.getOrDefault(parent, parent),
+                (Register) renameMap.getOrDefault(dst, dst),
+                (RegValue) renameMap.getOrDefault(lhs, lhs), magic);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void reloadUsedRegs() {
+        usedRegisters.clear();
+        usedRegValues.clear();
+        if (lhs instanceof Register)
+            usedRegisters.add((Register) lhs);
+        usedRegValues.add(lhs);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setUsedRegisters(Map<Register, Register> renameMap) {
+        if (lhs instanceof Register)
+            lhs = renameMap.get(lhs);
+        reloadUsedRegs();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Register getDefinedRegister() {
+        return (Register) dst;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setDefinedRegister(Register vreg) {
+        dst = vreg;
+    }
+
+    public void accept(IRVisitor visitor) {
+        visitor.visit(this);
+    }
+
+    public void _dump(Dump d) {
+        d.println("mul-high");
+    }
+}
@@ -0,0 +1,110 @@
+package mxcompiler.ir.instruction;
+
+import java.util.*;
+
+import mxcompiler.error.CompileError;
+import mxcompiler.ir.IRVisitor;
+import mxcompiler.ir.register.IntImm;
+import mxcompiler.ir.register.RegValue;
+import mxcompiler.ir.register.Register;
+import mxcompiler.utils.Dump;
+
+
+/**
+ * phi-function, only lives between SSA construct and destruct
+ * <p>
+ * {@code dst = phi [prevBB_0, value_0], [prevBB_1, value_1] ...}
+ * <p>
+ * always at the beginning of a BasicBlock
+ */
+public class Phi extends Quad {
+    private RegValue dst;
+    private Map<BasicBlock, RegValue> paths = new LinkedHashMap<>();
+
+    public Phi(BasicBlock parent, RegValue destion) {
+        super(parent);
+        if (!(destion instanceof Register))
+            throw new CompileError("Error init phi destion");
+        this.dst = destion;
+    }
+
+    public Register getDst() {
+        return (Register) dst;
+    }
+
+    /** prevBB -> value */
+    public Map<BasicBlock, RegValue> getPaths() {
+        return paths;
+    }
+
+    public void setPath(BasicBlock bb, RegValue value) {
+        paths.put(bb, value);
+        reloadUsedRegs();
+    }
+
+    public void delPath(BasicBlock bb) {
+        paths.remove(bb);
+        reloadUsedRegs();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Phi copyRename(Map<Object, Object> renameMap) {
+        Phi phi = new Phi((BasicBlock) renameMap.getOrDefault(parent, parent),
+                (Register) renameMap.getOrDefault(dst, dst));
+        paths.forEach((bb, value) -> phi.setPath((BasicBlock) renameMap.getOrDefault(bb, bb),
+                (RegValue) renameMap.getOrDefault(value, value)));
+        return phi;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void reloadUsedRegs() {
+        usedRegisters.clear();
+        usedRegValues.clear();
+        for (RegValue value : paths.values()) {
+            if (value instanceof Register)
+                usedRegisters.add((Register) value);
+            usedRegValues.add(value);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setUsedRegisters(Map<Register, Register> renameMap) {
+        for (Map.Entry<BasicBlock, RegValue> path : paths.entrySet()) {
+            if (path.getValue() instanceof Register)
+                path.setValue(renameMap.getOrDefault(path.getValue(), (Register) path.getValue()));
+        }
+        reloadUsedRegs();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Register getDefinedRegister() {
+        return (Register) dst;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setDefinedRegister(Register vreg) {
+        dst = vreg;
+    }
+
+    public void accept(IRVisitor visitor) {
+        visitor.visit(this);
+    }
+
+    /** {@code dst = phi [prevBB_0: value_0, prevBB_1: value_1 ...]} */
+    public void _dump(Dump d) {
+        StringJoiner values = new StringJoiner(", ", "[", "]");
+        paths.forEach((bb, value) -> values.add(bb.getName() + ": " + nameOf(value)));
+        d.println(getDst().getName() + " = phi " + values);
+    }
+
+    private static String nameOf(RegValue value) {
+        if (value instanceof IntImm)
+            return Integer.toString(((IntImm) value).getValue());
+        return (value instanceof Register) ? ((Register) value).getName() : "undef";
+    }
+}
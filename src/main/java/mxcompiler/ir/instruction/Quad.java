@@ -19,12 +19,29 @@ abstract public class Quad {
     protected BasicBlock parent;
     public boolean removed = false;
 
-    public Set<VirtualRegister> liveIn = new HashSet<>(), liveOut = new HashSet<>();
+    /** set by {@link mxcompiler.main.Lifeness} after block-level analysis */
+    public Set<VirtualRegister> liveIn = Collections.emptySet(),
+            liveOut = Collections.emptySet();
 
     public Quad(BasicBlock bb) {
         this.parent = bb;
     }
 
+    // region links, seen at {@link InstList}
+    InstList owner = null;
+    Quad prev = null, next = null;
+
+    /** null if first */
+    public Quad getPrevInst() {
+        return prev;
+    }
+
+    /** null if last */
+    public Quad getNextInst() {
+        return next;
+    }
+    // endregion
+
     public BasicBlock getParent() {
         return parent;
     }
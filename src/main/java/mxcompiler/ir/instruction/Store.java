@@ -38,9 +38,13 @@ public class Store extends MemQuad {
                     (RegValue) renameMap.getOrDefault(value, value), size,
                     (StaticData) renameMap.getOrDefault(baseAddr, baseAddr));
         } else {
-            return new Store((BasicBlock) renameMap.getOrDefault(parent, parent),
+            Store store = new Store((BasicBlock) renameMap.getOrDefault(parent, parent),
                     (RegValue) renameMap.getOrDefault(value, value), size,
                     (RegValue) renameMap.getOrDefault(baseAddr, baseAddr), offset);
+            if (index != null)
+                store.setIndex((RegValue) renameMap.getOrDefault(index, index), scale);
+            store.setAliasTag(aliasTag);
+            return store;
         }
     }
 
@@ -51,9 +55,13 @@ public class Store extends MemQuad {
         usedRegValues.clear();
         if (baseAddr instanceof Register && !(baseAddr instanceof StackSlot))
             usedRegisters.add((Register) baseAddr);
+        if (index instanceof Register)
+            usedRegisters.add((Register) index);
         if (value instanceof Register)
             usedRegisters.add((Register) value);
         usedRegValues.add(baseAddr);
+        if (index != null)
+            usedRegValues.add(index);
         usedRegValues.add(value);
     }
 
@@ -62,6 +70,8 @@ public class Store extends MemQuad {
     public void setUsedRegisters(Map<Register, Register> renameMap) {
         if (baseAddr instanceof Register && !(baseAddr instanceof StackSlot))
             baseAddr = renameMap.get(baseAddr);
+        if (index instanceof Register)
+            index = renameMap.get(index);
         if (value instanceof Register)
             value = renameMap.get(value);
         reloadUsedRegs();
@@ -0,0 +1,36 @@
+package mxcompiler.main;
+
+import mxcompiler.error.OptionError;
+
+
+/**
+ * memory of HeapAlloc and builtIn strings, by -falloc=
+ * <p>
+ * malloc (the default): call malloc of libc for each one
+ * <p>
+ * arena: bump a pointer in chunks got by mmap, never freed (as with malloc,
+ * nothing is freed)
+ */
+public enum Allocator {
+	MALLOC("malloc", "malloc"), ARENA("arena", "__builtin_arena_alloc");
+
+	private final String option;
+	private final String label;
+
+	Allocator(String option, String label) {
+		this.option = option;
+		this.label = label;
+	}
+
+	/** called with size in rdi, as malloc */
+	public String getLabel() {
+		return label;
+	}
+
+	static public Allocator fromOption(String opt) throws OptionError {
+		for (Allocator allocator : values())
+			if (allocator.option.equals(opt))
+				return allocator;
+		throw new OptionError("unknown allocator: " + opt);
+	}
+}
@@ -6,9 +6,10 @@ import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
 import mxcompiler.ir.register.*;
 import mxcompiler.ast.expression.*;
+import mxcompiler.main.PassManager.Analysis;
 
 
-public class BinaryDstEqualLhs {
+public class BinaryDstEqualLhs implements Pass {
     public final Root root;
 
     public BinaryDstEqualLhs(Root root) {
@@ -16,13 +17,16 @@ public class BinaryDstEqualLhs {
     }
 
 
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
     public void execute() {
         for (Function irFunc : root.getFunc().values())
             for (BasicBlock bb : irFunc.getReversePostOrder()) {
-                ListIterator<Quad> iter = bb.getInsts().listIterator();
-
-                while (iter.hasNext()) { // Solved: iter.next outside
-                    Quad next = iter.next();
+                for (Quad next = bb.getInsts().getFirst(); next != null;
+                        next = next.getNextInst()) {
                     if (!(next instanceof Bin) || next instanceof Cmp)
                         continue;
 
@@ -37,16 +41,15 @@ public class BinaryDstEqualLhs {
                             bin.setRhs(tmp);
                         } else {
                             VirtualRegister vreg = new VirtualRegister("rhs_backup");
-                            bb.addBeforeInst(iter, new Move(bb, vreg, bin.getRhs()));
-                            bb.addBeforeInst(iter,
-                                    new Move(bb, bin.getDst(), bin.getLhs()));
+                            bb.addBefore(bin, new Move(bb, vreg, bin.getRhs()));
+                            bb.addBefore(bin, new Move(bb, bin.getDst(), bin.getLhs()));
 
                             bin.setLhs(bin.getDst());
                             bin.setRhs(vreg);
                         }
                     } else if (bin.getOp() != BinaryOpExprNode.Op.DIV
                             && bin.getOp() != BinaryOpExprNode.Op.MOD) {
-                        bb.addBeforeInst(iter, new Move(bb, bin.getDst(), bin.getLhs()));
+                        bb.addBefore(bin, new Move(bb, bin.getDst(), bin.getLhs()));
 
                         bin.setLhs(bin.getDst());
                     }
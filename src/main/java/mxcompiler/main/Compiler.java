@@ -33,6 +33,8 @@ public final class Compiler {
 	public static void main(String[] args) throws Error {
 		Compiler c = new Compiler(ProgName);
 		c.execute(args);
+		if (c.opts.isInterpret())
+			System.exit(c.exitCode);
 	}
 
 	public Compiler(String name) {
@@ -48,20 +50,26 @@ public final class Compiler {
 			this.fileIn = (opts.sourceFile() == null) ? System.in
 					: new FileInputStream(opts.sourceFile());
 
-			this.fileOut = new PrintStream(new FileOutputStream(opts.outputFile(), false));
+			if (!opts.isInterpret())
+				this.fileOut = new PrintStream(new FileOutputStream(opts.outputFile(), false));
 
 			this.dumpOut = new PrintStream(new FileOutputStream(dumpFile, false));
 
 			compile();
 
-			fileOut.close();
+			if (fileOut != null)
+				fileOut.close();
 			dumpOut.close();
 
 			// if (opts.mode().equals(CompilerMode.Debug)) {
 			// Files.copy(opts.outputFile().toPath(), debugOut.toPath());
 			// }
 		} catch (Exception | Error e) {
-			if (opts.mode().equals(CompilerMode.Default))
+			if (opts.mode().equals(CompilerMode.Default) && opts.isInterpret()) {
+				// as a failed program: on stderr, exit 1
+				System.err.println(e.getMessage());
+				exitCode = 1;
+			} else if (opts.mode().equals(CompilerMode.Default))
 				System.out.println(e.getMessage());
 			else
 				throw new Error(e);
@@ -78,41 +86,59 @@ public final class Compiler {
 
 	private ASTNode astRoot;
 	private Root irRoot;
+	private PassManager passManager;
+	private PassStats stats = null;
+	private int exitCode = 0;
 
 	// file compiler with errorHandler
 	private void compile() throws Error {
 		try {
+			if (opts.isStats())
+				stats = new PassStats();
 
+			beginStage("parse");
 			buildAST();
+			endStage();
+
+			beginStage("semantic");
 			semanticAnalyze();
+			endStage();
 
 			buildIR();
-			generateAssembly();
+			if (opts.isInterpret())
+				interpret();
+			else
+				generateAssembly();
 
+			if (stats != null)
+				stats.dump(System.err);
 		} catch (Exception e) {
 			throw new Error(e);
 		}
 	}
 
+	private void beginStage(String name) {
+		if (stats != null)
+			stats.begin(name, irRoot);
+	}
+
+	private void endStage() {
+		if (stats != null)
+			stats.end(irRoot);
+	}
+
 	private static final String link_asm_name = "./src/main/java/mxcompiler/asm/BuiltIn.asm";
 
 	private void generateAssembly() throws Error {
 		if (opts.mode().equals(CompilerMode.Debug))
 			System.out.println("Generate asm begin");
 
-		RegisterAllocator regAllocator = new RegisterAllocator(irRoot);
-		regAllocator.execute();
-
-		MemAndStack stackAllocator = new MemAndStack(irRoot);
-		stackAllocator.execute();
+		passManager.run(passManager.asmPipeline(opts.OptimizationLevel(), opts.isLinearScan()));
 
-		if (opts.OptimizationLevel() > 0) {
-			ElimateMemQuad elimateMemQuad = new ElimateMemQuad(irRoot);
-			elimateMemQuad.execute();
-		}
-
-		AssemblyDump asm = new AssemblyDump(fileOut);
+		beginStage("AssemblyDump");
+		AssemblyDump asm = new AssemblyDump(fileOut, opts.allocator());
 		asm.dump(irRoot);
+		endStage();
 
 		// append builtIn function
 		if (opts.mode() == CompilerMode.Debug) {
@@ -136,38 +162,34 @@ public final class Compiler {
 
 	}
 
+	private void interpret() throws Error {
+		beginStage("IRInterpreter");
+		IRInterpreter interpreter = new IRInterpreter(irRoot, System.in, System.out);
+		exitCode = interpreter.run();
+		endStage();
+	}
+
 	private void buildIR() throws Error {
 		if (opts.mode().equals(CompilerMode.Debug))
 			System.out.println("IR Builder begin");
 
-		if (opts.OptimizationLevel() > 0) {
+		// accesses of unused arrays are not dropped if checked, they may fail
+		if (opts.OptimizationLevel() > 0 && !opts.isChecked()) {
 			UsagePreChecker usagePreChecker = new UsagePreChecker();
 			usagePreChecker.visit(astRoot);
 		}
 
+		beginStage("IRBuilder");
 		IRBuilder treeIrBuilder = new IRBuilder(opts);
 		irRoot = treeIrBuilder.build(astRoot);
+		endStage();
 
-		BinaryDstEqualLhs binaryDstEqualLhs = new BinaryDstEqualLhs(irRoot);
-		binaryDstEqualLhs.execute();
-
-		if (opts.OptimizationLevel() > 0) {
-			ElimateCJump elimateCJump = new ElimateCJump(irRoot);
-			elimateCJump.execute();
-
-			// DealFunc dealFunc = new DealFunc(irRoot);
-			// dealFunc.execute();
-
-			FuncallInline funcallInline = new FuncallInline(irRoot);
-			funcallInline.execute();
-
-		}
-		binaryDstEqualLhs.execute();
-
-		ElimateMutliStaticData elimateMutliStaticData = new ElimateMutliStaticData(irRoot);
-		elimateMutliStaticData.execute();
-
-		// binaryDstEqualLhs.execute();
+		passManager = new PassManager(irRoot);
+		passManager.setStats(stats);
+		passManager.setProfile(opts.profileGenerate(), opts.profileUse());
+		passManager.setAllocator(opts.allocator());
+		passManager.setChecked(opts.isChecked());
+		passManager.run(passManager.irPipeline(opts.OptimizationLevel()));
 
 		if (opts.dumpMode().contains(DumpMode.IRDump)
 				|| opts.dumpMode().contains(DumpMode.AllDump)) {
@@ -176,7 +198,9 @@ public final class Compiler {
 		} else if (opts.mode() == CompilerMode.Default) {
 			IRLeLeDump dump = new IRLeLeDump(dumpOut);
 			dump.visit(irRoot);
-			System.out.println(">>> Generate asm end");
+			// stdout of --interpret is the program's only
+			if (!opts.isInterpret())
+				System.out.println(">>> Generate asm end");
 			return;
 		}
 
@@ -182,7 +182,7 @@ public class IRBuilder extends Visitor {
                 }
 
                 visit(node.getInit());
-                dealAssign(vreg, 0, node.getInit(), node.getInit().getType().getRegSize(), false);
+                dealAssign(vreg, 0, null, node.getInit(), node.getInit().getType().getRegSize(), false);
             }
         }
     }
@@ -352,8 +352,7 @@ public class IRBuilder extends Visitor {
             curBB.setJump(new Jump(curBB, incrBB));
 
         // Quad dd = (Move) null; -> is OK
-        ListIterator<Quad> iter = tmpCurBB.getInsts().listIterator(tmpCurBB.getInsts().size() - 1);
-        Quad move = iter.hasPrevious() ? iter.previous() : null;
+        Quad move = tmpCurBB.getInsts().getLast().getPrevInst();
         if (move instanceof Move && node.getInit() instanceof AssignExprNode
                 && node.getCond() instanceof BinaryOpExprNode
                 && ((BinaryOpExprNode) node.getCond()).getOp() == BinaryOpExprNode.Op.LESS)
@@ -475,7 +474,7 @@ public class IRBuilder extends Visitor {
 
                 VirtualRegister vreg = new VirtualRegister("ret_bool_value");
                 // set assign to vreg
-                dealAssign(vreg, 0, node.getExpr(), RegValue.RegSize, false);
+                dealAssign(vreg, 0, null, node.getExpr(), RegValue.RegSize, false);
                 curBB.setJump(new Return(curBB, vreg));
             } else {
                 visit(expr);
@@ -513,8 +512,9 @@ public class IRBuilder extends Visitor {
 
             VirtualRegister vreg = new VirtualRegister(null);
             curBB.addLastInst(new Bin(curBB, vreg, op, expr.regValue, one));
-            curBB.addLastInst(
-                    new Store(curBB, vreg, RegValue.RegSize, expr.addrValue, expr.offset));
+            Store store = new Store(curBB, vreg, RegValue.RegSize, expr.addrValue, expr.offset);
+            store.setAliasTag(expr.aliasTag);
+            curBB.addLastInst(store);
 
             if (!isSuffix)
                 expr.regValue = vreg;
@@ -896,6 +896,15 @@ public class IRBuilder extends Visitor {
         }
     }
 
+    /**
+     * -fchecked: the object of an access or member call is not null. `this`
+     * is not checked, its call was
+     */
+    private void addNullCheck(ExprNode expr) {
+        if (opts.isChecked() && !(expr instanceof ThisExprNode))
+            curBB.addLastInst(new Check(curBB, expr.regValue));
+    }
+
     public void visit(MemberExprNode node) { // -> get Id or Func
         boolean tmpWantAddr = curWantAddr;
         curWantAddr = false;
@@ -910,16 +919,21 @@ public class IRBuilder extends Visitor {
 
         ClassEntity classEntity = (ClassEntity) toplevelScope.get(className);
         VarEntity memberEntity = (VarEntity) classEntity.getScope().getCur(node.getMember());
+        AliasTag aliasTag = AliasTag.field(className, memberEntity.getCurOffset());
+        addNullCheck(node.getExpr());
 
         if (curWantAddr) {
             node.addrValue = classAddr;
             node.offset = memberEntity.getCurOffset();
+            node.aliasTag = aliasTag;
         } else {
             VirtualRegister vreg = new VirtualRegister(null);
             node.regValue = vreg;
             // Pre-calced: what if FIX: class.arr ?? (can not init ??)
-            curBB.addLastInst(new Load(curBB, vreg, memberEntity.getType().getRegSize(), classAddr,
-                    memberEntity.getCurOffset()));
+            Load load = new Load(curBB, vreg, memberEntity.getType().getRegSize(), classAddr,
+                    memberEntity.getCurOffset());
+            load.setAliasTag(aliasTag);
+            curBB.addLastInst(load);
 
             if (node.getThen() != null)
                 curBB.setJump(new CJump(curBB, node.regValue, node.getThen(), node.getElse()));
@@ -939,6 +953,10 @@ public class IRBuilder extends Visitor {
 
         curWantAddr = tmpWantAddr;
 
+        addNullCheck(node.getExpr());
+        if (opts.isChecked())
+            curBB.addLastInst(new Check(curBB, node.getExpr().regValue, node.getIndex().regValue));
+
         VirtualRegister vreg = new VirtualRegister(null);
         // if still array or class, store addr,
         // if variable, store variable
@@ -951,12 +969,15 @@ public class IRBuilder extends Visitor {
         curBB.addLastInst(
                 new Bin(curBB, vreg, BinaryOpExprNode.Op.ADD, node.getExpr().regValue, vreg));
 
+        AliasTag aliasTag = AliasTag.element(node.getExpr().getType());
         if (curWantAddr) {
             node.addrValue = vreg;
             node.offset = RegValue.RegSize;
+            node.aliasTag = aliasTag;
         } else { // variable
-            curBB.addLastInst(
-                    new Load(curBB, vreg, node.getType().getRegSize(), vreg, RegValue.RegSize));
+            Load load = new Load(curBB, vreg, node.getType().getRegSize(), vreg, RegValue.RegSize);
+            load.setAliasTag(aliasTag);
+            curBB.addLastInst(load);
 
             node.regValue = vreg;
             if (node.getThen() != null)
@@ -1093,7 +1114,9 @@ public class IRBuilder extends Visitor {
         case Tool.SIZE_KEY:
             vreg = new VirtualRegister("size_or_length");
 
-            curBB.addLastInst(new Load(curBB, vreg, RegValue.RegSize, thisExpr.regValue, 0));
+            Load load = new Load(curBB, vreg, RegValue.RegSize, thisExpr.regValue, 0);
+            load.setAliasTag(AliasTag.LENGTH);
+            curBB.addLastInst(load);
             node.regValue = vreg;
             break;
 
@@ -1133,6 +1156,8 @@ public class IRBuilder extends Visitor {
 
             keyName = className + Tool.DOMAIN + keyName;
             args.add(thisExpr.regValue);
+            if (!className.equals(Tool.STRING))
+                addNullCheck(thisExpr);
         }
 
         // call built-in functions
@@ -1191,15 +1216,17 @@ public class IRBuilder extends Visitor {
 
         RegValue destion;
         int addrOffset;
+        AliasTag aliasTag = null;
         if (needMemOp) {
             destion = node.getLhs().addrValue;
             addrOffset = node.getLhs().offset;
+            aliasTag = node.getLhs().aliasTag;
         } else {
             destion = node.getLhs().regValue;
             addrOffset = 0;
         }
 
-        dealAssign(destion, addrOffset, node.getRhs(), RegValue.RegSize, needMemOp);
+        dealAssign(destion, addrOffset, aliasTag, node.getRhs(), RegValue.RegSize, needMemOp);
         node.regValue = node.getRhs().regValue;
     }
 
@@ -1229,6 +1256,7 @@ public class IRBuilder extends Visitor {
             if (curWantAddr) {
                 node.addrValue = memNode.addrValue;
                 node.offset = memNode.offset;
+                node.aliasTag = memNode.aliasTag;
             } else {
                 node.regValue = memNode.regValue;
 
@@ -1264,7 +1292,9 @@ public class IRBuilder extends Visitor {
                 new Bin(curBB, vreg, BinaryOpExprNode.Op.ADD, vreg, new IntImm(RegValue.RegSize)));
 
         curBB.addLastInst(new HeapAlloc(curBB, vreg, vreg)); // FIX: what is this ?
-        curBB.addLastInst(new Store(curBB, dim.regValue, RegValue.RegSize, vreg, 0));
+        Store lengthStore = new Store(curBB, dim.regValue, RegValue.RegSize, vreg, 0);
+        lengthStore.setAliasTag(AliasTag.LENGTH);
+        curBB.addLastInst(lengthStore);
 
         // has more idx -> need loop-alloc
         if (idx < node.getDims().size() - 1) {
@@ -1305,8 +1335,13 @@ public class IRBuilder extends Visitor {
 
         if (idx == 0) { // 1-dim
             curBB.addLastInst(new Move(curBB, oreg, vreg));
-        } else { // more dims
-            curBB.addLastInst(new Store(curBB, vreg, RegValue.RegSize, addr, 0));
+        } else { // more dims, vreg is an element of dim idx - 1
+            Type arrayType = node.getType();
+            for (int i = 1; i < idx; ++i)
+                arrayType = ((ArrayType) arrayType).getBaseType();
+            Store store = new Store(curBB, vreg, RegValue.RegSize, addr, 0);
+            store.setAliasTag(AliasTag.element(arrayType));
+            curBB.addLastInst(store);
         }
 
     }
@@ -1349,8 +1384,8 @@ public class IRBuilder extends Visitor {
      * maybe (split to then or else)add this block into curBB Assign, return,
      * varInit : processIRAssign
      */
-    private void dealAssign(RegValue destion, int addrOffset, ExprNode rhs, int size,
-            boolean needMemOp) {
+    private void dealAssign(RegValue destion, int addrOffset, AliasTag aliasTag, ExprNode rhs,
+            int size, boolean needMemOp) {
         BasicBlock thenBB, elseBB;
         thenBB = rhs.getThen();
         elseBB = rhs.getElse();
@@ -1360,10 +1395,14 @@ public class IRBuilder extends Visitor {
             // why IntImm? if has branch, no need to care value
             // FIX: BUG: TODO:still messy
             if (needMemOp) {
-                thenBB.addLastInst(
-                        new Store(thenBB, new IntImm(1), RegValue.RegSize, destion, addrOffset));
-                elseBB.addLastInst(
-                        new Store(elseBB, new IntImm(0), RegValue.RegSize, destion, addrOffset));
+                Store thenStore = new Store(thenBB, new IntImm(1), RegValue.RegSize, destion,
+                        addrOffset);
+                Store elseStore = new Store(elseBB, new IntImm(0), RegValue.RegSize, destion,
+                        addrOffset);
+                thenStore.setAliasTag(aliasTag);
+                elseStore.setAliasTag(aliasTag);
+                thenBB.addLastInst(thenStore);
+                elseBB.addLastInst(elseStore);
             } else {
                 thenBB.addLastInst(new Move(thenBB, (VirtualRegister) destion, new IntImm(1)));
                 elseBB.addLastInst(new Move(elseBB, (VirtualRegister) destion, new IntImm(0)));
@@ -1377,10 +1416,11 @@ public class IRBuilder extends Visitor {
 
             curBB = mergeBB;
         } else { // no branch
-            if (needMemOp)
-                curBB.addLastInst(
-                        new Store(curBB, rhs.regValue, RegValue.RegSize, destion, addrOffset));
-            else
+            if (needMemOp) {
+                Store store = new Store(curBB, rhs.regValue, RegValue.RegSize, destion, addrOffset);
+                store.setAliasTag(aliasTag);
+                curBB.addLastInst(store);
+            } else
                 curBB.addLastInst(new Move(curBB, (Register) destion, rhs.regValue));
         }
     }
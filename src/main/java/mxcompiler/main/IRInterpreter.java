@@ -0,0 +1,578 @@
+package mxcompiler.main;
+
+import java.io.*;
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.ast.expression.unary.PrefixExprNode;
+import mxcompiler.error.CompileError;
+import mxcompiler.ir.Root;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import static mxcompiler.utils.Tool.*;
+
+
+/**
+ * run IR of {@link Root} in JVM, for testing optimizations without nasm and
+ * for block frequencies
+ * <p>
+ * works on IR before RegisterAllocator, in SSA or not. Values are 64-bit as
+ * in registers; DIV, MOD and built-ins behave as AssemblyDump and BuiltIn.asm
+ * do, including their 32-bit parts
+ * <p>
+ * memory is one simulated heap: static strings and HeapAlloc are bump
+ * allocated in it, address 0 to BASE is invalid. A HeapAlloc on stack gets
+ * its words once per frame and reuses them at each run, as its slot of the
+ * native frame (they are not reclaimed at return)
+ */
+public class IRInterpreter {
+    private static final long BASE = 0x10000;
+
+    private final Root root;
+    private final InputStream in;
+    private final PrintStream out;
+
+    private long maxQuads = Long.MAX_VALUE;
+    private long executedQuads = 0;
+
+    public IRInterpreter(Root root, InputStream in, PrintStream out) {
+        this.root = root;
+        this.in = in;
+        this.out = out;
+    }
+
+    /** stop with CompileError after n quads, for programs that may not end */
+    public void setMaxQuads(long n) {
+        maxQuads = n;
+    }
+
+    // region profile
+    private static class BlockInfo {
+        final Quad first;
+        final int size;
+        long count = 0;
+
+        BlockInfo(BasicBlock bb) {
+            first = bb.getInsts().isEmpty() ? null : bb.getInsts().getFirst();
+            size = bb.getInsts().size();
+        }
+    }
+
+    private final Map<BasicBlock, BlockInfo> blocks = new HashMap<>();
+
+    private BlockInfo info(BasicBlock bb) {
+        BlockInfo info = blocks.get(bb);
+        if (info == null) {
+            info = new BlockInfo(bb);
+            blocks.put(bb, info);
+        }
+        return info;
+    }
+
+    /** times bb is entered, 0 if never */
+    public long getBlockCount(BasicBlock bb) {
+        BlockInfo info = blocks.get(bb);
+        return (info == null) ? 0 : info.count;
+    }
+
+    /** quads executed in bb */
+    public long getQuadCount(BasicBlock bb) {
+        BlockInfo info = blocks.get(bb);
+        return (info == null) ? 0 : info.count * info.size;
+    }
+
+    /** entered blocks only */
+    public Set<BasicBlock> getExecutedBlocks() {
+        return Collections.unmodifiableSet(blocks.keySet());
+    }
+
+    public long getExecutedQuads() {
+        return executedQuads;
+    }
+    // endregion
+
+    // region memory
+    private byte[] heap = new byte[1 << 16];
+    private long heapTop = BASE;
+
+    private final Map<StaticData, Long> globals = new HashMap<>();
+    private final Map<StaticString, Long> strings = new HashMap<>();
+    /** static vars whose address is loaded, e.g. profile counters */
+    private final Map<StaticData, Long> staticAddrs = new HashMap<>();
+
+    private long malloc(long size) {
+        if (size < 0 || size > Integer.MAX_VALUE)
+            throw new CompileError("bad HeapAlloc size: " + size);
+
+        long addr = heapTop;
+        heapTop += (size + 7) & ~7L;
+        if (heapTop - BASE > Integer.MAX_VALUE)
+            throw new CompileError("out of memory");
+        if (heapTop - BASE > heap.length)
+            heap = Arrays.copyOf(heap, (int) Math.min(Integer.MAX_VALUE, Math.max(heapTop - BASE, 2L * heap.length)));
+        return addr;
+    }
+
+    private int index(long addr, int size) {
+        if (addr < BASE || addr + size > heapTop)
+            throw new CompileError(String.format("segmentation fault at 0x%x", addr));
+        return (int) (addr - BASE);
+    }
+
+    private long load(long addr, int size) {
+        int idx = index(addr, size);
+        long value = 0;
+        for (int i = size - 1; i >= 0; --i)
+            value = (value << 8) | (heap[idx + i] & 0xFF);
+        return value;
+    }
+
+    private void store(long addr, int size, long value) {
+        int idx = index(addr, size);
+        for (int i = 0; i < size; ++i, value >>= 8)
+            heap[idx + i] = (byte) value;
+    }
+
+    /** as Mx string: length at [p], chars from p+8, ended by 0 */
+    private long newString(byte[] chars) {
+        long addr = malloc(chars.length + 9);
+        store(addr, 8, chars.length);
+        System.arraycopy(chars, 0, heap, index(addr + 8, chars.length), chars.length);
+        return addr;
+    }
+
+    private byte[] readString(long addr) {
+        int len = (int) load(addr, 8);
+        return Arrays.copyOfRange(heap, index(addr + 8, len), index(addr + 8, len) + len);
+    }
+
+    private long staticString(StaticString str) {
+        Long addr = strings.get(str);
+        if (addr == null) {
+            byte[] chars = new byte[str.getValue().length()];
+            for (int i = 0; i < chars.length; ++i)
+                chars[i] = (byte) str.getValue().charAt(i);
+            addr = newString(chars);
+            strings.put(str, addr);
+        }
+        return addr;
+    }
+
+    private long staticAddr(StaticData data) {
+        if (data instanceof StaticString)
+            return staticString((StaticString) data);
+
+        Long addr = staticAddrs.get(data);
+        if (addr == null) {
+            addr = malloc(data.getSize());
+            staticAddrs.put(data, addr);
+        }
+        return addr;
+    }
+    // endregion
+
+    // region execute
+    private static class Frame {
+        final Function func;
+        final Funcall caller; // null for main
+        final Map<Register, Long> regs = new HashMap<>();
+        /** address of each HeapAlloc on stack run in the frame */
+        final Map<HeapAlloc, Long> stackAllocs = new HashMap<>();
+        Quad pc;
+
+        Frame(Function func, Funcall caller) {
+            this.func = func;
+            this.caller = caller;
+        }
+    }
+
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /** run main, return its value as exit code of the program */
+    public int run() {
+        Function main = root.getFunc("main");
+        if (main == null)
+            throw new CompileError("no main function");
+
+        long ret = 0;
+        try {
+            call(main, new ArrayList<>(), null);
+            while (!stack.isEmpty()) {
+                Frame frame = stack.peek();
+                Quad inst = frame.pc;
+                if (inst == null)
+                    throw new CompileError("no jump at end of block in " + frame.func.getName());
+                frame.pc = inst.getNextInst();
+                ret = execute(frame, inst);
+            }
+        } finally {
+            out.flush();
+        }
+        return (int) (ret & 0xFF);
+    }
+
+    private void call(Function func, List<Long> args, Funcall caller) {
+        if (func.getStart() == null)
+            throw new CompileError("function without body: " + func.getName());
+        if (func.argVregs.size() != args.size())
+            throw new CompileError("wrong number of args to " + func.getName());
+
+        Frame frame = new Frame(func, caller);
+        for (int i = 0; i < args.size(); ++i)
+            frame.regs.put(func.argVregs.get(i), args.get(i));
+        stack.push(frame);
+        enter(frame, func.getStart(), null);
+    }
+
+    /** phis at the head of bb read their value together, by the edge from prev */
+    private void enter(Frame frame, BasicBlock bb, BasicBlock prev) {
+        BlockInfo info = info(bb);
+        ++info.count;
+        executedQuads += info.size;
+        if (executedQuads > maxQuads)
+            throw new CompileError("more than " + maxQuads + " quads executed");
+
+        Quad inst = info.first;
+        if (inst instanceof Phi) {
+            Map<Register, Long> values = new HashMap<>();
+            for (; inst instanceof Phi; inst = inst.getNextInst()) {
+                Phi phi = (Phi) inst;
+                RegValue value = phi.getPaths().get(prev);
+                if (value == null)
+                    throw new CompileError("phi without path from " + (prev == null ? "entry" : prev.getName()));
+                values.put(phi.getDst(), read(frame, value));
+            }
+            frame.regs.putAll(values);
+        }
+        frame.pc = inst;
+    }
+
+    /** return value if inst is Return, else 0 */
+    private long execute(Frame frame, Quad inst) {
+        if (inst instanceof Cmp) {
+            Cmp cmp = (Cmp) inst;
+            write(frame, cmp.getDst(), compare(cmp.getOp(), read(frame, cmp.getLhs()), read(frame, cmp.getRhs())));
+        } else if (inst instanceof Bin) {
+            Bin bin = (Bin) inst;
+            write(frame, bin.getDst(), binary(bin.getOp(), read(frame, bin.getLhs()), read(frame, bin.getRhs())));
+        } else if (inst instanceof Check) {
+            Check check = (Check) inst;
+            long pointer = read(frame, check.getPointer());
+            if (pointer == 0)
+                throw new CompileError("null pointer access");
+            if (check.getKind() == Check.Kind.BOUNDS && Long.compareUnsigned(
+                    read(frame, check.getIndex()), load(pointer, RegValue.RegSize)) >= 0)
+                throw new CompileError("index out of bounds");
+        } else if (inst instanceof MulHigh) {
+            MulHigh mul = (MulHigh) inst;
+            write(frame, mul.getDst(), Math.multiplyHigh(read(frame, mul.getLhs()), mul.getMagic()));
+        } else if (inst instanceof Uni) {
+            Uni uni = (Uni) inst;
+            long value = read(frame, uni.getRhs());
+            write(frame, uni.getDst(), (uni.getOp() == PrefixExprNode.Op.NEGA) ? -value : ~value);
+        } else if (inst instanceof Move) {
+            Move move = (Move) inst;
+            write(frame, (Register) move.getDst(), read(frame, move.getRhs()));
+        } else if (inst instanceof Load) {
+            Load load = (Load) inst;
+            long value;
+            if (load.isLoadAddr())
+                value = staticAddr((StaticData) load.baseAddr);
+            else if (load.isStaticData())
+                value = read(frame, load.baseAddr);
+            else
+                value = load(address(frame, load), load.getSize());
+            write(frame, load.getDst(), value);
+        } else if (inst instanceof Store) {
+            Store st = (Store) inst;
+            long value = read(frame, st.getValue());
+            if (st.isStaticData())
+                write(frame, (Register) st.baseAddr, value);
+            else
+                store(address(frame, st), st.getSize(), value);
+        } else if (inst instanceof HeapAlloc) {
+            HeapAlloc alloc = (HeapAlloc) inst;
+            long size = read(frame, alloc.getAllocSize());
+            Long addr = alloc.isOnStack() ? frame.stackAllocs.get(alloc) : null;
+            if (addr == null) {
+                addr = malloc(size);
+                if (alloc.isOnStack())
+                    frame.stackAllocs.put(alloc, addr);
+            }
+            write(frame, alloc.getDst(), addr);
+        } else if (inst instanceof Funcall) {
+            Funcall funcall = (Funcall) inst;
+            List<Long> args = new ArrayList<>();
+            for (RegValue arg : funcall.getArgs())
+                args.add(read(frame, arg));
+
+            if (funcall.getFunc().isBuiltIn()) {
+                long ret = builtIn(funcall.getFunc().getName(), args);
+                if (funcall.getDst() != null)
+                    write(frame, funcall.getDst(), ret);
+            } else {
+                call(funcall.getFunc(), args, funcall);
+            }
+        } else if (inst instanceof Jump) {
+            enter(frame, ((Jump) inst).getTarget(), inst.getParent());
+        } else if (inst instanceof CJump) {
+            CJump cjump = (CJump) inst;
+            long cond = cjump.isFused()
+                    ? compare(cjump.getOp(), read(frame, cjump.getLhs()), read(frame, cjump.getRhs()))
+                    : read(frame, cjump.getCond());
+            BasicBlock target = (cond == 1) ? cjump.getThen() : cjump.getElse();
+            enter(frame, target, inst.getParent());
+        } else if (inst instanceof Return) {
+            Return ret = (Return) inst;
+            long value = (ret.getReturnValue() == null) ? 0 : read(frame, ret.getReturnValue());
+            stack.pop();
+            if (frame.caller != null && frame.caller.getDst() != null)
+                write(stack.peek(), frame.caller.getDst(), value);
+            return value;
+        } else {
+            throw new CompileError("can not interpret " + inst.getClass().getSimpleName());
+        }
+        return 0;
+    }
+
+    private long address(Frame frame, MemQuad inst) {
+        long addr = read(frame, inst.baseAddr) + inst.offset;
+        if (inst.getIndex() != null)
+            addr += read(frame, inst.getIndex()) * inst.getScale();
+        return addr;
+    }
+
+    private long read(Frame frame, RegValue value) {
+        if (value instanceof IntImm)
+            return ((IntImm) value).getValue();
+        if (value instanceof StaticString)
+            return staticString((StaticString) value);
+        if (value instanceof StaticData)
+            return globals.getOrDefault(value, 0L); // in .bss
+
+        Long v = frame.regs.get(value);
+        if (v == null)
+            throw new CompileError("read undefined register " + ((Register) value).getName()
+                    + " in " + frame.func.getName());
+        return v;
+    }
+
+    private void write(Frame frame, Register reg, long value) {
+        if (reg instanceof StaticString)
+            throw new CompileError("write to static string");
+        if (reg instanceof StaticData)
+            globals.put((StaticData) reg, value);
+        else
+            frame.regs.put(reg, value);
+    }
+
+    private long compare(Op op, long lhs, long rhs) {
+        boolean res;
+        switch (op) {
+        case EQUAL:
+            res = lhs == rhs;
+            break;
+        case INEQUAL:
+            res = lhs != rhs;
+            break;
+        case LESS:
+            res = lhs < rhs;
+            break;
+        case LESS_EQUAL:
+            res = lhs <= rhs;
+            break;
+        case GREATER:
+            res = lhs > rhs;
+            break;
+        case GREATER_EQUAL:
+            res = lhs >= rhs;
+            break;
+        default:
+            throw new CompileError("impossible");
+        }
+        return res ? 1 : 0;
+    }
+
+    private long binary(Op op, long lhs, long rhs) {
+        switch (op) {
+        case ADD:
+            return lhs + rhs;
+        case SUB:
+            return lhs - rhs;
+        case MUL:
+            return lhs * rhs;
+        case DIV:
+        case MOD:
+            return divide(op, lhs, rhs);
+        case SH_L:
+            return lhs << rhs;
+        case SH_R:
+            return lhs >> rhs;
+        case BIT_AND:
+            return lhs & rhs;
+        case BIT_OR:
+            return lhs | rhs;
+        case BIT_XOR:
+            return lhs ^ rhs;
+        default:
+            throw new CompileError("impossible");
+        }
+    }
+
+    /** as "movsxd; cqo; idiv rbx": the low 32 bits of both as 64-bit ints */
+    private long divide(Op op, long lhs, long rhs) {
+        long dividend = (int) lhs, divisor = (int) rhs;
+        if (divisor == 0)
+            throw new CompileError("division by zero");
+        return (op == Op.DIV) ? dividend / divisor : dividend % divisor;
+    }
+    // endregion
+
+    // region builtin
+    private int peeked = -2; // -2 if none
+
+    private int getchar() {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        try {
+            return in.read();
+        } catch (IOException e) {
+            throw new CompileError("IO exception when reading input");
+        }
+    }
+
+    private void ungetc(int c) {
+        peeked = c;
+    }
+
+    private long builtIn(String name, List<Long> args) {
+        switch (name) {
+        case PRINT_KEY:
+            out.write(readString(args.get(0)), 0, (int) load(args.get(0), 8));
+            return 0;
+        case PRINTLN_KEY:
+            out.write(readString(args.get(0)), 0, (int) load(args.get(0), 8));
+            out.write('\n');
+            return 0;
+        case PRINTINT_KEY:
+            out.print((int) (long) args.get(0));
+            return 0;
+        case PRINTLNINT_KEY:
+            out.println((int) (long) args.get(0));
+            return 0;
+        case GETSTRING_KEY:
+            return getString();
+        case GETINT_KEY:
+            return getInt();
+        case TOSTRING_KEY:
+            return newString(Integer.toString((int) (long) args.get(0)).getBytes());
+
+        case SUBSTRING_KEY: {
+            int l = (int) (long) args.get(1), r = (int) (long) args.get(2);
+            byte[] str = readString(args.get(0));
+            if (l < 0 || r < l - 1 || r >= str.length)
+                throw new CompileError("substring out of range");
+            return newString(Arrays.copyOfRange(str, l, r + 1)); // [l, r]
+        }
+        case PARSEINT_KEY:
+            return parseInt(readString(args.get(0)));
+        case ORD_KEY: {
+            long addr = args.get(0) + 8 + (int) (long) args.get(1);
+            return (byte) load(addr, 1);
+        }
+
+        case STRING_CONCAT_KEY: {
+            byte[] lhs = readString(args.get(0)), rhs = readString(args.get(1));
+            byte[] res = Arrays.copyOf(lhs, lhs.length + rhs.length);
+            System.arraycopy(rhs, 0, res, lhs.length, rhs.length);
+            return newString(res);
+        }
+        case STRING_EQUAL_KEY:
+            return strcmp(args) == 0 ? 1 : 0;
+        case STRING_INEQUAL_KEY:
+            return strcmp(args) != 0 ? 1 : 0;
+        case STRING_LESS_KEY:
+            return strcmp(args) < 0 ? 1 : 0;
+        case STRING_LESS_EQUAL_KEY:
+            return strcmp(args) <= 0 ? 1 : 0;
+
+        case PROFILE_DUMP_KEY:
+            profileDump(args);
+            return 0;
+        default:
+            throw new CompileError("unknown builtin function: " + name);
+        }
+    }
+
+    /** scanf("%s"), at most 255 chars */
+    private long getString() {
+        int c = getchar();
+        while (c != -1 && Character.isWhitespace(c))
+            c = getchar();
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        while (c != -1 && !Character.isWhitespace(c) && buf.size() < 255) {
+            buf.write(c);
+            c = getchar();
+        }
+        ungetc(c);
+        return newString(buf.toByteArray());
+    }
+
+    /** skip to a digit, '-' on the way makes it negative, the char after is eaten */
+    private long getInt() {
+        boolean neg = false;
+        int c = getchar();
+        while (c != -1 && (c < '0' || c > '9')) {
+            if (c == '-')
+                neg = true;
+            c = getchar();
+        }
+        if (c == -1)
+            throw new CompileError("getInt at end of input");
+
+        int value = 0;
+        for (; c >= '0' && c <= '9'; c = getchar())
+            value = value * 10 + c - '0';
+        return neg ? -value : value;
+    }
+
+    private long parseInt(byte[] str) {
+        boolean neg = false;
+        int i = 0;
+        while (i < str.length && (str[i] < '0' || str[i] > '9')) {
+            if (str[i] == '-')
+                neg = true;
+            ++i;
+        }
+
+        int value = 0;
+        for (; i < str.length && str[i] >= '0' && str[i] <= '9'; ++i)
+            value = value * 10 + str[i] - '0';
+        return neg ? -value : value;
+    }
+
+    /** as __builtin_profile_dump in BuiltIn.asm */
+    private void profileDump(List<Long> args) {
+        String path = new String(readString(args.get(3)));
+        try (PrintStream file = new PrintStream(new FileOutputStream(path))) {
+            file.printf("mxprof %d %d\n", args.get(2), args.get(1));
+            for (long i = 0; i < args.get(1); ++i)
+                file.printf("%d\n", load(args.get(0) + i * 8, 8));
+        } catch (IOException e) {
+            // as fopen fails
+        }
+    }
+
+    private int strcmp(List<Long> args) {
+        byte[] lhs = readString(args.get(0)), rhs = readString(args.get(1));
+        for (int i = 0; i < lhs.length && i < rhs.length; ++i)
+            if (lhs[i] != rhs[i])
+                return (lhs[i] & 0xFF) - (rhs[i] & 0xFF);
+        return lhs.length - rhs.length;
+    }
+    // endregion
+}
@@ -38,104 +38,191 @@ public class Lifeness {
                 livenessAnalysis(irFunc);
             }
         } while (eliminationChanged);
+
+        // inst-level liveness only once, for RegisterAllocator
+        for (Function irFunc : root.getFunc().values())
+            initInstLiveness(irFunc);
     }
 
-    private void livenessAnalysis(Function func) {
-        List<BasicBlock> reversePreOrder = func.getReversePreOrder();
+    // region bit-vector
+    /** block-level liveness, vregs are numbered densely per function */
+    private class FuncLive {
+        Map<VirtualRegister, Integer> vregIndex = new HashMap<>();
+        List<VirtualRegister> vregs = new ArrayList<>();
 
-        for (BasicBlock bb : reversePreOrder) {
-            for (Quad inst : bb.getInsts()) {
-                inst.liveIn.clear();
-                inst.liveOut.clear();
+        Map<BasicBlock, long[]> liveIn = new HashMap<>(), liveOut = new HashMap<>();
+
+        int indexOf(Register reg) {
+            Integer idx = vregIndex.get(reg);
+            return (idx == null) ? -1 : idx;
+        }
+
+        void number(Register reg) {
+            if (reg instanceof VirtualRegister && !vregIndex.containsKey(reg)) {
+                vregIndex.put((VirtualRegister) reg, vregs.size());
+                vregs.add((VirtualRegister) reg);
             }
         }
 
-        Set<VirtualRegister> liveIn = new HashSet<>();
-        Set<VirtualRegister> liveOut = new HashSet<>();
+        boolean contains(long[] bits, Register reg) {
+            int idx = indexOf(reg);
+            return idx >= 0 && (bits[idx >> 6] & (1L << idx)) != 0;
+        }
 
-        // iterations to solve liveliness equation
-        boolean changed;
-        do {
-            changed = true;
-
-            // add liveIn and liveOut for each inst
-            for (BasicBlock bb : reversePreOrder) {
-                ListIterator<Quad> loopIter = bb.getInsts().listIterator(bb.getInsts().size());
-                // last --> first
-                while (loopIter.hasPrevious()) {
-                    Quad inst = loopIter.previous();
-                    liveIn.clear();
-                    liveOut.clear();
-
-                    // liveOut = sum_succ{liveIn}
-                    if (inst instanceof JumpQuad) {
-                        if (inst instanceof Jump) {
-                            liveOut.addAll(((Jump) inst).getTarget().getInsts().getFirst().liveIn);
-                        } else if (inst instanceof CJump) {
-                            liveOut.addAll(((CJump) inst).getThen().getInsts().getFirst().liveIn);
-                            liveOut.addAll(((CJump) inst).getElse().getInsts().getFirst().liveIn);
-                        }
-                    } else {
-                        loopIter.next(); // return cur-inst
-                        if (loopIter.hasNext()) { // still have next
-                            Quad nextInst = loopIter.next(); // return next-inst
-                            liveOut.addAll(nextInst.liveIn);
-                            loopIter.previous(); // return next-inst
-                        }
-                        loopIter.previous(); // return cur-inst
-                    }
+        void add(long[] bits, Register reg) {
+            int idx = indexOf(reg);
+            if (idx >= 0)
+                bits[idx >> 6] |= 1L << idx;
+        }
 
-                    // liveIn = use + (liveOut - def)
-                    // Solved: Must have order
-                    // def = assign in this inst
-                    liveIn.addAll(liveOut);
-                    Register definedReg = inst.getDefinedRegister();
-                    if (definedReg instanceof VirtualRegister)
-                        liveIn.remove(definedReg);
-
-                    // use = use before assign found
-                    for (Register usedReg : inst.getUsedRegisters()) {
-                        if (usedReg instanceof VirtualRegister)
-                            liveIn.add((VirtualRegister) usedReg);
-                    }
+        void remove(long[] bits, Register reg) {
+            int idx = indexOf(reg);
+            if (idx >= 0)
+                bits[idx >> 6] &= ~(1L << idx);
+        }
 
-                    // check change
-                    if (!inst.liveIn.equals(liveIn)) {
-                        changed = false;
-                        inst.liveIn.clear();
-                        inst.liveIn.addAll(liveIn);
-                    }
-                    if (!inst.liveOut.equals(liveOut)) {
-                        changed = false;
-                        inst.liveOut.clear();
-                        inst.liveOut.addAll(liveOut);
-                    }
+        Set<VirtualRegister> toSet(long[] bits) {
+            Set<VirtualRegister> set = new HashSet<>();
+            for (int i = 0; i < bits.length; ++i)
+                for (long word = bits[i]; word != 0; word &= word - 1)
+                    set.add(vregs.get((i << 6) + Long.numberOfTrailingZeros(word)));
+            return set;
+        }
+    }
+
+    private Map<Function, FuncLive> funcLiveMap = new HashMap<>();
+
+    private List<BasicBlock> jumpTargets(BasicBlock bb) {
+        Quad last = bb.getInsts().getLast();
+        if (last instanceof Jump)
+            return Arrays.asList(((Jump) last).getTarget());
+        if (last instanceof CJump)
+            return Arrays.asList(((CJump) last).getThen(), ((CJump) last).getElse());
+        return Collections.emptyList();
+    }
+
+    /** uses before def (gen) and defs (kill) of bb */
+    private void initGenKill(FuncLive live, BasicBlock bb, long[] gen, long[] kill) {
+        for (Quad inst : bb.getInsts()) {
+            for (Register usedReg : inst.getUsedRegisters())
+                if (!live.contains(kill, usedReg))
+                    live.add(gen, usedReg);
+            live.add(kill, inst.getDefinedRegister());
+        }
+    }
+    // endregion
+
+    /**
+     * backward dataflow over BBs with a worklist:
+     * <p>
+     * liveOut = sum_succ{liveIn}, liveIn = gen + (liveOut - kill)
+     */
+    private void livenessAnalysis(Function func) {
+        List<BasicBlock> reversePreOrder = func.getReversePreOrder();
+
+        FuncLive live = new FuncLive();
+        funcLiveMap.put(func, live);
+        for (BasicBlock bb : reversePreOrder)
+            for (Quad inst : bb.getInsts()) {
+                inst.getUsedRegisters().forEach(live::number);
+                live.number(inst.getDefinedRegister());
+            }
+        int numWords = (live.vregs.size() + 63) >> 6;
 
+        Map<BasicBlock, long[]> gen = new HashMap<>(), kill = new HashMap<>();
+        Map<BasicBlock, List<BasicBlock>> prevs = new HashMap<>();
+        for (BasicBlock bb : reversePreOrder) {
+            long[] bbGen = new long[numWords], bbKill = new long[numWords];
+            initGenKill(live, bb, bbGen, bbKill);
+            gen.put(bb, bbGen);
+            kill.put(bb, bbKill);
+            live.liveIn.put(bb, bbGen.clone());
+            live.liveOut.put(bb, new long[numWords]);
+            prevs.put(bb, new ArrayList<>());
+        }
+        for (BasicBlock bb : reversePreOrder)
+            for (BasicBlock nextBB : jumpTargets(bb))
+                if (prevs.containsKey(nextBB))
+                    prevs.get(nextBB).add(bb);
+
+        // last --> first
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        Set<BasicBlock> inWorklist = new HashSet<>(reversePreOrder);
+        for (int i = reversePreOrder.size() - 1; i >= 0; --i)
+            worklist.add(reversePreOrder.get(i));
+
+        while (!worklist.isEmpty()) {
+            BasicBlock bb = worklist.poll();
+            inWorklist.remove(bb);
+
+            long[] liveOut = live.liveOut.get(bb), liveIn = live.liveIn.get(bb);
+            for (BasicBlock nextBB : jumpTargets(bb)) {
+                long[] nextIn = live.liveIn.get(nextBB);
+                if (nextIn != null)
+                    for (int i = 0; i < numWords; ++i)
+                        liveOut[i] |= nextIn[i];
+            }
+
+            long[] bbGen = gen.get(bb), bbKill = kill.get(bb);
+            boolean changed = false;
+            for (int i = 0; i < numWords; ++i) {
+                long word = bbGen[i] | (liveOut[i] & ~bbKill[i]);
+                if (word != liveIn[i]) {
+                    liveIn[i] = word;
+                    changed = true;
                 }
             }
-        } while (!changed);
+
+            if (changed)
+                for (BasicBlock prevBB : prevs.get(bb))
+                    if (inWorklist.add(prevBB))
+                        worklist.add(prevBB);
+        }
+    }
+
+    /** set liveIn and liveOut of each inst by walking BBs backward */
+    private void initInstLiveness(Function func) {
+        FuncLive live = funcLiveMap.get(func);
+        for (BasicBlock bb : func.getReversePreOrder()) {
+            long[] cur = live.liveOut.get(bb).clone();
+
+            for (Quad inst = bb.getInsts().getLast(); inst != null; inst = inst.getPrevInst()) {
+                inst.liveOut = live.toSet(cur);
+                live.remove(cur, inst.getDefinedRegister());
+                for (Register usedReg : inst.getUsedRegisters())
+                    live.add(cur, usedReg);
+                inst.liveIn = live.toSet(cur);
+            }
+        }
     }
 
     /** eliminate useless inst and for-Body */
     private void delete(Function func) {
         List<BasicBlock> reversePreOrder = func.getReversePreOrder();
+        FuncLive live = funcLiveMap.get(func);
 
         // eliminate inst
         for (BasicBlock bb : reversePreOrder) {
-            ListIterator<Quad> iter = bb.getInsts().listIterator(bb.getInsts().size());
+            long[] cur = live.liveOut.get(bb).clone();
 
-            while (iter.hasPrevious()) {
-                Quad inst = iter.previous();
+            Quad prevInst;
+            for (Quad inst = bb.getInsts().getLast(); inst != null; inst = prevInst) {
+                prevInst = inst.getPrevInst();
+                Register dest = inst.getDefinedRegister();
 
                 if (inst instanceof Bin || inst instanceof Cmp || inst instanceof Load
-                        || inst instanceof Move || inst instanceof Uni
+                        || inst instanceof Move || inst instanceof Uni || inst instanceof MulHigh
                         || inst instanceof HeapAlloc) {
-                    Register dest = inst.getDefinedRegister();
-                    if (dest == null || !inst.liveOut.contains(dest)) {
+                    if (dest == null || !live.contains(cur, dest)) {
                         eliminationChanged = true;
-                        bb.removeInstFromPrevious(iter);
+                        bb.removeInst(inst);
+                        continue;
                     }
                 }
+
+                live.remove(cur, dest);
+                for (Register usedReg : inst.getUsedRegisters())
+                    live.add(cur, usedReg);
             }
         }
 
@@ -155,7 +242,9 @@ public class Lifeness {
             bbList.add(record.body);
             bbList.add(record.after);
 
-            Quad afterFirstInst = record.after.getInsts().getFirst();
+            FuncLive afterLive = funcLiveMap.get(record.after.getFunc());
+            long[] afterLiveIn = (afterLive == null) ? null
+                    : afterLive.liveIn.get(record.after);
 
             for (BasicBlock bb : bbList) {
                 for (Quad inst : bb.getInsts()) {
@@ -165,13 +254,14 @@ public class Lifeness {
                     }
 
                     if (inst.getDefinedRegister() != null) {
-                        if (afterFirstInst.liveIn.contains(inst.getDefinedRegister())) {
+                        if (afterLiveIn == null
+                                || afterLive.contains(afterLiveIn, inst.getDefinedRegister())) {
                             hasSideEffect = true;
                         }
                         continue;
                     }
 
-                    if (inst instanceof Store) {
+                    if (inst instanceof Store || inst instanceof Check) {
                         hasSideEffect = true;
                         continue;
                     }
@@ -243,9 +333,10 @@ public class Lifeness {
                 jumpInst.setThen(replaceTarget(jumpInst.getThen()));
                 jumpInst.setElse(replaceTarget(jumpInst.getElse()));
 
-                if (jumpInst.getThen() == jumpInst.getElse())
-                    bb.replaceInst(bb.getInsts().listIterator(bb.getInsts().size()),
-                            new Jump(bb, jumpInst.getThen()));
+                if (jumpInst.getThen() == jumpInst.getElse()) {
+                    bb.removeInst(jumpInst);
+                    bb.setJump(new Jump(bb, jumpInst.getThen()));
+                }
             }
         }
     }
@@ -10,17 +10,37 @@ import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
 import mxcompiler.ir.register.*;
 import java.util.*;
+import mxcompiler.main.PassManager.Analysis;
 
 
 /**
  * mem allocate and stack deal
+ * <p>
+ * with inlineAlloc (arena allocator), a HeapAlloc of constant size is
+ * bumped inline and only calls out to refill the arena, which keeps all
+ * regs but rax, so nothing is saved around it
+ * <p>
+ * a HeapAlloc on stack gets words of the frame after the stack slots, its
+ * address is rbp + offset
  */
-public class MemAndStack {
+public class MemAndStack implements Pass {
     private final Root root;
+    private final boolean inlineAlloc;
     int MaxNumFuncArgs = 3;
 
-    public MemAndStack(Root root) {
+    public MemAndStack(Root root, boolean inlineAlloc) {
         this.root = root;
+        this.inlineAlloc = inlineAlloc;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.CALLEE_SET);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
     }
 
     public void execute() throws Error {
@@ -35,6 +55,7 @@ public class MemAndStack {
         List<PhysicalRegister> usedCalleeSaveRegs = new ArrayList<>();
         Set<PhysicalRegister> recursiveUsedRegs = new HashSet<>();
         Map<StackSlot, Integer> stackOffsetMap = new HashMap<>();
+        Map<HeapAlloc, Integer> stackAllocOffsetMap = new HashMap<>();
         int numExtraArgs; // for before frame
         int numStackSlot = 0; // for frame
     }
@@ -66,6 +87,13 @@ public class MemAndStack {
             info.numStackSlot = func.stackSlots.size();
             for (int i = 0; i < info.numStackSlot; ++i)
                 info.stackOffsetMap.put(func.stackSlots.get(i), i * RegSize);
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts())
+                    if (inst instanceof HeapAlloc && ((HeapAlloc) inst).isOnStack()) {
+                        int size = ((IntImm) ((HeapAlloc) inst).getAllocSize()).getValue();
+                        info.stackAllocOffsetMap.put((HeapAlloc) inst, info.numStackSlot * RegSize);
+                        info.numStackSlot += Math.max(1, (size + RegSize - 1) / RegSize);
+                    }
             if ((info.usedCalleeSaveRegs.size() + info.numStackSlot) % 2 == 0) // align
                 ++info.numStackSlot;
 
@@ -85,40 +113,59 @@ public class MemAndStack {
         }
 
         // add recursive used regs from used-preg-general
+        // malloc of HeapAlloc may change all caller save regs
+        Set<Function> heapAllocFuncs = new HashSet<>();
+        for (Function func : root.getFunc().values())
+            if (markInlineAlloc(func))
+                heapAllocFuncs.add(func);
+
         for (Function func : funcInfoMap.keySet()) {
             FuncInfo info = funcInfoMap.get(func);
 
             info.recursiveUsedRegs.addAll(func.usedPhysicalGeneralRegs);
             for (Function calleeFunc : func.recursiveCalleeSet)
                 info.recursiveUsedRegs.addAll(calleeFunc.usedPhysicalGeneralRegs);
+
+            boolean callMalloc = heapAllocFuncs.contains(func);
+            for (Function calleeFunc : func.recursiveCalleeSet)
+                callMalloc |= heapAllocFuncs.contains(calleeFunc);
+            if (callMalloc)
+                info.recursiveUsedRegs.addAll(callerSaveRegs);
         }
 
         // execute func
         for (Function func : root.getFunc().values()) {
             FuncInfo info = funcInfoMap.get(func);
             BasicBlock enterBB = func.getStart(); // Tag
-            ListIterator<Quad> firstIter = enterBB.getInsts().listIterator();
-            firstIter.next(); // get First inst
+            Quad firstInst = enterBB.getInsts().getFirst();
 
             // push used_Reg(func)
             info.usedCalleeSaveRegs
-                    .forEach(preg -> enterBB.addBeforeInst(firstIter, new Push(enterBB, preg)));
+                    .forEach(preg -> enterBB.addBefore(firstInst, new Push(enterBB, preg)));
 
             // change rsp and rbp
             if (info.numStackSlot > 0) {
                 IntImm stackOffset = new IntImm(info.numStackSlot * RegSize);
-                enterBB.addBeforeInst(firstIter,
+                enterBB.addBefore(firstInst,
                         new Bin(enterBB, rsp, BinaryOpExprNode.Op.SUB, rsp, stackOffset));
             }
-            enterBB.addBeforeInst(firstIter, new Move(enterBB, rbp, rsp));
+            enterBB.addBefore(firstInst, new Move(enterBB, rbp, rsp));
             for (BasicBlock bb : func.getReversePostOrder()) {
-                ListIterator<Quad> iter = bb.getInsts().listIterator();
-                while (iter.hasNext()) { // Solved: iter.next outside
-                    Quad inst = iter.next();
+                Quad nextInst;
+                for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                    nextInst = inst.getNextInst(); // insts added around are skipped
                     if (inst instanceof Funcall) {
-                        dealCallee(func, info, (Funcall) inst, iter);
-                    } else if (inst instanceof HeapAlloc) {
-                        dealHeapAlloc(func, info, (HeapAlloc) inst, iter);
+                        dealCallee(func, info, bb, (Funcall) inst);
+                        if (((Funcall) inst).isTail())
+                            nextInst = inst.getNextInst();
+                    } else if (inst instanceof HeapAlloc && ((HeapAlloc) inst).isOnStack()) {
+                        HeapAlloc alloc = (HeapAlloc) inst;
+                        IntImm offset = new IntImm(info.stackAllocOffsetMap.get(alloc));
+                        bb.addBefore(alloc, new Move(bb, alloc.getDst(), rbp));
+                        bb.replaceInst(alloc, new Bin(bb, alloc.getDst(), BinaryOpExprNode.Op.ADD,
+                                alloc.getDst(), offset));
+                    } else if (inst instanceof HeapAlloc && !((HeapAlloc) inst).isInline()) {
+                        dealHeapAlloc(func, info, bb, (HeapAlloc) inst);
                     } else if (inst instanceof MemQuad) { // load and store
                         MemQuad tmpInst = (MemQuad) inst;
                         if (tmpInst.baseAddr instanceof StackSlot) {
@@ -128,7 +175,7 @@ public class MemAndStack {
                     } else if (inst instanceof Move) {
                         Move tmpInst = (Move) inst;
                         if (tmpInst.getDst() == tmpInst.getRhs())
-                            bb.removeInst(iter);// remove useless move: a <- a
+                            bb.removeInst(inst);// remove useless move: a <- a
                     }
                 }
             }
@@ -142,45 +189,61 @@ public class MemAndStack {
             }
             // FIX: BUG: error when del + set Jump -> removed = true ??
 
-            // recover rsp
-            ListIterator<Quad> lastIter = func.getEnd().getInsts()
-                    .listIterator(func.getEnd().getInsts().size() - 1);
-            lastIter.next(); // Tag
+            BasicBlock endBB = func.getEnd();
+            addEpilogue(info, endBB, endBB.getInsts().getLast()); // Tag
+        }
+    }
 
-            if (info.numStackSlot > 0) {
-                IntImm offset = new IntImm(info.numStackSlot * RegSize);
-                enterBB.addBeforeInst(lastIter,
-                        new Bin(enterBB, rsp, BinaryOpExprNode.Op.ADD, rsp, offset));
-            }
+    /** recover rsp and pop used callee save regs, before inst */
+    private void addEpilogue(FuncInfo info, BasicBlock bb, Quad inst) {
+        if (info.numStackSlot > 0) {
+            IntImm offset = new IntImm(info.numStackSlot * RegSize);
+            bb.addBefore(inst, new Bin(bb, rsp, BinaryOpExprNode.Op.ADD, rsp, offset));
+        }
 
-            // for (int i = info.usedCalleeSaveRegs.size() - 1; i >= 0; --i)
-            // enterBB.addBeforeInst(lastIter,
-            // new Pop(enterBB, info.usedCalleeSaveRegs.get(i)));
+        // pop in reverse order: each one before the last popped
+        for (PhysicalRegister preg : info.usedCalleeSaveRegs) {
+            Pop pop = new Pop(bb, preg);
+            bb.addBefore(inst, pop);
+            inst = pop;
+        }
+    }
 
-            // Solved: will work
-            lastIter.previous();
-            for (PhysicalRegister preg : info.usedCalleeSaveRegs) {
-                enterBB.addAfterInst(lastIter, new Pop(enterBB, preg), true);
+    /** set inline HeapAllocs, true if any other one not on stack (calls the allocator) */
+    private boolean markInlineAlloc(Function func) {
+        boolean hasCall = false;
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts()) {
+                if (!(inst instanceof HeapAlloc))
+                    continue;
+                HeapAlloc alloc = (HeapAlloc) inst;
+                if (alloc.isOnStack())
+                    continue;
+                alloc.setInline(inlineAlloc && alloc.getAllocSize() instanceof IntImm);
+                hasCall |= !alloc.isInline();
             }
-            // info.usedCalleeSaveRegs
-            // .forEach(preg -> enterBB.addAfterInst(lastIter, new Pop(enterBB,
-            // preg)));
-        }
+        return hasCall;
     }
 
     /**
      * funcall : caller-args stored and push callee-args to reg
      */
-    private void dealCallee(Function func, FuncInfo callerInfo, Funcall inst,
-            ListIterator<Quad> iter) {
-        Quad nextInst = iter.next();
-        iter.previous();
-
+    private void dealCallee(Function func, FuncInfo callerInfo, BasicBlock parent,
+            Funcall inst) {
         int callerArgSize = func.argVregs.size();
-        BasicBlock parent = inst.getParent();
 
         FuncInfo calleeInfo = funcInfoMap.get(inst.getFunc());
 
+        // tail call: set args, pop the frame and jmp, the callee returns to
+        // our caller. Insts after it are dead
+        if (inst.isTail()) {
+            setArgs(callerInfo, parent, inst);
+            addEpilogue(callerInfo, parent, inst);
+            while (inst.getNextInst() != parent.getInsts().getLast())
+                parent.removeInst(inst.getNextInst());
+            return;
+        }
+
         // region push: caller-comflict-regs and args
         /** Caller and Callee Conflict with registers */
         int ConflictNum = 0;
@@ -194,21 +257,21 @@ public class MemAndStack {
             // preg is used in both caller(func) and callee func(funcall)
             if (calleeInfo.recursiveUsedRegs.contains(preg)) {
                 ++ConflictNum;
-                parent.addBeforeInst(iter, new Push(parent, preg));
+                parent.addBefore(inst, new Push(parent, preg));
             }
         }
 
         // push argument registers
         int callerArgPregNum = (callerArgSize <= Arg_Num) ? callerArgSize : Arg_Num;
         for (int i = 0; i < callerArgPregNum; ++i)
-            parent.addBeforeInst(iter, new Push(parent, arg6.get(i)));
+            parent.addBefore(inst, new Push(parent, arg6.get(i)));
         ConflictNum += callerArgPregNum;
 
         // align
         boolean extraPush = false;
         if ((ConflictNum + calleeInfo.numExtraArgs) % 2 != 0) {
             extraPush = true;
-            parent.addBeforeInst(iter, new Push(parent, new IntImm(0)));
+            parent.addBefore(inst, new Push(parent, new IntImm(0)));
         }
         // endregion
 
@@ -218,14 +281,51 @@ public class MemAndStack {
         // over-args push to stack
         for (int i = calleeArgs.size() - 1; i >= Arg_Num; --i) {
             if (calleeArgs.get(i) instanceof StackSlot) {
-                parent.addBeforeInst(iter, new Load(parent, rax, RegSize, rbp,
+                parent.addBefore(inst, new Load(parent, rax, RegSize, rbp,
                         callerInfo.stackOffsetMap.get(calleeArgs.get(i))));
-                parent.addBeforeInst(iter, new Push(parent, rax));
+                parent.addBefore(inst, new Push(parent, rax));
             } else {
-                parent.addBeforeInst(iter, new Push(parent, calleeArgs.get(i)));
+                parent.addBefore(inst, new Push(parent, calleeArgs.get(i)));
             }
         }
 
+        setArgs(callerInfo, parent, inst);
+        // endregion
+
+        // region after funcall
+        // each is added right after inst, so they run in reverse order
+
+        // get return value from where funcal store
+        if (inst.getDst() != null)
+            parent.addAfter(inst, new Move(parent, inst.getDst(), rax));
+
+        // NOTE: BUG: order error ???
+
+        // restore caller save registers to Line: 745
+        for (PhysicalRegister preg : callerInfo.usedCallerSaveRegs) {
+            if (preg.isArg() && preg.getArgIdx() < callerArgSize)
+                continue;
+
+            if (calleeInfo.recursiveUsedRegs.contains(preg))
+                parent.addAfter(inst, new Pop(parent, preg));
+        }
+
+        // restore argument registers to Line: 758
+        for (int i = 0; i < callerArgPregNum; ++i)
+            parent.addAfter(inst, new Pop(parent, arg6.get(i)));
+
+        // remove extra args and restore rsp to Line: 765, Line: 775
+        if (calleeInfo.numExtraArgs > 0 || extraPush) {
+            int numPushArg = extraPush ? calleeInfo.numExtraArgs + 1 : calleeInfo.numExtraArgs;
+            IntImm vv = new IntImm(numPushArg * RegSize);
+            parent.addAfter(inst, new Bin(parent, rsp, BinaryOpExprNode.Op.ADD, rsp, vv));
+        }
+        // endregion
+    }
+
+    /** first Arg_Num args of inst to arg regs, before inst */
+    private void setArgs(FuncInfo callerInfo, BasicBlock parent, Funcall inst) {
+        List<RegValue> calleeArgs = inst.getArgs();
         List<Integer> arg6BackOffset = new ArrayList<>();
         Map<PhysicalRegister, Integer> arg6BackOffsetMap = new HashMap<>();
 
@@ -245,7 +345,7 @@ public class MemAndStack {
                 // UGLY: can it have contains and do this again ??
                 if (!arg6BackOffsetMap.containsKey(preg)) {
                     arg6BackOffsetMap.put(preg, backArgNum);
-                    parent.addBeforeInst(iter, new Push(parent, preg));
+                    parent.addBefore(inst, new Push(parent, preg));
                     ++backArgNum;
                 }
                 arg6BackOffset.add(arg6BackOffsetMap.get(preg));
@@ -261,68 +361,28 @@ public class MemAndStack {
 
             if (arg6BackOffset.get(i) == -1) {
                 if (calleeArgs.get(i) instanceof StackSlot) { // can merge load and move ??
-                    parent.addBeforeInst(iter, new Load(parent, rax, RegSize, rbp,
+                    parent.addBefore(inst, new Load(parent, rax, RegSize, rbp,
                             callerInfo.stackOffsetMap.get(calleeArgs.get(i))));
-                    parent.addBeforeInst(iter, new Move(parent, arg6.get(i), rax));
+                    parent.addBefore(inst, new Move(parent, arg6.get(i), rax));
                 } else {
-                    parent.addBeforeInst(iter, new Move(parent, arg6.get(i), calleeArgs.get(i)));
+                    parent.addBefore(inst, new Move(parent, arg6.get(i), calleeArgs.get(i)));
                 }
             } else {
                 int offset = RegSize * (backArgNum - arg6BackOffset.get(i) - 1);
-                parent.addBeforeInst(iter, new Load(parent, arg6.get(i), RegSize, rsp, offset));
+                parent.addBefore(inst, new Load(parent, arg6.get(i), RegSize, rsp, offset));
             }
         }
 
         // figure new rsp
         if (backArgNum > 0) {
-            parent.addBeforeInst(iter, new Bin(parent, rsp, BinaryOpExprNode.Op.ADD, rsp,
+            parent.addBefore(inst, new Bin(parent, rsp, BinaryOpExprNode.Op.ADD, rsp,
                     new IntImm(backArgNum * RegSize)));
         }
-        // endregion
-
-        // region after funcall
-
-        // get return value from where funcal store
-        if (inst.getDst() != null)
-            parent.addAfterInst(iter, new Move(parent, inst.getDst(), rax), true);
-
-        // NOTE: BUG: order error ???
-
-        // restore caller save registers to Line: 745
-        for (PhysicalRegister preg : callerInfo.usedCallerSaveRegs) {
-            if (preg.isArg() && preg.getArgIdx() < callerArgSize)
-                continue;
-
-            if (calleeInfo.recursiveUsedRegs.contains(preg))
-                parent.addAfterInst(iter, new Pop(parent, preg), true);
-        }
-
-        // restore argument registers to Line: 758
-        for (int i = 0; i < callerArgPregNum; ++i)
-            parent.addAfterInst(iter, new Pop(parent, arg6.get(i)), true);
-
-        // remove extra args and restore rsp to Line: 765, Line: 775
-        if (calleeInfo.numExtraArgs > 0 || extraPush) {
-            int numPushArg = extraPush ? calleeInfo.numExtraArgs + 1 : calleeInfo.numExtraArgs;
-            IntImm vv = new IntImm(numPushArg * RegSize);
-            parent.addAfterInst(iter, new Bin(parent, rsp, BinaryOpExprNode.Op.ADD, rsp, vv), true);
-        }
-        // endregion
-
-        // check iter is stick at Funcall ??
-        while (iter.hasNext() && nextInst != iter.next()) {
-        }
-        iter.previous();
     }
 
     /** for alloc memory, call malloc */
-    private void dealHeapAlloc(Function func, FuncInfo info, HeapAlloc inst,
-            ListIterator<Quad> iter) {
-        Quad nextInst = iter.next();
-        iter.previous();
-
-        BasicBlock parent = inst.getParent();
-
+    private void dealHeapAlloc(Function func, FuncInfo info, BasicBlock parent,
+            HeapAlloc inst) {
         // region before inst
 
         // which reg would not be changed by malloc -> TODO: optim ???
@@ -330,40 +390,34 @@ public class MemAndStack {
         int callerSaveNum = 0;
         for (PhysicalRegister preg : info.usedCallerSaveRegs) {
             ++callerSaveNum;
-            parent.addBeforeInst(iter, new Push(parent, preg));
+            parent.addBefore(inst, new Push(parent, preg));
         }
 
         // set arg
-        parent.addBeforeInst(iter, new Move(parent, rdi, inst.getAllocSize()));
+        parent.addBefore(inst, new Move(parent, rdi, inst.getAllocSize()));
 
         // align for rsp
         if (callerSaveNum % 2 != 0)
-            parent.addBeforeInst(iter, new Push(parent, new IntImm(0)));
+            parent.addBefore(inst, new Push(parent, new IntImm(0)));
         // endregion
 
         // region after inst
+        // each is added right after inst, so they run in reverse order
 
         // return Value
-        parent.addAfterInst(iter, new Move(parent, inst.getDst(), rax), true);
+        parent.addAfter(inst, new Move(parent, inst.getDst(), rax));
 
         // but sometimes may not change -> TODO: optim ???
         for (PhysicalRegister preg : info.usedCallerSaveRegs)
-            parent.addAfterInst(iter, new Pop(parent, preg), true);
+            parent.addAfter(inst, new Pop(parent, preg));
 
         // restore rsp from align
         // can also do this with Pop
         if (callerSaveNum % 2 != 0) {
             IntImm offset = new IntImm(RegSize);
-            parent.addAfterInst(iter, new Bin(parent, rsp, BinaryOpExprNode.Op.ADD, rsp, offset),
-                    true);
+            parent.addAfter(inst, new Bin(parent, rsp, BinaryOpExprNode.Op.ADD, rsp, offset));
         }
         // endregion
-
-        // check iter is stick at HeapAlloc ??
-        while (iter.hasNext() && nextInst != iter.next()) {
-        }
-        iter.previous();
-
     }
 
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import java.util.ListIterator;
 
 import mxcompiler.error.OptionError;
 import mxcompiler.main.CompilerMode.DumpMode;
+import mxcompiler.main.optim.ProfileInstrument;
 
 public class Option {
 
@@ -18,6 +19,13 @@ public class Option {
 	private List<DumpMode> dumpMode = new ArrayList<>();
 	private int level = 0;
 	private boolean debug = false;
+	private boolean linearScan = false;
+	private boolean stats = false;
+	private boolean interpret = false;
+	private String profileGenerate = null;
+	private String profileUse = null;
+	private Allocator allocator = Allocator.MALLOC;
+	private boolean checked = false;
 
 	public Option(String[] args) throws OptionError {
 		parseArgs(args);
@@ -49,6 +57,28 @@ public class Option {
 						throw new OptionError("unknown optimization switch: " + arg);
 					}
 					level = (type.equals("s") ? 3 : Integer.parseInt(type));
+				} else if (arg.equals("--linear-scan")) {
+					// fast register allocation, graph coloring by default
+					linearScan = true;
+				} else if (arg.equals("--time-passes") || arg.equals("--stats")) {
+					// time, allocated bytes and IR size of each stage as JSON to stderr
+					stats = true;
+				} else if (arg.equals("--interpret")) {
+					// run IR by IRInterpreter instead of writing asm, exit with its return value
+					interpret = true;
+				} else if (arg.equals("-fprofile-generate") || arg.startsWith("-fprofile-generate=")) {
+					// count BBs, the program writes counts to the file at exit
+					profileGenerate = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1)
+							: ProfileInstrument.DEFAULT_FILE;
+				} else if (arg.equals("-fprofile-use") || arg.startsWith("-fprofile-use=")) {
+					profileUse = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1)
+							: ProfileInstrument.DEFAULT_FILE;
+				} else if (arg.startsWith("-falloc=")) {
+					// memory of new and strings: malloc by default, or arena (bump pointer)
+					allocator = Allocator.fromOption(arg.substring(arg.indexOf('=') + 1));
+				} else if (arg.equals("-fchecked")) {
+					// bounds and null checks of array and member accesses, exit 1 if failed
+					checked = true;
 				} else if (arg.equals("--version") || arg.equals("-v")) {
 					System.out.printf("%s version %s\n", Compiler.ProgName, Compiler.Version);
 					System.exit(0);
@@ -99,6 +129,36 @@ public class Option {
 		return debug;
 	}
 
+	public boolean isLinearScan() {
+		return linearScan;
+	}
+
+	public boolean isStats() {
+		return stats;
+	}
+
+	public boolean isInterpret() {
+		return interpret;
+	}
+
+	/** null if not -fprofile-generate */
+	public String profileGenerate() {
+		return profileGenerate;
+	}
+
+	/** null if not -fprofile-use */
+	public String profileUse() {
+		return profileUse;
+	}
+
+	public Allocator allocator() {
+		return allocator;
+	}
+
+	public boolean isChecked() {
+		return checked;
+	}
+
 	public void printUsage() {
 		System.out.println("EMPTY");
 	}
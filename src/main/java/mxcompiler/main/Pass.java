@@ -0,0 +1,21 @@
+package mxcompiler.main;
+
+import java.util.EnumSet;
+
+import mxcompiler.main.PassManager.Analysis;
+
+
+/** pass over the whole IR, run by {@link PassManager} */
+public interface Pass {
+    public void execute();
+
+    /** analyses which must be valid before execute */
+    public default EnumSet<Analysis> required() {
+        return EnumSet.noneOf(Analysis.class);
+    }
+
+    /** analyses still valid after execute, others are invalidated */
+    public default EnumSet<Analysis> preserved() {
+        return EnumSet.noneOf(Analysis.class);
+    }
+}
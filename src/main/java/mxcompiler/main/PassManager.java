@@ -0,0 +1,160 @@
+package mxcompiler.main;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.main.optim.*;
+
+
+/**
+ * run passes in order, an analysis is recomputed only when a pass requires
+ * it and some pass before has invalidated it
+ * <p>
+ * pipelines of -O levels are defined here
+ */
+public class PassManager {
+    public enum Analysis {
+        /** reverse post-order and reverse pre-order of BBs */
+        ORDER,
+        /** idom, dominator tree and dominance frontier */
+        DOMINATOR,
+        /** natural loops and loop depth, dominator tree included */
+        LOOP,
+        /** callee sets, seen at {@link Root#updateCalleeSet()} */
+        CALLEE_SET
+    }
+
+    private final Root root;
+    private final EnumSet<Analysis> valid = EnumSet.noneOf(Analysis.class);
+    private PassStats stats = null;
+    private String profileGenerate = null, profileUse = null;
+    private Allocator allocator = Allocator.MALLOC;
+    private boolean checked = false;
+
+    public PassManager(Root root) {
+        this.root = root;
+    }
+
+    /** record each pass and recomputed analysis, null to disable */
+    public void setStats(PassStats stats) {
+        this.stats = stats;
+    }
+
+    /** file of -fprofile-generate and -fprofile-use, null if not given */
+    public void setProfile(String generate, String use) {
+        this.profileGenerate = generate;
+        this.profileUse = use;
+    }
+
+    /** -falloc, HeapAllocs of the arena are bumped inline at O > 0 */
+    public void setAllocator(Allocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /** -fchecked, Checks which cannot fail are removed at O > 0 */
+    public void setChecked(boolean checked) {
+        this.checked = checked;
+    }
+
+    // region pipeline
+    public List<Pass> irPipeline(int optLevel) {
+        List<Pass> passes = new ArrayList<>();
+        // BBs are numbered as IRBuilder makes them
+        if (profileGenerate != null)
+            passes.add(new ProfileInstrument(root, profileGenerate));
+        if (profileUse != null)
+            passes.add(new ProfileReader(root, profileUse));
+
+        passes.add(new BinaryDstEqualLhs(root));
+        if (optLevel > 0) {
+            passes.add(new ElimateCJump(root));
+            passes.add(new TailCall(root));
+            passes.add(new FuncallInline(root));
+            passes.add(new TailCall(root)); // calls of inlined bodies
+            passes.add(new BinaryDstEqualLhs(root)); // inlined bodies
+        }
+        passes.add(new ElimateMutliStaticData(root));
+        if (optLevel == 0)
+            return passes;
+
+        passes.add(new EscapeAnalysis(root));
+        passes.add(new SSAConstructor(root));
+        passes.add(new SCCP(root));
+        passes.add(new GVN(root));
+        if (checked)
+            passes.add(new CheckElim(root));
+        passes.add(new LICM(root));
+        passes.add(new LoadStoreElim(root));
+        passes.add(new GVN(root)); // values stored back at loop exits
+        passes.add(new AddressModeFold(root));
+        passes.add(new StrengthReduction(root));
+        passes.add(new SSADestructor(root));
+        passes.add(new BinaryDstEqualLhs(root)); // SSA renames dst of Bin
+        passes.add(new FuseCmpBranch(root));
+        return passes;
+    }
+
+    public List<Pass> asmPipeline(int optLevel, boolean linearScan) {
+        List<Pass> passes = new ArrayList<>();
+        RegisterAllocator regAllocator = new RegisterAllocator(root, linearScan);
+        regAllocator.setStats(stats);
+        passes.add(regAllocator);
+        passes.add(new MemAndStack(root, optLevel > 0 && allocator == Allocator.ARENA));
+        if (optLevel > 0) {
+            passes.add(new ElimateMemQuad(root));
+            passes.add(new BlockPlacement(root));
+        }
+        return passes;
+    }
+    // endregion
+
+    public void run(List<Pass> passes) {
+        for (Pass pass : passes) {
+            for (Analysis analysis : pass.required())
+                require(analysis);
+
+            if (stats != null)
+                stats.begin(pass.getClass().getSimpleName(), root);
+            pass.execute();
+            if (stats != null)
+                stats.end(root);
+            valid.retainAll(pass.preserved());
+        }
+    }
+
+    private void require(Analysis analysis) {
+        if (valid.contains(analysis))
+            return;
+        if (stats != null)
+            stats.begin("analysis:" + analysis, null);
+
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            switch (analysis) {
+            case ORDER:
+                func.initReversePostOrder();
+                func.initReversePreOrder();
+                break;
+            case DOMINATOR:
+                func.initDominatorTree();
+                break;
+            case LOOP:
+                func.initLoops();
+                break;
+            default:
+                break;
+            }
+        }
+
+        if (analysis == Analysis.CALLEE_SET)
+            root.updateCalleeSet();
+        if (analysis == Analysis.LOOP)
+            valid.add(Analysis.DOMINATOR);
+        valid.add(analysis);
+        if (stats != null)
+            stats.end(null);
+    }
+}
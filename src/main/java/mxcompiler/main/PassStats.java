@@ -0,0 +1,136 @@
+package mxcompiler.main;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import mxcompiler.ir.Root;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+
+
+/**
+ * wall time, allocated bytes and IR size of each compile stage, enabled by
+ * --time-passes or --stats, printed as JSON
+ * <p>
+ * stages can nest (e.g. Lifeness in RegisterAllocator), a nested stage is
+ * named as "outer/inner" and is also counted in its outer one
+ */
+public class PassStats {
+    private static class IRSize {
+        int funcs = 0, blocks = 0, quads = 0, vregs = 0, spills = 0;
+
+        IRSize(Root root) {
+            for (Function func : root.getFunc().values()) {
+                if (func.isBuiltIn() || func.getStart() == null)
+                    continue;
+
+                ++funcs;
+                spills += func.stackSlots.size();
+                Set<VirtualRegister> vregSet = new HashSet<>();
+                for (BasicBlock bb : reachable(func)) {
+                    ++blocks;
+                    for (Quad inst : bb.getInsts()) {
+                        ++quads;
+                        if (inst.getDefinedRegister() instanceof VirtualRegister)
+                            vregSet.add((VirtualRegister) inst.getDefinedRegister());
+                        for (Register reg : inst.getUsedRegisters())
+                            if (reg instanceof VirtualRegister)
+                                vregSet.add((VirtualRegister) reg);
+                    }
+                }
+                vregs += vregSet.size();
+            }
+        }
+
+        /** by jump insts, cached BB-order of func is not touched */
+        private static Set<BasicBlock> reachable(Function func) {
+            Set<BasicBlock> visited = new HashSet<>();
+            Deque<BasicBlock> worklist = new ArrayDeque<>();
+            worklist.add(func.getStart());
+            while (!worklist.isEmpty()) {
+                BasicBlock bb = worklist.poll();
+                if (!visited.add(bb) || bb.getInsts().isEmpty())
+                    continue;
+
+                Quad last = bb.getInsts().getLast();
+                if (last instanceof Jump) {
+                    worklist.add(((Jump) last).getTarget());
+                } else if (last instanceof CJump) {
+                    worklist.add(((CJump) last).getThen());
+                    worklist.add(((CJump) last).getElse());
+                }
+            }
+            return visited;
+        }
+
+        String toJson() {
+            return String.format("{\"funcs\": %d, \"blocks\": %d, \"quads\": %d, \"vregs\": %d, \"spills\": %d}",
+                    funcs, blocks, quads, vregs, spills);
+        }
+    }
+
+    private static class Stage {
+        String name;
+        long startNanos, wallNanos;
+        long startBytes, allocatedBytes;
+        IRSize before, after;
+    }
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final List<Stage> stages = new ArrayList<>();
+    private final Deque<Stage> open = new ArrayDeque<>();
+    private final long startNanos = System.nanoTime();
+
+    public PassStats() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threadBean = null;
+        }
+    }
+
+    /** root is null if IR is not built yet */
+    public void begin(String name, Root root) {
+        Stage stage = new Stage();
+        stage.name = open.isEmpty() ? name : open.peek().name + "/" + name;
+        stages.add(stage);
+        open.push(stage);
+
+        stage.before = (root == null) ? null : new IRSize(root);
+        stage.startBytes = allocatedBytes();
+        stage.startNanos = System.nanoTime();
+    }
+
+    public void end(Root root) {
+        Stage stage = open.pop();
+        stage.wallNanos = System.nanoTime() - stage.startNanos;
+        long bytes = allocatedBytes();
+        stage.allocatedBytes = (bytes < 0) ? -1 : bytes - stage.startBytes;
+        stage.after = (root == null) ? null : new IRSize(root);
+    }
+
+    /** -1 if not supported by JVM */
+    private long allocatedBytes() {
+        return (threadBean == null) ? -1 : threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public void dump(PrintStream out) {
+        out.println("{");
+        out.printf(Locale.ROOT, "  \"totalWallMs\": %.3f,\n", (System.nanoTime() - startNanos) / 1e6);
+        out.println("  \"stages\": [");
+        for (int i = 0; i < stages.size(); ++i) {
+            Stage stage = stages.get(i);
+            out.printf(Locale.ROOT, "    {\"name\": \"%s\", \"wallMs\": %.3f, \"allocatedBytes\": %d, \"before\": %s, \"after\": %s}%s\n",
+                    stage.name, stage.wallNanos / 1e6, stage.allocatedBytes,
+                    (stage.before == null) ? "null" : stage.before.toJson(),
+                    (stage.after == null) ? "null" : stage.after.toJson(),
+                    (i + 1 < stages.size()) ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+}
@@ -4,6 +4,7 @@ import static mxcompiler.asm.x86_64RegisterSet.*;
 import static mxcompiler.ir.register.RegValue.RegSize;
 // import mxcompiler.asm.x86_64RegisterSet;
 
+import mxcompiler.ast.expression.BinaryOpExprNode;
 import mxcompiler.error.CompileError;
 import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
@@ -11,14 +12,33 @@ import mxcompiler.ir.register.*;
 import mxcompiler.main.optim.MergeBB;
 
 import java.util.*;
+import mxcompiler.main.PassManager.Analysis;
 
 
-public class RegisterAllocator {
+public class RegisterAllocator implements Pass {
     private final Root root;
     int MaxNumFuncArgs = 3;
 
+    /** use linear scan rather than graph coloring */
+    private final boolean linearScan;
+
     public RegisterAllocator(Root root) {
+        this(root, false);
+    }
+
+    public RegisterAllocator(Root root, boolean linearScan) {
         this.root = root;
+        this.linearScan = linearScan;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.CALLEE_SET);
     }
 
     public void execute() throws Error {
@@ -26,19 +46,38 @@ public class RegisterAllocator {
         AllocateNaiveArgs();
 
         Lifeness life = new Lifeness(root);
-        life.execute();
+        executeLifeness(life);
 
         // MergeBB merge = new MergeBB(root);
         // merge.execute();
 
+        InitPhyRegs();
+        if (SplitLiveRanges())
+            executeLifeness(life);
+
         PaintColors();
 
         return;
     }
 
+    private PassStats stats = null;
+
+    /** record Lifeness runs in stats, null to disable */
+    public void setStats(PassStats stats) {
+        this.stats = stats;
+    }
+
+    private void executeLifeness(Lifeness life) {
+        if (stats != null)
+            stats.begin("Lifeness", root);
+        life.execute();
+        if (stats != null)
+            stats.end(root);
+    }
+
     private void AllocateNaiveArgs() {
         for (Function func : root.getFunc().values()) {
-            LinkedList<Quad> insts = func.getStart().getInsts();
+            InstList insts = func.getStart().getInsts();
             BasicBlock parent = func.getStart(); // Tag
             int size = func.argVregs.size();
 
@@ -75,7 +114,7 @@ public class RegisterAllocator {
     private PhysicalRegister preg0, preg1; // used for stack slot
     private int numColors; // can defined once
 
-    private void PaintColors() {
+    private void InitPhyRegs() {
         // pre analysis-getConclusion
         this.phyRegs = new ArrayList<>(generalRegs);
 
@@ -106,9 +145,15 @@ public class RegisterAllocator {
         this.phyRegs.remove(preg1);
 
         numColors = this.phyRegs.size();
+    }
 
-        for (Function func : root.getFunc().values())
-            Allocate(func);
+    private void PaintColors() {
+        for (Function func : root.getFunc().values()) {
+            if (linearScan)
+                LinearScan(func);
+            else
+                Allocate(func);
+        }
     }
 
     // non-direct-graph
@@ -121,6 +166,14 @@ public class RegisterAllocator {
         Set<VirtualRegister> neighbours = new HashSet<>();
         /** used in MOVE a <- c */
         Set<VirtualRegister> SameVregs = new HashSet<>();
+
+        /**
+         * (uses + defs) * 10^loopDepth, or * count/entry-count with a profile,
+         * defs are free if rematerialized
+         */
+        double spillCost = 0;
+        /** coalesced into this vreg */
+        VirtualRegister alias = null;
     }
 
     // put before get
@@ -170,14 +223,25 @@ public class RegisterAllocator {
 
         // STEP1: build
         // init Vreg Info
+        func.initLoops(); // loopDepth for spill cost
+        initRemat(func);
+        moves.clear();
         func.argVregs.forEach(vreg -> pgVregInfo(vreg));
+        long entryCount = root.hasProfile ? func.getStart().estimateProfileCount() : -1;
         for (BasicBlock bb : func.getReversePreOrder())
             for (Quad inst : bb.getInsts()) {
+                double weight = spillWeight(bb, entryCount);
+                for (Register reg : inst.getUsedRegisters())
+                    if (reg instanceof VirtualRegister)
+                        pgVregInfo((VirtualRegister) reg).spillCost += weight;
+
                 Register definedReg = inst.getDefinedRegister();
                 if (!(definedReg instanceof VirtualRegister))
                     continue;
 
                 VregInfo vregInfo = pgVregInfo((VirtualRegister) definedReg);
+                if (!rematValues.containsKey(definedReg))
+                    vregInfo.spillCost += weight;
 
                 // add edge
                 if (inst instanceof Move) { // may be same Reg
@@ -186,6 +250,8 @@ public class RegisterAllocator {
                         vregInfo.SameVregs.add((VirtualRegister) rhs);
                         pgVregInfo((VirtualRegister) rhs).SameVregs
                                 .add((VirtualRegister) definedReg);
+                        moves.add(new VirtualRegister[] { (VirtualRegister) definedReg,
+                                (VirtualRegister) rhs });
                     }
 
                     for (VirtualRegister vreg : inst.liveOut)
@@ -199,14 +265,19 @@ public class RegisterAllocator {
             }
         vregInfoMap.values().forEach(info -> info.degree = info.neighbours.size());
 
+        // STEP1-2: coalesce
+        Coalesce();
+
         // init Vreg Node and Start Vreg Node
-        vregNodes.addAll(vregInfoMap.keySet());
+        vregInfoMap.forEach((vreg, info) -> {
+            if (info.alias == null)
+                vregNodes.add(vreg);
+        });
         vregNodes.stream().filter(vreg -> (vregInfoMap.get(vreg).degree < numColors))
                 .forEach(startVregNodes::add);
 
         // STEP2: simplify
         // get Vreg Order-Stack
-        // TODO: make coalesce of graph
         while (!vregNodes.isEmpty()) {
             while (!startVregNodes.isEmpty()) {
                 Iterator<VirtualRegister> iter = startVregNodes.iterator();
@@ -222,7 +293,7 @@ public class RegisterAllocator {
                 break;
 
             // once can noly delete 1 (degree can change)
-            VirtualRegister vreg = vregNodes.iterator().next();
+            VirtualRegister vreg = selectSpill();
 
             vregNodes.remove(vreg);
             removeVregInfo(vreg);
@@ -257,7 +328,8 @@ public class RegisterAllocator {
             } else {
                 // paint same color from move-inst
                 for (VirtualRegister moveVreg : vregInfo.SameVregs) {
-                    Register color = pgVregInfo(moveVreg).color; // may changed move-vreg
+                    // may changed move-vreg
+                    Register color = vregInfoMap.get(getAlias(moveVreg)).color;
 
                     if (color instanceof PhysicalRegister && !usedColors.contains(color)) {
                         vregInfo.color = color; // changed vreg
@@ -286,25 +358,452 @@ public class RegisterAllocator {
             }
         }
 
+        // coalesced vregs share the color
+        vregInfoMap.forEach((vreg, info) -> {
+            if (info.alias != null)
+                info.color = vregInfoMap.get(getAlias(vreg)).color;
+        });
+
         // STEP4: start over(deal StackSlot)
         // update color after setting stack
         for (BasicBlock bb : func.getReversePreOrder()) {
-            ListIterator<Quad> iter = bb.getInsts().listIterator();
-            while (iter.hasNext()) // Solved: iter.next outside
-                updateInstruction(func, iter);
+            Quad nextInst;
+            for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst(); // insts added around are not updated again
+                updateInstruction(func, bb, inst);
+            }
+        }
+    }
+
+    // region allocate-linear-scan
+    /** [start, end] over liveness positions, in = 2 * index, out = in + 1 */
+    private class Interval {
+        final VirtualRegister vreg;
+        int start = Integer.MAX_VALUE, end = Integer.MIN_VALUE;
+        VirtualRegister hint = null; // from MOVE vreg <- hint
+
+        Interval(VirtualRegister vreg) {
+            this.vreg = vreg;
+        }
+
+        void cover(int pos) {
+            start = Math.min(start, pos);
+            end = Math.max(end, pos);
+        }
+    }
+
+    /**
+     * Poletto and Sarkar: Linear Scan Register Allocation
+     * <p>
+     * intervals come from liveIn/liveOut of {@link Lifeness}, spill the one
+     * ending last, colors are set as {@link #Allocate} does
+     */
+    public void LinearScan(Function func) {
+        vregInfoMap.clear();
+        initRemat(func);
+
+        // STEP1: build intervals
+        Map<VirtualRegister, Interval> intervalMap = new LinkedHashMap<>();
+        for (VirtualRegister vreg : func.argVregs)
+            intervalMap.computeIfAbsent(vreg, Interval::new).cover(-1);
+
+        int index = 0;
+        for (BasicBlock bb : func.getReversePreOrder())
+            for (Quad inst : bb.getInsts()) {
+                int in = 2 * index, out = in + 1;
+                ++index;
+
+                for (VirtualRegister vreg : inst.liveIn)
+                    intervalMap.computeIfAbsent(vreg, Interval::new).cover(in);
+                for (VirtualRegister vreg : inst.liveOut)
+                    intervalMap.computeIfAbsent(vreg, Interval::new).cover(out);
+                for (Register reg : inst.getUsedRegisters())
+                    if (reg instanceof VirtualRegister)
+                        intervalMap.computeIfAbsent((VirtualRegister) reg, Interval::new)
+                                .cover(in);
+
+                Register definedReg = inst.getDefinedRegister();
+                if (definedReg instanceof VirtualRegister) {
+                    Interval interval = intervalMap.computeIfAbsent(
+                            (VirtualRegister) definedReg, Interval::new);
+                    interval.cover(out);
+                    if (inst instanceof Move && ((Move) inst).getRhs() instanceof VirtualRegister)
+                        interval.hint = (VirtualRegister) ((Move) inst).getRhs();
+                }
+            }
+
+        List<Interval> intervals = new ArrayList<>(intervalMap.values());
+        intervals.sort((x, y) -> x.start - y.start);
+
+        // STEP2: scan
+        List<Interval> active = new ArrayList<>(); // sorted by end
+        Deque<PhysicalRegister> freeRegs = new ArrayDeque<>(phyRegs);
+
+        for (Interval cur : intervals) {
+            VregInfo curInfo = pgVregInfo(cur.vreg);
+            if (cur.vreg.forcedPhysicalRegister != null) { // args: not in phyRegs
+                curInfo.color = cur.vreg.forcedPhysicalRegister;
+                continue;
+            }
+
+            // expire old intervals
+            Iterator<Interval> iter = active.iterator();
+            while (iter.hasNext()) {
+                Interval old = iter.next();
+                if (old.end >= cur.start)
+                    break;
+                iter.remove();
+                freeRegs.push((PhysicalRegister) vregInfoMap.get(old.vreg).color);
+            }
+
+            if (!freeRegs.isEmpty()) {
+                Register hintColor = (cur.hint == null || vregInfoMap.get(cur.hint) == null)
+                        ? null : vregInfoMap.get(cur.hint).color;
+                PhysicalRegister preg = (hintColor instanceof PhysicalRegister
+                        && freeRegs.remove(hintColor)) ? (PhysicalRegister) hintColor
+                                : freeRegs.pop();
+                curInfo.color = preg;
+                insertActive(active, cur);
+                continue;
+            }
+
+            // spill the one ending last
+            Interval last = active.get(active.size() - 1);
+            if (last.end > cur.end) {
+                VregInfo lastInfo = vregInfoMap.get(last.vreg);
+                curInfo.color = lastInfo.color;
+                lastInfo.color = getSpillSlot(func, last.vreg);
+                active.remove(active.size() - 1);
+                insertActive(active, cur);
+            } else {
+                curInfo.color = getSpillSlot(func, cur.vreg);
+            }
+        }
+
+        // STEP3: start over(deal StackSlot)
+        for (BasicBlock bb : func.getReversePreOrder()) {
+            Quad nextInst;
+            for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst(); // insts added around are not updated again
+                updateInstruction(func, bb, inst);
+            }
+        }
+    }
+
+    private void insertActive(List<Interval> active, Interval interval) {
+        int pos = active.size();
+        while (pos > 0 && active.get(pos - 1).end > interval.end)
+            --pos;
+        active.add(pos, interval);
+    }
+
+    private StackSlot getSpillSlot(Function func, VirtualRegister vreg) {
+        StackSlot slot = func.argsToStackSlot.get(vreg);
+        return (slot != null) ? slot : new StackSlot(vreg.getName(), func, false);
+    }
+    // endregion
+
+    // region coalesce and spill
+    private static final int MaxLoopDepth = 8;
+
+    /**
+     * executions of bb per call of func, by profile if both counts are known,
+     * never-executed code costs a little so that it is spilled first
+     */
+    private static double spillWeight(BasicBlock bb, long entryCount) {
+        long count = (entryCount > 0) ? bb.estimateProfileCount() : -1;
+        if (count < 0)
+            return Math.pow(10, Math.min(bb.loopDepth, MaxLoopDepth));
+        return Math.max((double) count / entryCount, 1e-3);
+    }
+
+    /** MOVE dst <- rhs, both vregs */
+    private List<VirtualRegister[]> moves = new ArrayList<>();
+
+    private VirtualRegister getAlias(VirtualRegister vreg) {
+        while (vregInfoMap.get(vreg).alias != null)
+            vreg = vregInfoMap.get(vreg).alias;
+        return vreg;
+    }
+
+    /**
+     * conservative coalescing, repeat until no move can be merged
+     * <p>
+     * Briggs: merged node has less than K neighbours of significant degree
+     * <p>
+     * George: every neighbour of y interferes with x or is insignificant
+     * <p>
+     * forced vregs(args) are left alone
+     */
+    private void Coalesce() {
+        boolean changed;
+        do {
+            changed = false;
+            for (VirtualRegister[] move : moves) {
+                VirtualRegister x = getAlias(move[0]), y = getAlias(move[1]);
+                if (x == y || x.forcedPhysicalRegister != null
+                        || y.forcedPhysicalRegister != null)
+                    continue;
+
+                VregInfo xInfo = vregInfoMap.get(x), yInfo = vregInfoMap.get(y);
+                if (xInfo.neighbours.contains(y))
+                    continue;
+                if (!canBriggs(xInfo, yInfo) && !canGeorge(x, yInfo))
+                    continue;
+
+                merge(x, y);
+                changed = true;
+            }
+        } while (changed);
+    }
+
+    private boolean canBriggs(VregInfo xInfo, VregInfo yInfo) {
+        Set<VirtualRegister> union = new HashSet<>(xInfo.neighbours);
+        union.addAll(yInfo.neighbours);
+
+        int significant = 0;
+        for (VirtualRegister vreg : union) {
+            VregInfo info = vregInfoMap.get(vreg);
+            int degree = info.degree;
+            // common neighbour loses one edge after merging
+            if (xInfo.neighbours.contains(vreg) && yInfo.neighbours.contains(vreg))
+                --degree;
+            if (degree >= numColors)
+                ++significant;
+        }
+        return significant < numColors;
+    }
+
+    private boolean canGeorge(VirtualRegister x, VregInfo yInfo) {
+        for (VirtualRegister vreg : yInfo.neighbours) {
+            VregInfo info = vregInfoMap.get(vreg);
+            if (info.degree >= numColors && !info.neighbours.contains(x))
+                return false;
+        }
+        return true;
+    }
+
+    /** y into x */
+    private void merge(VirtualRegister x, VirtualRegister y) {
+        VregInfo xInfo = vregInfoMap.get(x), yInfo = vregInfoMap.get(y);
+        yInfo.alias = x;
+
+        for (VirtualRegister neighbour : yInfo.neighbours) {
+            VregInfo neighbourInfo = vregInfoMap.get(neighbour);
+            neighbourInfo.neighbours.remove(y);
+            neighbourInfo.neighbours.add(x);
+            neighbourInfo.degree = neighbourInfo.neighbours.size();
+            xInfo.neighbours.add(neighbour);
+        }
+        xInfo.degree = xInfo.neighbours.size();
+        yInfo.neighbours.clear();
+
+        xInfo.SameVregs.addAll(yInfo.SameVregs);
+        xInfo.SameVregs.remove(x);
+        xInfo.SameVregs.remove(y);
+        xInfo.spillCost += yInfo.spillCost;
+    }
+
+    /** the cheapest: spillCost / degree, args are never chosen if possible */
+    private VirtualRegister selectSpill() {
+        VirtualRegister selected = null;
+        double minCost = Double.MAX_VALUE;
+        for (VirtualRegister vreg : vregNodes) {
+            VregInfo info = vregInfoMap.get(vreg);
+            double cost = (vreg.forcedPhysicalRegister != null) ? Double.MAX_VALUE
+                    : info.spillCost / Math.max(info.degree, 1);
+            if (selected == null || cost < minCost) {
+                selected = vreg;
+                minCost = cost;
+            }
+        }
+        return selected;
+    }
+    // endregion
+
+    // region split and remat
+    /**
+     * split vregs live through a loop but never referenced in it:
+     *
+     * <pre>
+     * preheader: vreg_split = vreg; jump header
+     * exit: vreg = vreg_split; ...
+     * </pre>
+     *
+     * so only the cheap vreg_split crosses the loop and is the one to be
+     * spilled, only for loops whose pressure may cause spilling, with one
+     * preheader and exits entered only from the loop
+     * <p>
+     * values live across calls are already saved by push and pop in
+     * {@link MemAndStack}, so no split there
+     */
+    private boolean SplitLiveRanges() {
+        boolean changed = false;
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            func.initLinks(); // jumps may be retargeted by Lifeness
+            func.initLoops();
+            initRemat(func);
+
+            Map<Loop, Set<VirtualRegister>> splitVregs = new HashMap<>();
+            for (Loop loop : func.loops) // outer first
+                changed |= splitLoop(loop, splitVregs);
+        }
+        return changed;
+    }
+
+    private boolean splitLoop(Loop loop, Map<Loop, Set<VirtualRegister>> splitVregs) {
+        BasicBlock header = loop.getHeader(), preheader = loop.preheader;
+        if (preheader == null)
+            return false;
+
+        Set<BasicBlock> exits = new LinkedHashSet<>();
+        for (BasicBlock bb : loop.blocks)
+            for (BasicBlock nextBB : bb.getNext())
+                if (!loop.contains(nextBB))
+                    exits.add(nextBB);
+        for (BasicBlock exit : exits)
+            for (BasicBlock prevBB : exit.getPrev())
+                if (!loop.contains(prevBB))
+                    return false;
+
+        int pressure = 0;
+        Set<Register> referenced = new HashSet<>();
+        for (BasicBlock bb : loop.blocks)
+            for (Quad inst : bb.getInsts()) {
+                pressure = Math.max(pressure, inst.liveIn.size());
+                referenced.addAll(inst.getUsedRegisters());
+                referenced.add(inst.getDefinedRegister());
+            }
+        if (pressure < numColors)
+            return false;
+
+        Set<VirtualRegister> split = new HashSet<>();
+        splitVregs.put(loop, split);
+
+        Quad preJump = preheader.getInsts().getLast();
+        for (VirtualRegister vreg : header.getInsts().getFirst().liveIn) {
+            if (referenced.contains(vreg) || vreg.forcedPhysicalRegister != null
+                    || rematValues.containsKey(vreg) || isSplitOutside(loop, vreg, splitVregs))
+                continue;
+
+            VirtualRegister splitVreg = new VirtualRegister(vreg.getName() + "_split");
+            preheader.addBefore(preJump, new Move(preheader, splitVreg, vreg));
+            for (BasicBlock exit : exits)
+                if (exit.getInsts().getFirst().liveIn.contains(vreg))
+                    exit.getInsts().addFirst(new Move(exit, vreg, splitVreg));
+            split.add(vreg);
         }
+        return !split.isEmpty();
+    }
+
+    /** already split by outer loop, so not live here anymore */
+    private boolean isSplitOutside(Loop loop, VirtualRegister vreg,
+            Map<Loop, Set<VirtualRegister>> splitVregs) {
+        for (Loop outer = loop.parent; outer != null; outer = outer.parent)
+            if (splitVregs.getOrDefault(outer, Collections.emptySet()).contains(vreg))
+                return true;
+        return false;
+    }
+
+    /** vreg -> IntImm or StaticString, recomputed rather than reloaded if spilled */
+    private Map<VirtualRegister, RegValue> rematValues = new HashMap<>();
+
+    /** vregs defined only once by MOVE vreg <- imm or LOAD vreg <- string addr */
+    private void initRemat(Function func) {
+        rematValues.clear();
+        Set<VirtualRegister> defined = new HashSet<>();
+        for (BasicBlock bb : func.getReversePreOrder())
+            for (Quad inst : bb.getInsts()) {
+                Register definedReg = inst.getDefinedRegister();
+                if (!(definedReg instanceof VirtualRegister))
+                    continue;
+
+                VirtualRegister vreg = (VirtualRegister) definedReg;
+                RegValue value = null;
+                if (inst instanceof Move && ((Move) inst).getRhs() instanceof IntImm)
+                    value = ((Move) inst).getRhs();
+                else if (inst instanceof Load && ((Load) inst).baseAddr instanceof StaticString)
+                    value = ((Load) inst).baseAddr;
+
+                if (!defined.add(vreg) || value == null)
+                    rematValues.remove(vreg);
+                else
+                    rematValues.put(vreg, value);
+            }
+        func.argVregs.forEach(rematValues::remove);
+    }
+
+    private boolean isSpilledRemat(RegValue reg) {
+        return rematValues.containsKey(reg)
+                && vregInfoMap.get(reg).color instanceof StackSlot;
+    }
+
+    private Quad remat(BasicBlock bb, PhysicalRegister preg, RegValue value) {
+        if (value instanceof IntImm)
+            return new Move(bb, preg, value);
+        return new Load(bb, preg, RegSize, (StaticString) value, true);
+    }
+    // endregion
+
+    private int numSpilledUses(Quad inst) {
+        Set<Register> spilled = new HashSet<>();
+        for (Register reg : inst.getUsedRegisters())
+            if (reg instanceof VirtualRegister && vregInfoMap.get(reg).color instanceof StackSlot)
+                spilled.add(reg);
+        return spilled.size();
+    }
+
+    private void reload(BasicBlock bb, Quad inst, PhysicalRegister preg, Register vreg) {
+        if (rematValues.containsKey(vreg))
+            bb.addBefore(inst, remat(bb, preg, rematValues.get(vreg)));
+        else
+            bb.addBefore(inst, new Load(bb, preg, RegSize, vregInfoMap.get(vreg).color, 0));
+    }
+
+    /**
+     * base, index and value of a Store are all spilled, but only preg0 and
+     * preg1 are left: add base and index to preg0 first
+     */
+    private void unfoldIndex(Function func, BasicBlock bb, Store inst) {
+        reload(bb, inst, preg0, (Register) inst.getIndex());
+        for (int scale = inst.getScale(); scale > 1; scale /= 2)
+            bb.addBefore(inst, new Bin(bb, preg0, BinaryOpExprNode.Op.ADD, preg0, preg0));
+        reload(bb, inst, preg1, (Register) inst.baseAddr);
+        bb.addBefore(inst, new Bin(bb, preg0, BinaryOpExprNode.Op.ADD, preg0, preg1));
+        reload(bb, inst, preg1, (Register) inst.getValue());
+
+        Map<Register, Register> renameMap = new HashMap<>();
+        renameMap.put((Register) inst.baseAddr, preg0);
+        renameMap.put((Register) inst.getValue(), preg1);
+        inst.setIndex(null, 1);
+        inst.setUsedRegisters(renameMap);
+        func.usedPhysicalGeneralRegs.add(preg0);
+        func.usedPhysicalGeneralRegs.add(preg1);
     }
 
     /** rename same name reg with colored reg */
-    private void updateInstruction(Function func, ListIterator<Quad> iter) {
-        Quad inst = iter.next();
-        BasicBlock bb = inst.getParent();
+    private void updateInstruction(Function func, BasicBlock bb, Quad inst) {
+        // rematerialized at every use
+        if (isSpilledRemat(inst.getDefinedRegister())) {
+            bb.removeInst(inst);
+            return;
+        }
+
+        if (inst instanceof Store && ((Store) inst).getIndex() != null && numSpilledUses(inst) > 2) {
+            unfoldIndex(func, bb, (Store) inst);
+            return;
+        }
 
         // set used Regs
         if (inst instanceof Funcall) { // set more args
             List<RegValue> args = ((Funcall) inst).getArgs();
             for (int i = 0; i < args.size(); ++i) {
-                if (args.get(i) instanceof VirtualRegister) {
+                if (isSpilledRemat(args.get(i))) {
+                    args.set(i, rematValues.get(args.get(i)));
+                } else if (args.get(i) instanceof VirtualRegister) {
                     args.set(i, vregInfoMap.get(args.get(i)).color);
                 }
             }
@@ -328,7 +827,10 @@ public class RegisterAllocator {
                                 usedPreg0 = true;
                             }
 
-                            bb.addBeforeInst(iter, new Load(bb, preg, RegSize, color, 0));
+                            if (rematValues.containsKey(reg))
+                                bb.addBefore(inst, remat(bb, preg, rematValues.get(reg)));
+                            else
+                                bb.addBefore(inst, new Load(bb, preg, RegSize, color, 0));
                             color = preg;
                         }
 
@@ -348,7 +850,7 @@ public class RegisterAllocator {
         if (definedReg instanceof VirtualRegister) {
             Register color = vregInfoMap.get(definedReg).color;
             if (color instanceof StackSlot) {
-                bb.addAfterInst(iter, new Store(bb, preg0, RegSize, color, 0), false);
+                bb.addAfter(inst, new Store(bb, preg0, RegSize, color, 0));
                 color = preg0;
             }
 
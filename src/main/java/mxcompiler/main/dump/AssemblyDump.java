@@ -9,6 +9,7 @@ import mxcompiler.error.CompileError;
 import mxcompiler.ir.*;
 import mxcompiler.ir.register.*;
 import mxcompiler.ir.instruction.*;
+import mxcompiler.main.Allocator;
 
 import mxcompiler.utils.*;
 
@@ -17,9 +18,11 @@ import java.io.*;
 
 public class AssemblyDump implements IRVisitor {
     private final PrintStream os;
+    private final Allocator allocator;
 
-    public AssemblyDump(PrintStream x) {
+    public AssemblyDump(PrintStream x, Allocator allocator) {
         os = x;
+        this.allocator = allocator;
     }
 
     public void dump(Root root) {
@@ -34,12 +37,15 @@ public class AssemblyDump implements IRVisitor {
     private Map<String, Integer> idCounter = new HashMap<>();
     /** object -> id */
     private Map<Object, String> idMap = new HashMap<>();
-    private PhysicalRegister preg0;
+    private PhysicalRegister preg0, preg1;
     private boolean isBssSection, isDataSection;
+    /** BB emitted after each BB, a jump to it falls through */
+    private Map<BasicBlock, BasicBlock> layoutNext = new HashMap<>();
 
     /** only for user-functions(no builtIn func) */
     public void visit(Root node) {
         preg0 = node.preg0;
+        preg1 = node.preg1;
 
         idMap.put(node.getFunc().get("main").getStart(), "main");
 
@@ -58,6 +64,9 @@ public class AssemblyDump implements IRVisitor {
                 visit(func.getValue());
         visit(node.getFunc().get("main"));
 
+        // allocator of builtIn funcs
+        printlnLabel("__builtin_alloc");
+        println("jmp", allocator.getLabel());
         println("");
 
         // data
@@ -87,15 +96,21 @@ public class AssemblyDump implements IRVisitor {
         printlnComment("function " + node.getName());
         println("");
 
-        int bbIdx = 0; // ???
-        for (BasicBlock bb : node.getReversePostOrder()) {
+        List<BasicBlock> layout = (node.layout != null) ? node.layout : node.getReversePostOrder();
+        layoutNext.clear();
+        for (int i = 0; i + 1 < layout.size(); ++i)
+            layoutNext.put(layout.get(i), layout.get(i + 1));
+
+        for (BasicBlock bb : layout)
             visit(bb);
-            ++bbIdx;
-        }
 
         println("");
     }
 
+    private boolean fallsThrough(BasicBlock from, BasicBlock to) {
+        return layoutNext.get(from) == to;
+    }
+
     private String bbId(BasicBlock bb) {
         String id = idMap.get(bb);
         if (id == null) {
@@ -119,14 +134,32 @@ public class AssemblyDump implements IRVisitor {
     }
 
     public void visit(Funcall node) {
+        String op = node.isTail() ? "jmp" : "call";
         if (node.getFunc().isBuiltIn())
-            println("call", node.getFunc().getBuiltInLabel());
+            println(op, node.getFunc().getBuiltInLabel());
         else
-            println("call", bbId(node.getFunc().getStart()));
+            println(op, bbId(node.getFunc().getStart()));
     }
 
     public void visit(HeapAlloc node) {
-        println("call", "malloc");
+        if (!node.isInline()) {
+            println("call", allocator.getLabel());
+            return;
+        }
+
+        // as __builtin_arena_alloc: 8-byte aligned, refill keeps all but rax
+        int value = ((IntImm) node.getAllocSize()).getValue();
+        String size = Integer.toString(Math.max((value + 7) & -8, 8));
+        String bumped = Tool.BLOCK + newId("arena_bumped");
+        println("mov", "rax", "qword [__builtin_arena_ptr]");
+        println("add", "rax", size);
+        println("cmp", "rax", "qword [__builtin_arena_end]");
+        println("jbe", bumped);
+        println("mov", "rax", size);
+        println("call", "__builtin_arena_refill");
+        printlnLabel(bumped);
+        println("mov", "qword [__builtin_arena_ptr]", "rax");
+        println("lea", visit(node.getDst()), "[rax-" + size + "]");
     }
 
     // region jump
@@ -135,32 +168,71 @@ public class AssemblyDump implements IRVisitor {
     }
 
     public void visit(Jump node) {
-        // remove meaningless jump
-        if (node.getTarget().postOrder + 1 == node.getParent().postOrder)
+        // remove meaningless jump, or the dead one after a tail call
+        if (fallsThrough(node.getParent(), node.getTarget()) || isTailCall(node.getPrevInst()))
             return;
 
         println("jmp", bbId(node.getTarget()));
     }
 
+    private boolean isTailCall(Quad inst) {
+        return inst instanceof Funcall && ((Funcall) inst).isTail();
+    }
+
     public void visit(CJump node) {
         if (node.getCond() instanceof IntImm) {
             int isJump = ((IntImm) node.getCond()).getValue();
             BasicBlock target = (isJump == 1) ? node.getThen() : node.getElse();
 
-            if (target.postOrder + 1 == node.getParent().postOrder)
+            if (fallsThrough(node.getParent(), target))
                 return;
             println("jmp", bbId(target));
             return;
         }
 
-        println("cmp", visit(node.getCond()), "1");
-        println("je", bbId(node.getThen()));
+        String cc, invertedCC;
+        if (node.isFused()) {
+            println("cmp", visit(node.getLhs()), visit(node.getRhs()));
+            cc = conditionCode(node.getOp(), false);
+            invertedCC = conditionCode(node.getOp(), true);
+        } else {
+            println("cmp", visit(node.getCond()), "1");
+            cc = "e";
+            invertedCC = "ne";
+        }
+
+        // invert, so that then falls through
+        if (fallsThrough(node.getParent(), node.getThen())) {
+            println("j" + invertedCC, bbId(node.getElse()));
+            return;
+        }
+        println("j" + cc, bbId(node.getThen()));
 
         // remove meaningless jump
-        if (node.getElse().postOrder + 1 == node.getParent().postOrder)
+        if (fallsThrough(node.getParent(), node.getElse()))
             return;
         println("jmp", bbId(node.getElse()));
     }
+
+    /** of setcc and jcc after cmp lhs, rhs */
+    private static String conditionCode(BinaryOpExprNode.Op op, boolean inverted) {
+        switch (op) {
+        case EQUAL:
+            return inverted ? "ne" : "e";
+        case INEQUAL:
+            return inverted ? "e" : "ne";
+        case LESS:
+            return inverted ? "ge" : "l";
+        case LESS_EQUAL:
+            return inverted ? "g" : "le";
+        case GREATER:
+            return inverted ? "le" : "g";
+        case GREATER_EQUAL:
+            return inverted ? "l" : "ge";
+        default:
+            throw new CompileError("impossible");
+        }
+    }
     // endregion
 
     // region regValues
@@ -188,6 +260,7 @@ public class AssemblyDump implements IRVisitor {
     public String visit(StaticVar node) {
         if (isBssSection) {
             String op;
+            int num = 1;
             switch (node.getSize()) {
             case 1:
                 op = "resb";
@@ -202,10 +275,13 @@ public class AssemblyDump implements IRVisitor {
                 op = "resq";
                 break;
             default:
-                throw new CompileError("invalid static data size");
+                if (node.getSize() % 8 != 0)
+                    throw new CompileError("invalid static data size");
+                op = "resq"; // array
+                num = node.getSize() / 8;
             }
             printlnLabel(dataId(node));
-            println(op, "1");
+            println(op, Integer.toString(num));
             return null;
         } else
             return dataId(node);
@@ -235,6 +311,38 @@ public class AssemblyDump implements IRVisitor {
     // endregion
 
     // region op
+    /** jump to the fail routine of BuiltIn.asm, a constant pointer is null */
+    public void visit(Check node) {
+        if (node.getPointer() instanceof IntImm) {
+            println("jmp", "__builtin_null_fail");
+            return;
+        }
+
+        String pointer = visit(node.getPointer());
+        if (node.getKind() == Check.Kind.NULL) {
+            println("test", pointer, pointer);
+            println("jz", "__builtin_null_fail");
+        } else {
+            println("cmp", "qword [" + pointer + "]", visit(node.getIndex()));
+            println("jbe", "__builtin_bounds_fail");
+        }
+    }
+
+    /** rdx:rax = rax * lhs, rdx is kept in preg1 (lhs is never in preg1) */
+    public void visit(MulHigh node) {
+        // rdx:rax = rax * lhs, rdx is kept unless it is dst
+        String dst = visit(node.getDst());
+        boolean keepRdx = !dst.equals("rdx");
+        if (keepRdx)
+            println("mov", preg1.getName(), "rdx");
+        println("mov", "rax", Long.toString(node.getMagic()));
+        println("imul", visit(node.getLhs()));
+        if (keepRdx) {
+            println("mov", dst, "rdx");
+            println("mov", "rdx", preg1.getName());
+        }
+    }
+
     public void visit(Uni node) {
         String op;
         switch (node.getOp()) {
@@ -265,31 +373,7 @@ public class AssemblyDump implements IRVisitor {
         println("xor", "rax", "rax");
         println("cmp", visit(node.getLhs()), visit(node.getRhs()));
 
-        String op;
-        switch (node.getOp()) {
-        case EQUAL:
-            op = "sete";
-            break;
-        case INEQUAL:
-            op = "setne";
-            break;
-        case LESS:
-            op = "setl";
-            break;
-        case LESS_EQUAL:
-            op = "setle";
-            break;
-        case GREATER:
-            op = "setg";
-            break;
-        case GREATER_EQUAL:
-            op = "setge";
-            break;
-        default:
-            throw new CompileError("impossible");
-        }
-
-        println(op, "al");
+        println("set" + conditionCode(node.getOp(), false), "al");
         println("mov", visit(node.getDst()), "rax");
     }
 
@@ -306,7 +390,11 @@ public class AssemblyDump implements IRVisitor {
             println("mov", "rax", visit(node.getLhs()));
             println("mov", preg0.getName(), "rdx");
 
-            println("\t\tcdq");
+            // the int is the low half (a sum may carry above it), so
+            // sign-extend; 64-bit idiv does not fault on INT_MIN / -1
+            println("movsxd", "rax", "eax");
+            println("movsxd", "rbx", "ebx");
+            println("\t\tcqo");
             // <rdx:rax> / rbx store rax(quotient), rdx(remain)
             println("idiv", "rbx");
 
@@ -318,10 +406,14 @@ public class AssemblyDump implements IRVisitor {
 
         case SH_L:
         case SH_R:
+            op = (node.getOp() == BinaryOpExprNode.Op.SH_L) ? "sal" : "sar";
+            if (node.getRhs() instanceof IntImm) {
+                println(op, visit(node.getLhs()), visit(node.getRhs()));
+                return;
+            }
+
             println("mov", "rbx", "rcx");
             println("mov", "rcx", visit(node.getRhs()));
-
-            op = (node.getOp() == BinaryOpExprNode.Op.SH_L) ? "sal" : "sar";
             println(op, visit(node.getLhs()), "cl");
 
             println("mov", "rcx", "rbx");
@@ -399,6 +491,8 @@ public class AssemblyDump implements IRVisitor {
 
     private String toAddr(MemQuad node) {
         String addr = visit(node.baseAddr);
+        if (node.getIndex() != null)
+            addr += "+" + visit(node.getIndex()) + ((node.getScale() != 1) ? "*" + node.getScale() : "");
 
         if (node.offset < 0) {
             addr += node.offset;
@@ -417,7 +511,7 @@ public class AssemblyDump implements IRVisitor {
     }
 
     public void visit(Load node) {
-        if (node.baseAddr instanceof StaticString) {
+        if (node.baseAddr instanceof StaticString || node.isLoadAddr()) {
             printMove("mov", visit(node.getDst()), getSize(node.getSize()) + visit(node.baseAddr));
             return;
         }
@@ -445,15 +539,21 @@ public class AssemblyDump implements IRVisitor {
 
     // endregion
 
+    /** a Load to its base or index, the same access after it is of other address */
+    private static boolean loadsOwnAddr(MemQuad inst) {
+        return inst instanceof Load
+                && (inst.getValue() == inst.baseAddr || inst.getValue() == inst.getIndex());
+    }
+
     /** pre-dump-elimate */
     private void elimateMoveMemQuad(BasicBlock bb) {
         Quad prevInst = null;
         Quad inst = null;
         boolean remove = false;
 
-        ListIterator<Quad> iter = bb.getInsts().listIterator();
-        while (iter.hasNext()) {
-            inst = iter.next();
+        Quad nextInst;
+        for (inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
             remove = false;
 
             if (inst instanceof Move) {
@@ -466,10 +566,8 @@ public class AssemblyDump implements IRVisitor {
                         remove = true;
                 }
             } else if (inst instanceof MemQuad && prevInst instanceof MemQuad) {
-                if (((MemQuad) prevInst).baseAddr == ((MemQuad) inst).baseAddr
-                        && ((MemQuad) prevInst).offset == ((MemQuad) inst).offset
-                        && ((MemQuad) prevInst).getValue() == ((MemQuad) inst).getValue()
-                        && ((MemQuad) prevInst).getSize() == ((MemQuad) inst).getSize()) {
+                if (((MemQuad) prevInst).sameAccess((MemQuad) inst)
+                        && !loadsOwnAddr((MemQuad) prevInst)) {
                     // before store a to b, but load b to a again
                     // before load, but store again
                     // double load a to b or store a to b
@@ -480,7 +578,7 @@ public class AssemblyDump implements IRVisitor {
             }
 
             if (remove)
-                bb.removeInst(iter);
+                bb.removeInst(inst);
             else
                 prevInst = inst;
         }
@@ -495,6 +593,10 @@ public class AssemblyDump implements IRVisitor {
         throw new CompileError("should not visit stack sslot node in nasm");
     }
 
+    public void visit(Phi node) {
+        throw new CompileError("should not visit phi node in nasm");
+    }
+
     public void visit(MemQuad node) {
         node.accept(this);
     }
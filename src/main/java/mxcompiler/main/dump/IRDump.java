@@ -3,6 +3,7 @@ package mxcompiler.main.dump;
 import java.io.PrintStream;
 import java.util.*;
 
+import mxcompiler.ast.expression.BinaryOpExprNode;
 import mxcompiler.error.CompileError;
 import mxcompiler.ir.*;
 import mxcompiler.ir.register.*;
@@ -131,7 +132,14 @@ public class IRDump implements IRVisitor, Dump {
     @Override
     public void visit(CJump node) {
         os.print("    br ");
-        node.getCond().accept(this);
+        if (node.isFused()) {
+            os.printf("%s ", cmpName(node.getOp()));
+            node.getLhs().accept(this);
+            os.print(" ");
+            node.getRhs().accept(this);
+        } else {
+            node.getCond().accept(this);
+        }
         os.println(" %" + getBBID(node.getThen()) + " %" + getBBID(node.getElse()));
         os.println();
     }
@@ -153,6 +161,26 @@ public class IRDump implements IRVisitor, Dump {
         os.println();
     }
 
+    @Override
+    public void visit(Check node) {
+        os.print("    check ");
+        node.getPointer().accept(this);
+        if (node.getIndex() != null) {
+            os.print(" ");
+            node.getIndex().accept(this);
+        }
+        os.println();
+    }
+
+    @Override
+    public void visit(MulHigh node) {
+        os.print("    ");
+        node.getDst().accept(this);
+        os.print(" = mulh ");
+        node.getLhs().accept(this);
+        os.println(" " + node.getMagic());
+    }
+
     @Override
     public void visit(Uni node) {
         os.print("    ");
@@ -220,33 +248,31 @@ public class IRDump implements IRVisitor, Dump {
     @Override
     public void visit(Cmp node) {
         os.print("    ");
-        String op = null;
-        switch (node.getOp()) {
+        node.getDst().accept(this);
+        os.printf(" = %s ", cmpName(node.getOp()));
+        node.getLhs().accept(this);
+        os.printf(" ");
+        node.getRhs().accept(this);
+        os.println();
+    }
+
+    private String cmpName(BinaryOpExprNode.Op op) {
+        switch (op) {
         case EQUAL:
-            op = "seq";
-            break;
+            return "seq";
         case INEQUAL:
-            op = "sne";
-            break;
+            return "sne";
         case GREATER:
-            op = "sgt";
-            break;
+            return "sgt";
         case GREATER_EQUAL:
-            op = "sge";
-            break;
+            return "sge";
         case LESS:
-            op = "slt";
-            break;
+            return "slt";
         case LESS_EQUAL:
-            op = "sle";
-            break;
+            return "sle";
+        default:
+            return null;
         }
-        node.getDst().accept(this);
-        os.printf(" = %s ", op);
-        node.getLhs().accept(this);
-        os.printf(" ");
-        node.getRhs().accept(this);
-        os.println();
     }
 
     @Override
@@ -258,13 +284,26 @@ public class IRDump implements IRVisitor, Dump {
         os.println();
     }
 
+    @Override
+    public void visit(Phi node) {
+        os.print("    ");
+        node.getDst().accept(this);
+        os.print(" = phi");
+        for (Map.Entry<BasicBlock, RegValue> path : node.getPaths().entrySet()) {
+            os.printf(" %%%s ", getBBID(path.getKey()));
+            path.getValue().accept(this);
+        }
+        os.println();
+    }
+
     @Override
     public void visit(Load node) {
         os.print("    ");
         node.getDst().accept(this);
         os.printf(" = load %d ", node.getSize());
         node.baseAddr.accept(this);
-        os.println(" " + node.offset);
+        os.print(" " + node.offset);
+        printIndex(node);
     }
 
     @Override
@@ -273,7 +312,17 @@ public class IRDump implements IRVisitor, Dump {
         node.baseAddr.accept(this);
         os.print(" ");
         node.getValue().accept(this);
-        os.println(" " + node.offset);
+        os.print(" " + node.offset);
+        printIndex(node);
+    }
+
+    private void printIndex(MemQuad node) {
+        if (node.getIndex() != null) {
+            os.print(" ");
+            node.getIndex().accept(this);
+            os.print("*" + node.getScale());
+        }
+        os.println();
     }
 
     @Override
@@ -283,7 +332,7 @@ public class IRDump implements IRVisitor, Dump {
             node.getDst().accept(this);
             os.print(" = ");
         }
-        os.printf("call %s ", node.getFunc().getName());
+        os.printf("%s %s ", node.isTail() ? "tailcall" : "call", node.getFunc().getName());
         for (RegValue arg : node.getArgs()) {
             arg.accept(this);
             os.print(" ");
@@ -295,7 +344,7 @@ public class IRDump implements IRVisitor, Dump {
     public void visit(HeapAlloc node) {
         os.print("    ");
         node.getDst().accept(this);
-        os.print(" = alloc ");
+        os.print(node.isOnStack() ? " = alloca " : " = alloc ");
         node.getAllocSize().accept(this);
         os.println();
     }
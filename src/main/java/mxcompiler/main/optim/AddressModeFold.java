@@ -0,0 +1,150 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * instruction selection: fold the address computed for a Load or Store
+ * into its operand [base + index*scale + offset]
+ * <p>
+ * a[i] is built as t = i * 8; p = a + t; load [p + 8], which becomes
+ * load [a + i*8 + 8]. The ADD is folded if all its uses are addresses of
+ * MemQuads in its BB, the MUL (or SH_L) by 1, 2, 4, 8 if it is in the same
+ * BB, so that no live range grows across BBs. They are removed once unused
+ * <p>
+ * run on SSA after LICM, as defs are unique there
+ */
+public class AddressModeFold implements Pass {
+    public final Root root;
+
+    public AddressModeFold(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    private Map<Register, Quad> defs = new HashMap<>();
+    private Map<Register, List<Quad>> uses = new HashMap<>();
+    private Map<Register, Integer> numUses = new HashMap<>();
+    private Map<Bin, Boolean> foldable = new HashMap<>();
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            defs.clear();
+            uses.clear();
+            numUses.clear();
+            foldable.clear();
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts()) {
+                    if (inst.getDefinedRegister() != null)
+                        defs.put(inst.getDefinedRegister(), inst);
+                    for (Register reg : inst.getUsedRegisters()) {
+                        uses.computeIfAbsent(reg, k -> new ArrayList<>()).add(inst);
+                        numUses.merge(reg, 1, Integer::sum);
+                    }
+                }
+
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = inst.getNextInst())
+                    if (inst instanceof MemQuad)
+                        fold(bb, (MemQuad) inst); // only insts before inst are removed
+        }
+    }
+
+    private void fold(BasicBlock bb, MemQuad inst) {
+        if (inst.isStaticData() || inst.getIndex() != null)
+            return;
+
+        Bin add = defOf(bb, inst.baseAddr, Op.ADD);
+        if (add == null || !foldable.computeIfAbsent(add, this::isFoldable))
+            return;
+
+        RegValue lhs = add.getLhs(), rhs = add.getRhs();
+        if (!(lhs instanceof VirtualRegister)) {
+            RegValue tmp = lhs;
+            lhs = rhs;
+            rhs = tmp;
+        }
+        if (!(lhs instanceof VirtualRegister))
+            return;
+
+        if (rhs instanceof IntImm) { // p = a + c
+            long offset = (long) inst.offset + ((IntImm) rhs).getValue();
+            if (offset != (int) offset)
+                return;
+            inst.offset = (int) offset;
+            inst.baseAddr = lhs;
+            inst.setIndex(null, 1);
+        } else if (rhs instanceof VirtualRegister) {
+            // index can be scaled on either side
+            if (scaleOf(bb, lhs) != 0 && scaleOf(bb, rhs) == 0) {
+                RegValue tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+            }
+
+            int scale = scaleOf(bb, rhs);
+            inst.baseAddr = lhs;
+            if (scale != 0)
+                inst.setIndex(((Bin) defs.get(rhs)).getLhs(), scale);
+            else
+                inst.setIndex(rhs, 1);
+        } else {
+            return;
+        }
+
+        if (numUses.merge(add.getDst(), -1, Integer::sum) > 0)
+            return;
+        bb.removeInst(add);
+        for (Register reg : add.getUsedRegisters()) {
+            Quad mul = defs.get(reg);
+            if (numUses.merge(reg, -1, Integer::sum) == 0 && scaleOf(bb, reg) != 0)
+                bb.removeInst(mul);
+        }
+    }
+
+    /** all uses are addresses of MemQuads in the same BB */
+    private boolean isFoldable(Bin add) {
+        for (Quad use : uses.getOrDefault(add.getDst(), Collections.emptyList())) {
+            if (!(use instanceof MemQuad) || use.getParent() != add.getParent())
+                return false;
+            MemQuad mem = (MemQuad) use;
+            if (mem.isStaticData() || mem.baseAddr != add.getDst() || mem.getValue() == add.getDst())
+                return false;
+        }
+        return true;
+    }
+
+    /** def of reg by op in bb */
+    private Bin defOf(BasicBlock bb, RegValue reg, Op op) {
+        Quad def = defs.get(reg);
+        if (!(def instanceof Bin) || def instanceof Cmp || def.getParent() != bb
+                || ((Bin) def).getOp() != op)
+            return null;
+        return (Bin) def;
+    }
+
+    /** scale if reg = index * scale (or index << log(scale)), else 0 */
+    private int scaleOf(BasicBlock bb, RegValue reg) {
+        Bin mul = defOf(bb, reg, Op.MUL);
+        if (mul == null)
+            mul = defOf(bb, reg, Op.SH_L);
+        if (mul == null || mul.removed || !(mul.getLhs() instanceof VirtualRegister)
+                || !(mul.getRhs() instanceof IntImm))
+            return 0;
+
+        int value = ((IntImm) mul.getRhs()).getValue();
+        int scale = (mul.getOp() == Op.MUL) ? value : ((value >= 0 && value <= 3) ? 1 << value : 0);
+        return (scale == 1 || scale == 2 || scale == 4 || scale == 8) ? scale : 0;
+    }
+}
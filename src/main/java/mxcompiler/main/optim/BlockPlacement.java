@@ -0,0 +1,187 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.IntImm;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * order BBs for AssemblyDump so that the common successor falls through,
+ * set to {@link Function#layout}
+ * <p>
+ * Pettis and Hansen: Profile Guided Code Positioning. Edges are taken by
+ * weight to chain a tail to a head, then chains are placed after the one
+ * jumping to them most. AssemblyDump inverts a CJump whose then falls
+ * through
+ * <p>
+ * weight of edges: with a profile by counts of BBs, else 10^loopDepth with
+ * loop exits taken 1 of 10 times, so exits go out of line. With a profile,
+ * chains never executed go last
+ */
+public class BlockPlacement implements Pass {
+    public final Root root;
+
+    public BlockPlacement(Root root) {
+        this.root = root;
+    }
+
+    private static final int MaxLoopDepth = 8;
+    private static final double ExitProb = 0.1;
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER, Analysis.LOOP);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values())
+            func.layout = place(func);
+    }
+
+    private static class Edge {
+        final BasicBlock from, to;
+        final double weight;
+
+        Edge(BasicBlock from, BasicBlock to, double weight) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+    }
+
+    private List<BasicBlock> place(Function func) {
+        List<BasicBlock> order = func.getReversePostOrder();
+
+        List<Edge> edges = new ArrayList<>();
+        Map<BasicBlock, List<Edge>> outEdges = new HashMap<>();
+        for (BasicBlock bb : order) {
+            List<Edge> out = edgesOf(bb);
+            outEdges.put(bb, out);
+            edges.addAll(out);
+        }
+
+        // chain: heaviest edges first, stable for equal ones
+        Map<BasicBlock, List<BasicBlock>> chainOf = new HashMap<>();
+        for (BasicBlock bb : order)
+            chainOf.put(bb, new ArrayList<>(Collections.singletonList(bb)));
+
+        edges.sort((x, y) -> Double.compare(y.weight, x.weight));
+        for (Edge edge : edges) {
+            List<BasicBlock> fromChain = chainOf.get(edge.from), toChain = chainOf.get(edge.to);
+            if (fromChain == null || toChain == null || fromChain == toChain
+                    || edge.to == func.getStart())
+                continue;
+            if (fromChain.get(fromChain.size() - 1) != edge.from || toChain.get(0) != edge.to)
+                continue;
+
+            fromChain.addAll(toChain);
+            for (BasicBlock bb : toChain)
+                chainOf.put(bb, fromChain);
+        }
+
+        // place: start first, then the chain most jumped to from placed ones
+        List<List<BasicBlock>> chains = new ArrayList<>();
+        for (BasicBlock bb : order)
+            if (chainOf.get(bb).get(0) == bb)
+                chains.add(chainOf.get(bb));
+
+        List<BasicBlock> layout = new ArrayList<>();
+        Map<List<BasicBlock>, Double> score = new IdentityHashMap<>();
+        List<BasicBlock> next = chainOf.get(func.getStart());
+        while (next != null) {
+            chains.remove(next);
+            layout.addAll(next);
+            for (BasicBlock bb : next)
+                for (Edge edge : outEdges.get(bb)) {
+                    List<BasicBlock> chain = chainOf.get(edge.to);
+                    if (chain != null && chain.get(0) == edge.to)
+                        score.merge(chain, edge.weight, Double::sum);
+                }
+
+            next = null;
+            double best = -1;
+            for (List<BasicBlock> chain : chains) { // in reverse post-order of heads
+                double s = isCold(chain) ? -1 : score.getOrDefault(chain, 0.0);
+                if (next == null || s > best) {
+                    next = chain;
+                    best = s;
+                }
+            }
+        }
+        return layout;
+    }
+
+    /** never executed by profile */
+    private boolean isCold(List<BasicBlock> chain) {
+        if (!root.hasProfile)
+            return false;
+        for (BasicBlock bb : chain)
+            if (bb.estimateProfileCount() != 0)
+                return false;
+        return true;
+    }
+
+    private double frequency(BasicBlock bb) {
+        if (root.hasProfile) {
+            long count = bb.estimateProfileCount();
+            if (count >= 0)
+                return count;
+        }
+        return Math.pow(10, Math.min(bb.loopDepth, MaxLoopDepth));
+    }
+
+    private List<Edge> edgesOf(BasicBlock bb) {
+        Quad last = bb.getInsts().isEmpty() ? null : bb.getInsts().getLast();
+        double freq = frequency(bb);
+
+        if (last instanceof Jump)
+            return Collections.singletonList(new Edge(bb, ((Jump) last).getTarget(), freq));
+        if (!(last instanceof CJump))
+            return Collections.emptyList();
+
+        CJump cjump = (CJump) last;
+        BasicBlock thenBB = cjump.getThen(), elseBB = cjump.getElse();
+        if (cjump.getCond() instanceof IntImm) {
+            BasicBlock target = (((IntImm) cjump.getCond()).getValue() == 1) ? thenBB : elseBB;
+            return Collections.singletonList(new Edge(bb, target, freq));
+        }
+        if (thenBB == elseBB)
+            return Collections.singletonList(new Edge(bb, thenBB, freq));
+
+        double thenWeight, elseWeight;
+        if (root.hasProfile && thenBB.getPrev().size() == 1 && thenBB.estimateProfileCount() >= 0) {
+            thenWeight = thenBB.estimateProfileCount();
+            elseWeight = Math.max(freq - thenWeight, 0);
+        } else if (root.hasProfile && elseBB.getPrev().size() == 1 && elseBB.estimateProfileCount() >= 0) {
+            elseWeight = elseBB.estimateProfileCount();
+            thenWeight = Math.max(freq - elseWeight, 0);
+        } else if (root.hasProfile) {
+            thenWeight = Math.min(freq, frequency(thenBB));
+            elseWeight = Math.min(freq, frequency(elseBB));
+        } else {
+            boolean thenExits = isExit(bb, thenBB), elseExits = isExit(bb, elseBB);
+            double thenProb = (thenExits == elseExits) ? 0.5 : (thenExits ? ExitProb : 1 - ExitProb);
+            thenWeight = freq * thenProb;
+            elseWeight = freq * (1 - thenProb);
+        }
+
+        List<Edge> out = new ArrayList<>();
+        out.add(new Edge(bb, thenBB, thenWeight));
+        out.add(new Edge(bb, elseBB, elseWeight));
+        return out;
+    }
+
+    /** to leaves the innermost loop of from */
+    private static boolean isExit(BasicBlock from, BasicBlock to) {
+        return from.loop != null && !from.loop.contains(to);
+    }
+}
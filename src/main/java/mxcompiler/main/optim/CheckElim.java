@@ -0,0 +1,369 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * removes {@link Check}s of checked mode (-fchecked) which cannot fail, in
+ * SSA after GVN (equal values are one vreg) and before LICM (which does not
+ * hoist a Load above a Check left in its loop)
+ * <p>
+ * an invariant Check at the top of a loop header (after Phis, Bins and
+ * Loads only, a Cmp is a Bin) is hoisted into the preheader, which always
+ * runs the header. LICM hoists the invariant Checks of the body of a loop
+ * {@link Loop#entered} (proven by the loop analysis to run at least once)
+ * <p>
+ * NULL: the pointer is of a HeapAlloc, or a Check of it dominates, or an
+ * edge proving it != null dominates
+ * <p>
+ * BOUNDS: a Check of the same pointer and index dominates, or the index is
+ * not negative and a dominating edge proves index < n (or index <= n - c),
+ * where n is a length of the array (the value of a LENGTH Load or Store, it
+ * never changes) or a constant not above its constant length
+ * <p>
+ * an index is not negative if it is such a constant, a length, a sum of
+ * them, or an induction variable: a header phi of them adding constant or
+ * invariant steps not below 0. Ints are sign-extended to 64 bits in regs
+ * (builtins such as getInt return them so), and a sum of them is 64-bit, so
+ * it does not wrap below 0
+ */
+public class CheckElim implements Pass {
+    public final Root root;
+
+    public CheckElim(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.LOOP);
+    }
+
+    /** no BB is added */
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    private Map<Register, Quad> defs = new HashMap<>();
+    private Map<RegValue, List<RegValue>> lengths = new HashMap<>();
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            defs.clear();
+            lengths.clear();
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts())
+                    if (inst.getDefinedRegister() != null)
+                        defs.put(inst.getDefinedRegister(), inst);
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts())
+                    if (isLength(inst))
+                        lengths.computeIfAbsent(origin(((MemQuad) inst).baseAddr),
+                                k -> new ArrayList<>()).add(((MemQuad) inst).getValue());
+
+            for (Loop loop : func.loops)
+                hoist(loop);
+            visitBB(func.getStart(), new HashSet<>());
+        }
+    }
+
+    // region hoist
+    private boolean isInvariant(Loop loop, Quad inst) {
+        for (Register reg : inst.getUsedRegisters()) {
+            Quad def = defs.get(reg);
+            if (def != null && loop.contains(def.getParent()))
+                return false;
+        }
+        return true;
+    }
+
+    private void hoist(Loop loop) {
+        BasicBlock preheader = loop.preheader;
+        if (preheader == null)
+            return;
+
+        BasicBlock header = loop.getHeader();
+        Quad nextInst;
+        for (Quad inst = header.getInsts().getFirst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
+            if (inst instanceof Check) {
+                if (!isInvariant(loop, inst))
+                    return; // checks fail in order
+                header.removeInst(inst);
+                Map<Object, Object> renameMap = new HashMap<>();
+                renameMap.put(header, preheader);
+                preheader.addBefore(preheader.getInsts().getLast(), inst.copyRename(renameMap));
+            } else if (!(inst instanceof Phi || inst instanceof Bin || inst instanceof Load)) {
+                return;
+            }
+        }
+    }
+    // endregion
+
+    // region values
+    /** SSA value through Moves */
+    private RegValue origin(RegValue value) {
+        while (value instanceof VirtualRegister && defs.get(value) instanceof Move)
+            value = ((Move) defs.get(value)).getRhs();
+        return value;
+    }
+
+    private boolean isLength(Quad inst) {
+        if (!(inst instanceof Load || inst instanceof Store))
+            return false;
+        MemQuad mem = (MemQuad) inst;
+        return mem.getAliasTag() == AliasTag.LENGTH && mem.offset == 0 && mem.getIndex() == null
+                && !mem.isStaticData() && mem.baseAddr instanceof VirtualRegister;
+    }
+
+    /** visiting: defs on the path here, a cycle through phis is not assumed */
+    private boolean isNonNegative(RegValue value, Set<Quad> visiting) {
+        value = origin(value);
+        if (value instanceof IntImm)
+            return ((IntImm) value).getValue() >= 0;
+        Quad def = defs.get(value);
+        if (!(value instanceof VirtualRegister) || def == null || !visiting.add(def))
+            return false;
+
+        if (isLength(def))
+            return true;
+        if (def instanceof Phi) {
+            Phi phi = (Phi) def;
+            Loop loop = phi.getParent().loop;
+            boolean isHeader = loop != null && loop.getHeader() == phi.getParent();
+            for (Map.Entry<BasicBlock, RegValue> path : phi.getPaths().entrySet()) {
+                if (path.getValue() == null)
+                    return false;
+                if (isHeader && loop.contains(path.getKey())) {
+                    if (!isIncrement(path.getValue(), phi, loop, new HashSet<>()))
+                        return false;
+                } else if (!isNonNegative(path.getValue(), new HashSet<>(visiting))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (def instanceof Bin && !(def instanceof Cmp)) {
+            Bin bin = (Bin) def;
+            boolean lhs = isNonNegative(bin.getLhs(), new HashSet<>(visiting));
+            boolean rhs = isNonNegative(bin.getRhs(), new HashSet<>(visiting));
+            switch (bin.getOp()) {
+            case ADD:
+                return lhs && rhs;
+            case MUL:
+            case SH_L: // by constants only, no overflow to the sign
+                return lhs && rhs && bin.getRhs() instanceof IntImm;
+            case BIT_AND:
+                return lhs || rhs;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * value is the header phi of loop plus steps not below 0, each a constant
+     * or an invariant, so an induction variable does not double to overflow
+     */
+    private boolean isIncrement(RegValue value, Phi phi, Loop loop, Set<Quad> visiting) {
+        value = origin(value);
+        if (value == phi.getDst())
+            return true;
+        Quad def = defs.get(value);
+        if (!(value instanceof VirtualRegister) || def == null || !visiting.add(def))
+            return false;
+
+        if (def instanceof Phi && def.getParent() != loop.getHeader()) { // merge in loop
+            for (RegValue path : ((Phi) def).getPaths().values())
+                if (path == null || !isIncrement(path, phi, loop, new HashSet<>(visiting)))
+                    return false;
+            return true;
+        }
+        if (!(def instanceof Bin) || def instanceof Cmp || ((Bin) def).getOp() != Op.ADD)
+            return false;
+        Bin bin = (Bin) def;
+        return isStep(bin.getRhs(), loop)
+                && isIncrement(bin.getLhs(), phi, loop, new HashSet<>(visiting))
+                || isStep(bin.getLhs(), loop) && isIncrement(bin.getRhs(), phi, loop, visiting);
+    }
+
+    private boolean isStep(RegValue value, Loop loop) {
+        value = origin(value);
+        Quad def = defs.get(value);
+        if (def != null && loop.contains(def.getParent()))
+            return false;
+        return isNonNegative(value, new HashSet<>());
+    }
+
+    /** index < bound (index <= bound if not strict) proves index < length of pointer */
+    private boolean isBelowLength(RegValue bound, boolean strict, RegValue pointer) {
+        bound = origin(bound);
+        for (RegValue length : lengths.getOrDefault(origin(pointer), Collections.emptyList())) {
+            length = origin(length);
+            if (length instanceof IntImm && bound instanceof IntImm) {
+                int diff = ((IntImm) length).getValue() - ((IntImm) bound).getValue();
+                if (strict ? diff >= 0 : diff > 0)
+                    return true;
+            } else if (strict) {
+                if (length == bound)
+                    return true;
+            } else if (defs.get(length) instanceof Bin) { // length = bound + c, c > 0
+                Bin bin = (Bin) defs.get(length);
+                if (bin.getOp() == Op.ADD && !(bin instanceof Cmp)
+                        && origin(bin.getLhs()) == bound && bin.getRhs() instanceof IntImm
+                        && ((IntImm) bin.getRhs()).getValue() > 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+    // endregion
+
+    // region edge
+    /** op, lhs, rhs of the CJump ending bb, null if not a compare */
+    private List<Object> condOf(BasicBlock bb) {
+        Quad last = bb.getInsts().getLast();
+        if (!(last instanceof CJump))
+            return null;
+        CJump cjump = (CJump) last;
+        if (cjump.getThen() == cjump.getElse())
+            return null;
+        if (cjump.isFused())
+            return Arrays.asList(cjump.getOp(), cjump.getLhs(), cjump.getRhs());
+        Quad def = defs.get(cjump.getCond());
+        if (!(def instanceof Cmp))
+            return null;
+        Cmp cmp = (Cmp) def;
+        return Arrays.asList(cmp.getOp(), cmp.getLhs(), cmp.getRhs());
+    }
+
+    /** lhs < rhs (lhs <= rhs if not strict), lhs != null if rhs is null */
+    private static class Fact {
+        final RegValue lhs, rhs;
+        final boolean strict;
+
+        Fact(RegValue lhs, RegValue rhs, boolean strict) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.strict = strict;
+        }
+    }
+
+    /** facts of the edges into bb and its dominators */
+    private List<Fact> edgeFacts(BasicBlock bb) {
+        List<Fact> facts = new ArrayList<>();
+        for (BasicBlock cur = bb; cur != null; cur = cur.idom) {
+            if (cur.getPrev().size() != 1)
+                continue;
+            Fact fact = edgeFact(cur.getPrev().iterator().next(), cur);
+            if (fact != null)
+                facts.add(fact);
+        }
+        return facts;
+    }
+
+    /** fact of the edge from prevBB to bb, null if none */
+    private Fact edgeFact(BasicBlock prevBB, BasicBlock bb) {
+        List<Object> cond = condOf(prevBB);
+        if (cond == null)
+            return null;
+        boolean taken = ((CJump) prevBB.getInsts().getLast()).getThen() == bb;
+        Op op = (Op) cond.get(0);
+        RegValue lhs = origin((RegValue) cond.get(1)), rhs = origin((RegValue) cond.get(2));
+
+        if (taken ? op == Op.LESS : op == Op.GREATER_EQUAL)
+            return new Fact(lhs, rhs, true);
+        if (taken ? op == Op.GREATER : op == Op.LESS_EQUAL)
+            return new Fact(rhs, lhs, true);
+        if (taken ? op == Op.LESS_EQUAL : op == Op.GREATER)
+            return new Fact(lhs, rhs, false);
+        if (taken ? op == Op.GREATER_EQUAL : op == Op.LESS)
+            return new Fact(rhs, lhs, false);
+        if (taken ? op == Op.INEQUAL : op == Op.EQUAL) {
+            if (isZero(rhs))
+                return new Fact(lhs, null, true);
+            if (isZero(lhs))
+                return new Fact(rhs, null, true);
+        }
+        return null;
+    }
+
+    private boolean isZero(RegValue value) {
+        return value instanceof IntImm && ((IntImm) value).getValue() == 0;
+    }
+    // endregion
+
+    // region elim
+    /** an SSA value, a global may change between */
+    private boolean isValue(RegValue value) {
+        return value instanceof VirtualRegister || value instanceof IntImm;
+    }
+
+    private boolean isRedundant(Check check, Set<List<Object>> checked) {
+        RegValue pointer = origin(check.getPointer());
+        if (!(pointer instanceof VirtualRegister))
+            return false;
+        if (check.getKind() == Check.Kind.NULL) {
+            if (checked.contains(Collections.singletonList(pointer))
+                    || defs.get(pointer) instanceof HeapAlloc)
+                return true;
+            for (Fact fact : edgeFacts(check.getParent()))
+                if (fact.rhs == null && fact.lhs == pointer)
+                    return true;
+            return false;
+        }
+
+        RegValue index = origin(check.getIndex());
+        if (!isValue(index))
+            return false;
+        if (checked.contains(Arrays.asList(pointer, index)))
+            return true;
+        if (!isNonNegative(index, new HashSet<>()))
+            return false;
+        if (index instanceof IntImm && isBelowLength(index, false, pointer))
+            return true;
+        for (Fact fact : edgeFacts(check.getParent()))
+            if (fact.rhs != null && fact.lhs == index
+                    && isBelowLength(fact.rhs, fact.strict, pointer))
+                return true;
+        return false;
+    }
+
+    /** checked: a pointer (not null) or a pair of pointer and index */
+    private void visitBB(BasicBlock bb, Set<List<Object>> checked) {
+        Quad nextInst;
+        for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
+            if (!(inst instanceof Check))
+                continue;
+            Check check = (Check) inst;
+            if (isRedundant(check, checked)) {
+                bb.removeInst(check);
+                continue;
+            }
+
+            RegValue pointer = origin(check.getPointer());
+            if (!(pointer instanceof VirtualRegister))
+                continue;
+            checked.add(Collections.singletonList(pointer));
+            if (check.getKind() == Check.Kind.BOUNDS && isValue(origin(check.getIndex())))
+                checked.add(Arrays.asList(pointer, origin(check.getIndex())));
+        }
+
+        for (BasicBlock child : bb.domChildren)
+            visitBB(child, new HashSet<>(checked));
+    }
+    // endregion
+}
@@ -5,21 +5,30 @@ import java.util.*;
 import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
 import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
 
 
-public class ElimateCJump {
+public class ElimateCJump implements Pass {
     public final Root root;
 
     public ElimateCJump(Root root) {
         this.root = root;
     }
 
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.CALLEE_SET);
+    }
+
     public void execute() {
         for (Function Function : root.getFunc().values()) {
             for (BasicBlock bb : Function.getReversePostOrder()) {
-                // ListIterator<Quad> iter =
-                // bb.getInsts().listIterator(bb.getInsts().size());
-                // Quad inst = iter.previous();
                 Quad inst = bb.getInsts().getLast();
                 if (inst instanceof CJump && ((CJump) inst).getCond() instanceof IntImm) {
                     BasicBlock targetBB = ((IntImm) ((CJump) inst).getCond()).getValue() != 0
@@ -31,8 +40,6 @@ public class ElimateCJump {
                     bb.setJump(new Jump(bb, targetBB));
                 }
             }
-
-            Function.initReversePostOrder();
         }
     }
 
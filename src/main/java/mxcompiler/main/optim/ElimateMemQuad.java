@@ -4,29 +4,42 @@ import java.util.*;
 
 import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
 
-public class ElimateMemQuad {
+public class ElimateMemQuad implements Pass {
     public final Root root;
 
     public ElimateMemQuad(Root root) {
         this.root = root;
     }
 
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
     public void execute() {
         for (Function func : root.getFunc().values())
             for (BasicBlock bb : func.getReversePostOrder())
                 elimateMoveMemQuad(bb);
     }
 
+    /** a Load to its base or index, the same access after it is of other address */
+    private static boolean loadsOwnAddr(MemQuad inst) {
+        return inst instanceof Load
+                && (inst.getValue() == inst.baseAddr || inst.getValue() == inst.getIndex());
+    }
+
     /** pre-dump-elimate */
     private void elimateMoveMemQuad(BasicBlock bb) {
         Quad prevInst = null;
         Quad inst = null;
         boolean remove = false;
 
-        ListIterator<Quad> iter = bb.getInsts().listIterator();
-        while (iter.hasNext()) {
-            inst = iter.next();
+        Quad nextInst;
+        for (inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
             remove = false;
 
             if (inst instanceof Move) {
@@ -39,10 +52,8 @@ public class ElimateMemQuad {
                         remove = true;
                 }
             } else if (inst instanceof MemQuad && prevInst instanceof MemQuad) {
-                if (((MemQuad) prevInst).baseAddr == ((MemQuad) inst).baseAddr
-                        && ((MemQuad) prevInst).offset == ((MemQuad) inst).offset
-                        && ((MemQuad) prevInst).getValue() == ((MemQuad) inst).getValue()
-                        && ((MemQuad) prevInst).getSize() == ((MemQuad) inst).getSize()) {
+                if (((MemQuad) prevInst).sameAccess((MemQuad) inst)
+                        && !loadsOwnAddr((MemQuad) prevInst)) {
                     // before store a to b, but load b to a again
                     // before load, but store again
                     // double load a to b or store a to b
@@ -53,7 +64,7 @@ public class ElimateMemQuad {
             }
 
             if (remove)
-                bb.removeInst(iter);
+                bb.removeInst(inst);
             else
                 prevInst = inst;
         }
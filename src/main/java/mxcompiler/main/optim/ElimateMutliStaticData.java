@@ -8,13 +8,15 @@ import mxcompiler.utils.scope.*;
 import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
 import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
 
 
 /**
  * The whole IR is built under Control Flow Graph Considered no SSA, no
  * tree
  */
-public class ElimateMutliStaticData {
+public class ElimateMutliStaticData implements Pass {
 
     private final Root root;
 
@@ -67,6 +69,16 @@ public class ElimateMutliStaticData {
         return vreg;
     }
 
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.CALLEE_SET);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
     public void execute() {
         // init dataVregMap
         for (Function irFunc : root.getFunc().values()) {
@@ -104,18 +116,11 @@ public class ElimateMutliStaticData {
             // load static data at the beginning of function--with a lambda
 
             BasicBlock startBB = irFunc.getStart(); // Tag
-            LinkedList<Quad> insts = startBB.getInsts();
+            InstList insts = startBB.getInsts();
             funcInfo.dataVregMap.forEach((sData, vReg) -> {
                 insts.addFirst(new Load(startBB, vReg, RegValue.RegSize, sData,
                         sData instanceof StaticString));
             }); // does this matter ?
-
-            // ListIterator<Quad> firstIter = startBB.getInsts().listIterator();
-            // firstIter.next();
-            // funcInfo.dataVregMap.forEach((sData, vReg) -> {
-            // startBB.addBeforeInst(firstIter, new Load(startBB, vReg,
-            // RegValue.RegSize, sData, sData instanceof StaticString));
-            // });
         }
 
         for (Function builtFunc : root.getBuiltInFunc().values())
@@ -144,9 +149,9 @@ public class ElimateMutliStaticData {
 
             // deal funcall
             for (BasicBlock bb : irFunc.getReversePostOrder()) {
-                ListIterator<Quad> iter = bb.getInsts().listIterator();
-                while (iter.hasNext()) {
-                    Quad inst = iter.next();
+                Quad nextInst;
+                for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                    nextInst = inst.getNextInst(); // loads added after are not visited
                     if (!(inst instanceof Funcall))
                         continue;
 
@@ -158,7 +163,7 @@ public class ElimateMutliStaticData {
                         if (staticData instanceof StaticString)
                             continue;
                         if (calleeInfo.mutliUsedData.contains(staticData)) {
-                            bb.addBeforeInst(iter,
+                            bb.addBefore(inst,
                                     new Store(bb, callerInfo.dataVregMap.get(staticData),
                                             RegValue.RegSize, staticData));
                         }
@@ -171,12 +176,14 @@ public class ElimateMutliStaticData {
                     Set<StaticData> loadStaticDataSet = new HashSet<>();
                     loadStaticDataSet.addAll(calleeInfo.mutliDefinedData);
                     loadStaticDataSet.retainAll(usedStaticData); // callerInfo.dataVregMap.key
+                    Quad last = inst;
                     for (StaticData staticData : loadStaticDataSet) {
                         if (staticData instanceof StaticString)
                             continue;
-                        bb.addAfterInst(iter, new Load(bb, callerInfo.dataVregMap.get(staticData),
-                                RegValue.RegSize, staticData, staticData instanceof StaticString),
-                                false);
+                        Quad load = new Load(bb, callerInfo.dataVregMap.get(staticData),
+                                RegValue.RegSize, staticData, staticData instanceof StaticString);
+                        bb.addAfter(last, load);
+                        last = load;
                     }
                 }
             }
@@ -0,0 +1,248 @@
+package mxcompiler.main.optim;
+
+import static mxcompiler.ir.register.RegValue.RegSize;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * escape analysis of the objects of HeapAllocs with constant size
+ * <p>
+ * a pointer escapes if it is stored, returned, compared, or passed to a
+ * builtIn func, a tail call or a param which escapes. Params are found
+ * interprocedurally: all are assumed not to escape, and are marked until
+ * no more is changed. A {@link Check} (-fchecked) does not make it escape
+ * <p>
+ * an object used only by fields of its own (and moved only to vregs holding
+ * nothing else) is replaced by a vreg per field. One passed to callees only
+ * is {@link HeapAlloc#isOnStack()}. Either way no pointer to the object is
+ * live when it is allocated, so an old one of a loop is dead by then
+ * <p>
+ * run after FuncallInline (constructors are mostly inlined) and before SSA,
+ * fields get their phis from SSAConstructor. Fields are set to 0 at alloc,
+ * as memory of the arena is
+ */
+public class EscapeAnalysis implements Pass {
+    public final Root root;
+    /** frame words and zeroing are bounded */
+    private static final int MaxStackSize = 16 * RegSize;
+
+    public EscapeAnalysis(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
+    /** no BB is added */
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    private Map<Function, boolean[]> escapedParams = new HashMap<>();
+
+    public void execute() {
+        for (Function func : root.getFunc().values())
+            escapedParams.put(func, new boolean[func.argVregs.size()]);
+        boolean changed;
+        do {
+            changed = false;
+            for (Function func : root.getFunc().values()) {
+                boolean[] escaped = escapedParams.get(func);
+                for (int i = 0; i < escaped.length; ++i) {
+                    if (!escaped[i] && escape(func, aliases(func, func.argVregs.get(i)), false)) {
+                        escaped[i] = true;
+                        changed = true;
+                    }
+                }
+            }
+        } while (changed);
+
+        for (Function func : root.getFunc().values()) {
+            List<HeapAlloc> allocs = new ArrayList<>();
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts())
+                    if (inst instanceof HeapAlloc
+                            && ((HeapAlloc) inst).getAllocSize() instanceof IntImm)
+                        allocs.add((HeapAlloc) inst);
+
+            for (HeapAlloc alloc : allocs) {
+                Set<Register> aliases = aliases(func, alloc.getDst());
+                if (escape(func, aliases, false) || liveAt(func, alloc, aliases))
+                    continue;
+                if (!escape(func, aliases, true) && onlyDefinedBy(func, alloc, aliases))
+                    replace(func, alloc, aliases);
+                else if (((IntImm) alloc.getAllocSize()).getValue() <= MaxStackSize)
+                    allocOnStack(alloc, aliases);
+            }
+        }
+    }
+
+    // region analysis
+    /** reg and vregs moved from it */
+    private Set<Register> aliases(Function func, Register reg) {
+        Set<Register> aliases = new HashSet<>();
+        aliases.add(reg);
+        boolean changed;
+        do {
+            changed = false;
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts())
+                    if (inst instanceof Move && aliases.contains(((Move) inst).getRhs())
+                            && ((Move) inst).getDst() instanceof VirtualRegister)
+                        changed |= aliases.add((Register) ((Move) inst).getDst());
+        } while (changed);
+        return aliases;
+    }
+
+    /** true if the pointer in aliases escapes, by calls too unless scalar */
+    private boolean escape(Function func, Set<Register> aliases, boolean scalar) {
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts()) {
+                if (Collections.disjoint(inst.getUsedRegisters(), aliases))
+                    continue;
+
+                if (inst instanceof Move) {
+                    if (!(((Move) inst).getDst() instanceof VirtualRegister))
+                        return true;
+                } else if (inst instanceof Load || inst instanceof Store) {
+                    MemQuad mem = (MemQuad) inst;
+                    if (mem.isStaticData() || mem.getIndex() != null || mem.offset < 0
+                            || (inst instanceof Store && aliases.contains(mem.getValue())))
+                        return true;
+                } else if (inst instanceof Cmp && !scalar || inst instanceof Check) {
+                    continue;
+                } else if (inst instanceof Funcall && !scalar) {
+                    Funcall call = (Funcall) inst;
+                    if (call.getFunc().isBuiltIn() || call.isTail())
+                        return true;
+                    boolean[] escaped = escapedParams.get(call.getFunc());
+                    for (int i = 0; i < call.getArgs().size(); ++i)
+                        if (aliases.contains(call.getArgs().get(i)) && escaped[i])
+                            return true;
+                } else {
+                    return true;
+                }
+            }
+        return false;
+    }
+
+    /** no def of aliases but alloc and moves among them, params are defined at entry */
+    private boolean onlyDefinedBy(Function func, HeapAlloc alloc, Set<Register> aliases) {
+        if (!Collections.disjoint(func.argVregs, aliases))
+            return false;
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts()) {
+                if (inst == alloc || !aliases.contains(inst.getDefinedRegister()))
+                    continue;
+                if (!(inst instanceof Move && aliases.contains(((Move) inst).getRhs())))
+                    return false;
+            }
+        return true;
+    }
+
+    /** true if any of aliases is live before alloc (liveness of aliases only) */
+    private boolean liveAt(Function func, HeapAlloc alloc, Set<Register> aliases) {
+        Map<BasicBlock, Set<Register>> liveIn = new HashMap<>();
+        List<BasicBlock> postOrder = new ArrayList<>(func.getReversePostOrder());
+        Collections.reverse(postOrder);
+        boolean changed;
+        do {
+            changed = false;
+            for (BasicBlock bb : postOrder) {
+                Set<Register> live = liveBefore(bb, null, liveIn, aliases);
+                if (!live.equals(liveIn.get(bb))) {
+                    liveIn.put(bb, live);
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        return !liveBefore(alloc.getParent(), alloc, liveIn, aliases).isEmpty();
+    }
+
+    /** aliases live before inst of bb (before bb if null) */
+    private Set<Register> liveBefore(BasicBlock bb, Quad inst, Map<BasicBlock, Set<Register>> liveIn,
+            Set<Register> aliases) {
+        Set<Register> live = new HashSet<>();
+        for (BasicBlock next : bb.getNext())
+            live.addAll(liveIn.getOrDefault(next, Collections.emptySet()));
+        for (Quad cur = bb.getInsts().getLast(); cur != null; cur = cur.getPrevInst()) {
+            live.remove(cur.getDefinedRegister());
+            for (Register reg : cur.getUsedRegisters())
+                if (aliases.contains(reg))
+                    live.add(reg);
+            if (cur == inst)
+                break;
+        }
+        return live;
+    }
+    // endregion
+
+    // region transform
+    /** loads and stores of fields to moves of their vregs, checks are removed */
+    private void replace(Function func, HeapAlloc alloc, Set<Register> aliases) {
+        Map<Integer, VirtualRegister> fields = new TreeMap<>();
+        List<Quad> uses = new ArrayList<>();
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts())
+                if (inst instanceof MemQuad && aliases.contains(((MemQuad) inst).baseAddr)
+                        || inst instanceof Move && aliases.contains(((Move) inst).getDst())
+                        || inst instanceof Check && aliases.contains(((Check) inst).getPointer())) {
+                    uses.add(inst);
+                    if (inst instanceof Load || inst instanceof Store)
+                        fields.computeIfAbsent(((MemQuad) inst).offset,
+                                k -> new VirtualRegister("field"));
+                }
+
+        for (Quad inst : uses) {
+            BasicBlock bb = inst.getParent();
+            if (inst instanceof Load) {
+                Load load = (Load) inst;
+                bb.replaceInst(load, new Move(bb, load.getDst(), fields.get(load.offset)));
+            } else if (inst instanceof Store) {
+                Store store = (Store) inst;
+                bb.replaceInst(store, new Move(bb, fields.get(store.offset), store.getValue()));
+            } else {
+                bb.removeInst(inst);
+            }
+        }
+
+        BasicBlock bb = alloc.getParent();
+        for (VirtualRegister field : fields.values())
+            bb.addBefore(alloc, new Move(bb, field, new IntImm(0)));
+        bb.removeInst(alloc);
+    }
+
+    /** words not stored right after alloc (before other uses) are set to 0 */
+    private void allocOnStack(HeapAlloc alloc, Set<Register> aliases) {
+        alloc.setOnStack(true);
+
+        Set<Integer> stored = new HashSet<>();
+        for (Quad inst = alloc.getNextInst(); inst != null; inst = inst.getNextInst()) {
+            if (inst instanceof Store && aliases.contains(((Store) inst).baseAddr)) {
+                if (((Store) inst).getSize() == RegSize)
+                    stored.add(((Store) inst).offset);
+            } else if (!(inst instanceof Move)
+                    && !Collections.disjoint(inst.getUsedRegisters(), aliases)) {
+                break;
+            }
+        }
+
+        BasicBlock bb = alloc.getParent();
+        int size = ((IntImm) alloc.getAllocSize()).getValue();
+        for (int offset = 0; offset < size; offset += RegSize)
+            if (!stored.contains(offset))
+                bb.addAfter(alloc, new Store(bb, new IntImm(0), RegSize, alloc.getDst(), offset));
+    }
+    // endregion
+}
@@ -8,9 +8,11 @@ import mxcompiler.utils.scope.*;
 import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
 import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
 
 
-public class FuncallInline {
+public class FuncallInline implements Pass {
 
     private final Root root;
 
@@ -34,6 +36,32 @@ public class FuncallInline {
     private final int MAX_FUNC_INST = 1 << 12;
     private final int MAX_INLINE_DEPTH = 5;
 
+    /** with a profile: call sites run at least 1/HOT_RATIO of the hottest BB */
+    private final int MAX_HOT_INLINE_INST = 120;
+    private final int HOT_RATIO = 64;
+    private long hotCount = Long.MAX_VALUE;
+
+    /**
+     * max insts of callee to inline at a call site in bb, never-executed
+     * call sites are not inlined if there is a profile
+     */
+    private int inlineLimit(BasicBlock bb, int limit) {
+        if (!root.hasProfile)
+            return limit;
+        long count = bb.estimateProfileCount();
+        if (count == 0)
+            return -1;
+        return (count >= hotCount) ? Math.max(limit, MAX_HOT_INLINE_INST) : limit;
+    }
+
+    private void initHotCount() {
+        long maxCount = 0;
+        for (Function irFunc : root.getFunc().values())
+            for (BasicBlock bb : irFunc.getReversePostOrder())
+                maxCount = Math.max(maxCount, bb.profileCount);
+        hotCount = Math.max(1, maxCount / HOT_RATIO);
+    }
+
     private class FuncInfo {
         int numInst = 0, numCalled = 0;
         boolean recursiveCall, memFunc = false;
@@ -45,8 +73,11 @@ public class FuncallInline {
     private Function genBackUpFunc(Function func) {
         Function bakFunc = new Function(func.getEntity());
         Map<Object, Object> bbRenameMap = new HashMap<>();
-        for (BasicBlock bb : func.getReversePostOrder())
-            bbRenameMap.put(bb, new BasicBlock(bakFunc, bb.getName()));
+        for (BasicBlock bb : func.getReversePostOrder()) {
+            BasicBlock bakBB = new BasicBlock(bakFunc, bb.getName());
+            bakBB.profileCount = bb.profileCount;
+            bbRenameMap.put(bb, bakBB);
+        }
 
         for (BasicBlock bb : func.getReversePostOrder()) {
             BasicBlock bakBB = (BasicBlock) bbRenameMap.get(bb);
@@ -66,7 +97,20 @@ public class FuncallInline {
         return bakFunc;
     }
 
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER, Analysis.CALLEE_SET);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.CALLEE_SET);
+    }
+
     public void execute() {
+        if (root.hasProfile)
+            initHotCount();
+
         // pre-resolve
         for (Function irFunc : root.getFunc().values()) { // add func
             irFunc.isRecursiveCall = irFunc.recursiveCalleeSet.contains(irFunc);
@@ -112,9 +156,9 @@ public class FuncallInline {
                 reversePostOrder.addAll(irFunc.getReversePostOrder());
 
                 for (BasicBlock bb : reversePostOrder) {
-                    ListIterator<Quad> iter = bb.getInsts().listIterator();
-                    while (iter.hasNext()) {
-                        Quad inst = iter.next();
+                    Quad nextInst;
+                    for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                        nextInst = inst.getNextInst();
                         if (!(inst instanceof Funcall))
                             continue;
                         FuncInfo calleeInfo = funcInfoMap.get(((Funcall) inst).getFunc());
@@ -124,11 +168,11 @@ public class FuncallInline {
                             continue; // skip self recursive function
                         if (calleeInfo.memFunc)
                             continue;
-                        if (calleeInfo.numInst > MAX_LOW_INLINE_INST
+                        if (calleeInfo.numInst > inlineLimit(bb, MAX_LOW_INLINE_INST)
                                 || calleeInfo.numInst + funcInfo.numInst > MAX_FUNC_INST)
                             continue;
 
-                        iter = inlineFuncall(iter);
+                        nextInst = inlineFuncall((Funcall) inst);
 
                         changed = true;
                         thisFuncChanged = true;
@@ -175,9 +219,9 @@ public class FuncallInline {
                 thisFuncChanged = false;
 
                 for (BasicBlock bb : reversePostOrder) {
-                    ListIterator<Quad> iter = bb.getInsts().listIterator();
-                    while (iter.hasNext()) {
-                        Quad inst = iter.next();
+                    Quad nextInst;
+                    for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                        nextInst = inst.getNextInst();
 
                         if (!(inst instanceof Funcall))
                             continue;
@@ -186,11 +230,11 @@ public class FuncallInline {
                             continue; // skip built-in functions
                         if (calleeInfo.memFunc)
                             continue;
-                        if (calleeInfo.numInst > MAX_INLINE_INST
+                        if (calleeInfo.numInst > inlineLimit(bb, MAX_INLINE_INST)
                                 || calleeInfo.numInst + funcInfo.numInst > MAX_FUNC_INST)
                             continue;
 
-                        iter = inlineFuncall(iter);
+                        nextInst = inlineFuncall((Funcall) inst);
                         changed = true;
                         thisFuncChanged = true;
                         funcInfo.numInst += calleeInfo.numInst;
@@ -207,22 +251,17 @@ public class FuncallInline {
     }
 
     /**
-     * iter has to point to next
-     * <p>
      * make function into block(means inline)
      * <p>
      * 
      * <pre>
-     * // before: inst(selected) iter inst2
-     * // before: iter inst(selected) inst2
-     * iter = inlineFuncall(iter)
+     * // before: inst1 funcall inst2
+     * // after:  inst1 args -> callee ... -> newEnd(callee-last, ret, inst2)
      * </pre>
      * 
-     * @Return iter of newEnd's FirstInst
+     * @Return newEnd's FirstInst, to go on scanning from
      */
-    private ListIterator<Quad> inlineFuncall(ListIterator<Quad> iter) {
-        iter.previous();
-        Funcall funcCallInst = (Funcall) iter.next();
+    private Quad inlineFuncall(Funcall funcCallInst) {
         BasicBlock parent = funcCallInst.getParent(); // or newStartBB
 
         Function callerFunc = parent.getFunc();
@@ -233,6 +272,7 @@ public class FuncallInline {
         Map<Object, Object> renameMap = new HashMap<>();
         BasicBlock oldEndBB = calleeFunc.getEnd();
         BasicBlock newEndBB = new BasicBlock(callerFunc, oldEndBB.getName());
+        newEndBB.profileCount = parent.profileCount;
         renameMap.put(oldEndBB, newEndBB);
         renameMap.put(calleeFunc.getStart(), parent); // Tag
 
@@ -241,34 +281,41 @@ public class FuncallInline {
 
         // add after-funcall insts into new end(first)
         Map<Object, Object> callBBRenameMap = Collections.singletonMap(parent, newEndBB);
-        while (iter.hasNext()) {
-            Quad inst = iter.next();
+        Quad nextInst;
+        for (Quad inst = funcCallInst.getNextInst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
 
             if (inst instanceof JumpQuad) {
                 newEndBB.setJump((JumpQuad) ((JumpQuad) inst).copyRename(callBBRenameMap));
             } else {
                 newEndBB.addLastInst(inst.copyRename(callBBRenameMap));
             }
-            parent.removeInst(iter);
+            parent.removeInst(inst);
         }
-        ListIterator<Quad> newEndFirstIter = newEndBB.getInsts().listIterator();
-        newEndFirstIter.next();
+        Quad newEndFirst = newEndBB.getInsts().getFirst();
 
         // add before-args
         for (int i = 0; i < funcCallInst.getArgs().size(); ++i) {
             VirtualRegister oldArgVreg = calleeFunc.argVregs.get(i);
             VirtualRegister newArgVreg = oldArgVreg.copy();
 
-            parent.addBeforeInst(iter, new Move(parent, newArgVreg, funcCallInst.getArgs().get(i)));
+            parent.addBefore(funcCallInst,
+                    new Move(parent, newArgVreg, funcCallInst.getArgs().get(i)));
             renameMap.put(oldArgVreg, newArgVreg);
         }
 
-        parent.removeInst(iter);
+        parent.removeInst(funcCallInst);
 
         // copy funcall-block into parent(cause may have args move)
+        // counts of callee are of all its call sites, scaled to this one
+        long siteCount = parent.profileCount, entryCount = calleeFunc.getStart().profileCount;
         for (BasicBlock bb : inlineBBpostOrder) { // put BB-rename
-            if (!renameMap.containsKey(bb))
-                renameMap.put(bb, new BasicBlock(callerFunc, bb.getName()));
+            if (!renameMap.containsKey(bb)) {
+                BasicBlock newBB = new BasicBlock(callerFunc, bb.getName());
+                if (siteCount >= 0 && entryCount > 0 && bb.profileCount >= 0)
+                    newBB.profileCount = Math.round((double) bb.profileCount * siteCount / entryCount);
+                renameMap.put(bb, newBB);
+            }
         }
 
         for (BasicBlock oldBB : inlineBBpostOrder) { // add inst
@@ -288,10 +335,7 @@ public class FuncallInline {
             }
 
             // change for insts(include regs)
-            iter = oldBB.getInsts().listIterator();
-            while (iter.hasNext()) {
-                Quad inst = iter.next();
-
+            for (Quad inst : oldBB.getInsts()) {
                 // add new regValue(copy) into renameMap
                 for (RegValue usedRegValue : inst.getUsedRegValues())
                     copyRegValue(renameMap, usedRegValue);
@@ -309,7 +353,7 @@ public class FuncallInline {
 
                 } else { // last BB -- add insts(second)
                     if (!(inst instanceof Return))
-                        newEndBB.addBeforeInst(newEndFirstIter, inst.copyRename(renameMap));
+                        newEndBB.addBefore(newEndFirst, inst.copyRename(renameMap));
                 }
             }
         }
@@ -320,11 +364,11 @@ public class FuncallInline {
 
         Return returnInst = calleeFunc.returns.get(0);
         if (returnInst.getReturnValue() != null) {
-            newEndBB.addBeforeInst(newEndFirstIter, new Move(newEndBB, funcCallInst.getDst(),
+            newEndBB.addBefore(newEndFirst, new Move(newEndBB, funcCallInst.getDst(),
                     (RegValue) renameMap.get(returnInst.getReturnValue())));
         }
 
-        return newEndBB.getInsts().listIterator();
+        return newEndBB.getInsts().getFirst();
     }
 
     /** put regvalue(copy) into renameMap */
@@ -0,0 +1,62 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * instruction selection: a Cmp used only by the CJump right after it is
+ * fused into the CJump, dumped as cmp and jcc instead of setcc, mov, cmp
+ * and je
+ * <p>
+ * run last on IR, no pass after it makes a CJump of a cond
+ */
+public class FuseCmpBranch implements Pass {
+    public final Root root;
+
+    public FuseCmpBranch(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            Map<Register, Integer> numUses = new HashMap<>();
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts())
+                    for (Register reg : inst.getUsedRegisters())
+                        numUses.merge(reg, 1, Integer::sum);
+
+            for (BasicBlock bb : func.getReversePostOrder())
+                fuse(bb, numUses);
+        }
+    }
+
+    private void fuse(BasicBlock bb, Map<Register, Integer> numUses) {
+        if (bb.getInsts().isEmpty() || !(bb.getInsts().getLast() instanceof CJump))
+            return;
+        CJump cjump = (CJump) bb.getInsts().getLast();
+        if (cjump.isFused() || !(cjump.getCond() instanceof VirtualRegister)
+                || !(cjump.getPrevInst() instanceof Cmp))
+            return;
+
+        Cmp cmp = (Cmp) cjump.getPrevInst();
+        if (cmp.getDst() != cjump.getCond() || numUses.get(cmp.getDst()) != 1
+                || cmp.getLhs() instanceof IntImm)
+            return;
+
+        bb.removeInst(cmp);
+        bb.delJump(cjump);
+        bb.setJump(new CJump(bb, cmp.getOp(), cmp.getLhs(), cmp.getRhs(),
+                cjump.getThen(), cjump.getElse()));
+    }
+}
@@ -0,0 +1,207 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * dominator-based global value numbering, must be in SSA
+ * <p>
+ * Bin and Cmp are available in the whole dominator subtree
+ * <p>
+ * Load is available until a Store which may alias it (seen at
+ * {@link MemQuad#mayAlias}) or a (non-builtin) Funcall, a BB gets the Loads
+ * of its idom not clobbered on any path from idom. A Store makes its value
+ * available to the Loads of the same address after it
+ */
+public class GVN implements Pass {
+    public final Root root;
+
+    public GVN(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.DOMINATOR);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            initClobbers(func);
+
+            replaced.clear();
+            exprTable.clear();
+            visitBB(func.getStart(), new HashMap<>());
+
+            renameUses(func);
+        }
+    }
+
+    // region memory
+    /** Stores and Funcalls of each BB */
+    private Map<BasicBlock, List<Quad>> clobbers = new HashMap<>();
+
+    private boolean isClobber(Quad inst) {
+        return inst instanceof Store
+                || (inst instanceof Funcall && !((Funcall) inst).getFunc().isBuiltIn());
+    }
+
+    private void initClobbers(Function func) {
+        clobbers.clear();
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts())
+                if (isClobber(inst))
+                    clobbers.computeIfAbsent(bb, k -> new ArrayList<>()).add(inst);
+    }
+
+    /** remove Loads (and Stores) which inst may change */
+    private void clobber(Quad inst, Map<List<Object>, MemQuad> loadTable) {
+        if (inst instanceof Funcall)
+            loadTable.clear();
+        else
+            loadTable.values().removeIf(mem -> mem.mayAlias((Store) inst));
+    }
+
+    /** clobber by insts on any path from idom to bb */
+    private void clobberFromIdom(BasicBlock bb, Map<List<Object>, MemQuad> loadTable) {
+        if (bb.idom == null) {
+            loadTable.clear();
+            return;
+        }
+
+        Set<BasicBlock> visited = new HashSet<>();
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        for (BasicBlock prevBB : bb.getPrev())
+            if (prevBB != bb.idom)
+                worklist.add(prevBB);
+
+        while (!worklist.isEmpty() && !loadTable.isEmpty()) {
+            BasicBlock cur = worklist.poll();
+            if (cur == bb.idom || !visited.add(cur))
+                continue;
+            for (Quad inst : clobbers.getOrDefault(cur, Collections.emptyList()))
+                clobber(inst, loadTable);
+            worklist.addAll(cur.getPrev());
+        }
+    }
+    // endregion
+
+    // region value number
+    private Map<Register, Register> replaced = new HashMap<>();
+    private Map<List<Object>, Register> exprTable = new HashMap<>();
+
+    private Object valueKey(RegValue value) {
+        if (value instanceof IntImm)
+            return ((IntImm) value).getValue();
+        if (value instanceof Register)
+            return replaced.getOrDefault(value, (Register) value);
+        return value;
+    }
+
+    private List<Object> exprKey(Quad inst) {
+        if (inst instanceof Bin) { // include Cmp
+            Bin bin = (Bin) inst;
+            Object lhs = valueKey(bin.getLhs()), rhs = valueKey(bin.getRhs());
+            if (bin.isCommutative() && lhs.hashCode() > rhs.hashCode()) {
+                Object tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+            }
+            return Arrays.asList(inst.getClass(), bin.getOp(), lhs, rhs);
+        }
+
+        if (inst instanceof Load || inst instanceof Store) { // a Store as Load of its address
+            MemQuad mem = (MemQuad) inst;
+            boolean isLoadAddr = (inst instanceof Load) && ((Load) inst).isLoadAddr();
+            return Arrays.asList(Load.class, valueKey(mem.baseAddr), mem.offset, mem.getSize(),
+                    mem.isStaticData(), isLoadAddr);
+        }
+        return null;
+    }
+
+    /** the value a Load or Store of loadTable makes available */
+    private RegValue memValue(MemQuad mem) {
+        RegValue value = mem.getValue();
+        return (value instanceof Register) ? replaced.getOrDefault(value, (Register) value) : value;
+    }
+
+    private void visitBB(BasicBlock bb, Map<List<Object>, MemQuad> loadTable) {
+        clobberFromIdom(bb, loadTable);
+
+        List<List<Object>> added = new ArrayList<>();
+
+        Quad nextInst;
+        for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
+            if (isClobber(inst)) {
+                clobber(inst, loadTable);
+                if (inst instanceof Store && ((Store) inst).getIndex() == null)
+                    loadTable.put(exprKey(inst), (Store) inst);
+                continue;
+            }
+
+            Register dst = inst.getDefinedRegister();
+            if (!(dst instanceof VirtualRegister)
+                    || !(inst instanceof Bin || inst instanceof Load))
+                continue;
+
+            List<Object> key = exprKey(inst);
+            if (inst instanceof Load) {
+                MemQuad available = loadTable.get(key);
+                if (available == null) {
+                    loadTable.put(key, (Load) inst);
+                } else if (memValue(available) instanceof Register) {
+                    replaced.put(dst, (Register) memValue(available));
+                    bb.removeInst(inst);
+                } else { // a constant stored
+                    bb.replaceInst(inst, new Move(bb, dst, memValue(available)));
+                }
+                continue;
+            }
+
+            Register available = exprTable.get(key);
+            if (available != null) {
+                replaced.put(dst, available);
+                bb.removeInst(inst);
+            } else {
+                exprTable.put(key, dst);
+                added.add(key);
+            }
+        }
+
+        for (BasicBlock child : bb.domChildren)
+            visitBB(child, new HashMap<>(loadTable));
+
+        for (List<Object> key : added)
+            exprTable.remove(key);
+    }
+
+    private void renameUses(Function func) {
+        if (replaced.isEmpty())
+            return;
+
+        Map<Register, Register> renameMap = new HashMap<>();
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts()) {
+                renameMap.clear();
+                for (Register reg : inst.getUsedRegisters())
+                    renameMap.put(reg, replaced.getOrDefault(reg, reg));
+                inst.setUsedRegisters(renameMap);
+            }
+    }
+    // endregion
+}
@@ -0,0 +1,259 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * loop-invariant code motion, must be in SSA
+ * <p>
+ * each loop without {@link Loop#preheader} gets one, invariant Bin/Cmp are
+ * hoisted into it (inner loop first, so they may move further out)
+ * <p>
+ * Load is hoisted only if the loop is {@link Loop#entered} (a zero-trip loop
+ * would run the hoisted Load, which may fault), has no (non-builtin) Funcall
+ * or Store which may alias it (seen at {@link MemQuad#mayAlias}), its BB runs
+ * on every iteration, its base is never compared in the loop (may be a null
+ * check guarding it) and no {@link Check} of its address left in the loop
+ * comes before it (-fchecked)
+ * <p>
+ * Check is hoisted only if the loop is {@link Loop#entered} (not zero-trip,
+ * it runs on the first iteration) and has no Funcall, so nothing is printed
+ * before it fails. Another failing Check of that iteration may be reported
+ * instead
+ */
+public class LICM implements Pass {
+    public final Root root;
+
+    public LICM(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.LOOP);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.DOMINATOR, Analysis.CALLEE_SET);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            if (func.loops.isEmpty())
+                continue;
+
+            for (Loop loop : func.loops)
+                if (loop.preheader == null)
+                    insertPreheader(func, loop);
+            func.initDominatorTree();
+
+            initDefs(func);
+            List<Loop> innerFirst = new ArrayList<>(func.loops);
+            Collections.reverse(innerFirst);
+            for (Loop loop : innerFirst)
+                hoist(func, loop);
+        }
+    }
+
+    // region preheader
+    private void insertPreheader(Function func, Loop loop) {
+        BasicBlock header = loop.getHeader();
+        List<BasicBlock> outside = new ArrayList<>();
+        for (BasicBlock prevBB : header.getPrev())
+            if (!loop.contains(prevBB) && (prevBB.idom != null || prevBB == func.getStart()))
+                outside.add(prevBB);
+        if (outside.isEmpty())
+            return;
+
+        BasicBlock preheader = new BasicBlock(func, header.getName() + "_preheader");
+        preheader.setJump(new Jump(preheader, header));
+        loop.preheader = preheader;
+        if (loop.parent != null)
+            loop.parent.addBlock(preheader);
+
+        // prev -> preheader -> header
+        Map<Object, Object> renameMap = new HashMap<>();
+        renameMap.put(header, preheader);
+        for (BasicBlock prevBB : outside) {
+            Quad jump = prevBB.getInsts().getLast();
+            prevBB.delJump(jump);
+            prevBB.setJump((JumpQuad) jump.copyRename(renameMap));
+        }
+
+        // phi-paths from outside are merged in preheader
+        for (Quad inst : header.getInsts()) {
+            if (!(inst instanceof Phi))
+                break;
+
+            Phi phi = (Phi) inst;
+            RegValue value;
+            if (outside.size() == 1) {
+                value = phi.getPaths().get(outside.get(0));
+            } else {
+                Phi outsidePhi = new Phi(preheader, new VirtualRegister(phi.getDst().getName()));
+                for (BasicBlock prevBB : outside)
+                    outsidePhi.setPath(prevBB, phi.getPaths().get(prevBB));
+                preheader.getInsts().addFirst(outsidePhi);
+                value = outsidePhi.getDst();
+            }
+
+            for (BasicBlock prevBB : outside)
+                phi.delPath(prevBB);
+            phi.setPath(preheader, value);
+        }
+
+        if (func.getStart() == header)
+            func.setStart(preheader);
+    }
+    // endregion
+
+    // region hoist
+    private Map<Register, Quad> defs = new HashMap<>();
+
+    private void initDefs(Function func) {
+        defs.clear();
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts())
+                if (inst.getDefinedRegister() != null)
+                    defs.put(inst.getDefinedRegister(), inst);
+    }
+
+    private boolean isInvariant(Loop loop, Quad inst) {
+        for (Register reg : inst.getUsedRegisters()) {
+            Quad def = defs.get(reg);
+            if (def != null && loop.contains(def.getParent()))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean mayBeStored(Load load, List<Store> stores) {
+        for (Store store : stores)
+            if (store.mayAlias(load))
+                return true;
+        return false;
+    }
+
+    /** regs the address of load is computed from, through Moves and Bins */
+    private void addressRegs(RegValue value, Set<Register> regs) {
+        if (!(value instanceof Register) || !regs.add((Register) value))
+            return;
+        Quad def = defs.get(value);
+        if (def instanceof Move) {
+            addressRegs(((Move) def).getRhs(), regs);
+        } else if (def instanceof Bin && !(def instanceof Cmp)) {
+            addressRegs(((Bin) def).getLhs(), regs);
+            addressRegs(((Bin) def).getRhs(), regs);
+        }
+    }
+
+    /** a Check of its address left in the loop before load may guard it */
+    private boolean isChecked(Load load, List<Check> checks) {
+        Set<Register> regs = new HashSet<>();
+        addressRegs(load.baseAddr, regs);
+        addressRegs(load.getIndex(), regs);
+        for (Check check : checks) {
+            if (!regs.contains(check.getPointer()))
+                continue;
+            if (check.getParent() != load.getParent()) {
+                if (check.getParent().dominates(load.getParent()))
+                    return true;
+                continue;
+            }
+            for (Quad prev = load.getPrevInst(); prev != null; prev = prev.getPrevInst())
+                if (prev == check)
+                    return true;
+        }
+        return false;
+    }
+
+    private void hoist(Function func, Loop loop) {
+        if (loop.preheader == null)
+            return;
+
+        boolean hasCall = false, hasBuiltInCall = false;
+        List<Store> stores = new ArrayList<>();
+        List<Check> checks = new ArrayList<>();
+        Set<Register> comparedRegs = new HashSet<>();
+        List<BasicBlock> loopBBs = new ArrayList<>();
+        for (BasicBlock bb : func.getReversePostOrder()) {
+            if (!loop.contains(bb))
+                continue;
+            loopBBs.add(bb);
+
+            for (Quad inst : bb.getInsts()) {
+                if (inst instanceof Store)
+                    stores.add((Store) inst);
+                if (inst instanceof Funcall && !((Funcall) inst).getFunc().isBuiltIn())
+                    hasCall = true;
+                if (inst instanceof Funcall && ((Funcall) inst).getFunc().isBuiltIn())
+                    hasBuiltInCall = true;
+                if (inst instanceof Cmp)
+                    comparedRegs.addAll(inst.getUsedRegisters());
+                if (inst instanceof Check)
+                    checks.add((Check) inst);
+            }
+        }
+
+        BasicBlock preheader = loop.preheader;
+        Map<Object, Object> renameMap = new HashMap<>();
+
+        boolean changed;
+        do {
+            changed = false;
+            for (BasicBlock bb : loopBBs) {
+                boolean runsEveryIteration = true;
+                for (BasicBlock latch : loop.latches)
+                    if (!bb.dominates(latch))
+                        runsEveryIteration = false;
+
+                Quad nextInst;
+                for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                    nextInst = inst.getNextInst();
+                    if (!(inst.getDefinedRegister() instanceof VirtualRegister)
+                            && !(inst instanceof Check))
+                        continue;
+
+                    boolean canHoist;
+                    if (inst instanceof Bin) { // include Cmp, div may trap
+                        Op op = ((Bin) inst).getOp();
+                        canHoist = op != Op.DIV && op != Op.MOD;
+                    } else if (inst instanceof Load) {
+                        canHoist = loop.entered && !hasCall && runsEveryIteration
+                                && !comparedRegs.contains(((Load) inst).baseAddr)
+                                && !mayBeStored((Load) inst, stores)
+                                && !isChecked((Load) inst, checks);
+                    } else if (inst instanceof Check) { // nothing printed before it fails
+                        canHoist = loop.entered && !hasCall && !hasBuiltInCall
+                                && runsEveryIteration;
+                    } else {
+                        canHoist = false;
+                    }
+                    if (!canHoist || !isInvariant(loop, inst))
+                        continue;
+
+                    bb.removeInst(inst);
+                    checks.remove(inst);
+                    renameMap.put(bb, preheader);
+                    Quad hoisted = inst.copyRename(renameMap);
+                    preheader.addBefore(preheader.getInsts().getLast(), hoisted);
+                    if (hoisted.getDefinedRegister() != null)
+                        defs.put(hoisted.getDefinedRegister(), hoisted);
+                    changed = true;
+                }
+            }
+        } while (changed);
+    }
+    // endregion
+}
@@ -0,0 +1,259 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * Loads and Stores across BBs on alias classes ({@link MemQuad#mayAlias}),
+ * must be in SSA, after GVN (which forwards values in dominator order) and
+ * LICM (which hoists Loads never stored in the loop)
+ * <p>
+ * promotion: an address stored in a loop, with its base invariant, is kept
+ * in a vreg if all accesses of the loop which may alias it are of it and
+ * there is no (non-builtin) Funcall. It is loaded in the preheader, each BB
+ * in the loop gets its value (a phi at merges), and it is stored back on
+ * each exit edge. Like a Load of LICM, the loop must be {@link Loop#entered}
+ * (else the zero-trip path would load and store it), the base must not be
+ * compared in the loop and some access by it must run on every iteration
+ * (or be in the preheader, as a promoted one) and not be checked in the
+ * loop (-fchecked)
+ * <p>
+ * dead store: a Store is removed if every path from it stores the same
+ * address again before a Load which may alias it, a (non-builtin) Funcall,
+ * the Return, or a def of its base (then the address may change)
+ */
+public class LoadStoreElim implements Pass {
+    public final Root root;
+
+    public LoadStoreElim(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.LOOP);
+    }
+
+    /** exit edges get BBs */
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.CALLEE_SET);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            // one at a time, loops are found again with the exit BBs
+            boolean changed;
+            do {
+                changed = false;
+                initDefBB(func);
+                List<Loop> innerFirst = new ArrayList<>(func.loops);
+                Collections.reverse(innerFirst);
+                for (Loop loop : innerFirst)
+                    if (promote(func, loop)) {
+                        changed = true;
+                        func.initLoops();
+                        break;
+                    }
+            } while (changed);
+
+            for (BasicBlock bb : func.getReversePostOrder()) {
+                Quad nextInst;
+                for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                    nextInst = inst.getNextInst();
+                    if (inst instanceof Store && isDead((Store) inst))
+                        bb.removeInst(inst);
+                }
+            }
+        }
+    }
+
+    private boolean isCall(Quad inst) {
+        return inst instanceof Funcall && !((Funcall) inst).getFunc().isBuiltIn();
+    }
+
+    // region promotion
+    private Map<Register, BasicBlock> defBB = new HashMap<>();
+
+    private void initDefBB(Function func) {
+        defBB.clear();
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts())
+                if (inst.getDefinedRegister() != null)
+                    defBB.put(inst.getDefinedRegister(), bb);
+    }
+
+    /** promote one address of loop, false if none */
+    private boolean promote(Function func, Loop loop) {
+        BasicBlock preheader = loop.preheader;
+        if (preheader == null || !loop.entered)
+            return false;
+
+        List<BasicBlock> loopBBs = new ArrayList<>();
+        List<MemQuad> accesses = new ArrayList<>();
+        Set<Register> comparedRegs = new HashSet<>();
+        for (BasicBlock bb : func.getReversePostOrder()) {
+            if (!loop.contains(bb))
+                continue;
+            loopBBs.add(bb);
+            for (Quad inst : bb.getInsts()) {
+                if (isCall(inst))
+                    return false;
+                if ((inst instanceof Load && !((Load) inst).isLoadAddr()) || inst instanceof Store)
+                    accesses.add((MemQuad) inst);
+                if (inst instanceof Cmp || inst instanceof Check) // not loaded before them
+                    comparedRegs.addAll(inst.getUsedRegisters());
+            }
+        }
+
+        for (MemQuad access : accesses) {
+            if (!(access instanceof Store) || access.isStaticData() || access.getIndex() != null
+                    || !(access.baseAddr instanceof Register)
+                    || loop.contains(defBB.get(access.baseAddr))
+                    || comparedRegs.contains(access.baseAddr))
+                continue;
+
+            boolean promotable = true, runsEveryIteration = accessedBy(preheader, access.baseAddr);
+            for (MemQuad other : accesses) {
+                if (other.baseAddr == access.baseAddr)
+                    runsEveryIteration |= dominatesLatches(other.getParent(), loop);
+                if (!other.sameAddress(access) && other.mayAlias(access))
+                    promotable = false;
+            }
+            if (promotable && runsEveryIteration) {
+                promote(loop, loopBBs, preheader, access);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** promoted ones of the loop are loaded in preheader */
+    private boolean accessedBy(BasicBlock bb, RegValue baseAddr) {
+        for (Quad inst : bb.getInsts())
+            if (inst instanceof MemQuad && !(inst instanceof Move)
+                    && ((MemQuad) inst).baseAddr == baseAddr)
+                return true;
+        return false;
+    }
+
+    private boolean dominatesLatches(BasicBlock bb, Loop loop) {
+        for (BasicBlock latch : loop.latches)
+            if (!bb.dominates(latch))
+                return false;
+        return true;
+    }
+
+    private void promote(Loop loop, List<BasicBlock> loopBBs, BasicBlock preheader, MemQuad addr) {
+        VirtualRegister init = new VirtualRegister("promoted");
+        Load initLoad = new Load(preheader, init, addr.getSize(), addr.baseAddr, addr.offset);
+        initLoad.setAliasTag(addr.getAliasTag());
+        preheader.addBefore(preheader.getInsts().getLast(), initLoad);
+
+        // value at entry: a phi at header and merges, else of the only prev
+        Map<BasicBlock, Phi> phis = new HashMap<>();
+        for (BasicBlock bb : loopBBs) {
+            if (bb == loop.getHeader() || bb.getPrev().size() > 1) {
+                Phi phi = new Phi(bb, new VirtualRegister("promoted"));
+                bb.getInsts().addFirst(phi);
+                phis.put(bb, phi);
+            }
+        }
+
+        Map<BasicBlock, RegValue> outValue = new HashMap<>();
+        for (BasicBlock bb : loopBBs) {
+            RegValue value = phis.containsKey(bb) ? phis.get(bb).getDst()
+                    : outValue.get(bb.getPrev().iterator().next());
+            Quad nextInst;
+            for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst();
+                if (!(inst instanceof MemQuad) || inst instanceof Move
+                        || !((MemQuad) inst).sameAddress(addr))
+                    continue;
+                if (inst instanceof Load) {
+                    bb.replaceInst(inst, new Move(bb, ((Load) inst).getDst(), value));
+                } else {
+                    value = ((Store) inst).getValue();
+                    bb.removeInst(inst);
+                }
+            }
+            outValue.put(bb, value);
+        }
+
+        for (Phi phi : phis.values())
+            for (BasicBlock prevBB : phi.getParent().getPrev())
+                phi.setPath(prevBB, loop.contains(prevBB) ? outValue.get(prevBB) : init);
+
+        for (BasicBlock bb : loopBBs) {
+            Map<Object, Object> renameMap = new HashMap<>();
+            for (BasicBlock nextBB : bb.getNext()) {
+                if (loop.contains(nextBB))
+                    continue;
+                BasicBlock exitBB = new BasicBlock(bb.getFunc(), nextBB.getName() + "_exit");
+                Store store = new Store(exitBB, outValue.get(bb), addr.getSize(), addr.baseAddr,
+                        addr.offset);
+                store.setAliasTag(addr.getAliasTag());
+                exitBB.addLastInst(store);
+                exitBB.setJump(new Jump(exitBB, nextBB));
+
+                for (Quad inst : nextBB.getInsts()) {
+                    if (!(inst instanceof Phi))
+                        break;
+                    Phi phi = (Phi) inst;
+                    phi.setPath(exitBB, phi.getPaths().get(bb));
+                    phi.delPath(bb);
+                }
+                renameMap.put(nextBB, exitBB);
+            }
+
+            if (!renameMap.isEmpty()) {
+                Quad jump = bb.getInsts().getLast();
+                bb.delJump(jump);
+                bb.setJump((JumpQuad) jump.copyRename(renameMap));
+            }
+        }
+    }
+    // endregion
+
+    // region dead store
+    /** a bounds Check loads the length of its array */
+    private boolean readsLength(Quad inst, Store store) {
+        return inst instanceof Check && ((Check) inst).getKind() == Check.Kind.BOUNDS
+                && AliasTag.mayAlias(store.getAliasTag(), AliasTag.LENGTH);
+    }
+
+    private boolean isDead(Store store) {
+        Set<BasicBlock> visited = new HashSet<>();
+        Deque<Quad> worklist = new ArrayDeque<>();
+        worklist.add(store.getNextInst());
+        while (!worklist.isEmpty()) {
+            Quad inst = worklist.poll();
+            for (; inst != null; inst = inst.getNextInst()) {
+                Register dst = inst.getDefinedRegister();
+                if (dst != null && (dst == store.baseAddr || dst == store.getIndex()))
+                    return false;
+                if (inst instanceof Store && ((Store) inst).sameAddress(store))
+                    break;
+                if (inst instanceof Load && ((Load) inst).mayAlias(store) || isCall(inst)
+                        || inst instanceof Return || readsLength(inst, store))
+                    return false;
+
+                if (inst instanceof JumpQuad)
+                    for (BasicBlock nextBB : inst.getParent().getNext())
+                        if (visited.add(nextBB))
+                            worklist.add(nextBB.getInsts().getFirst());
+            }
+        }
+        return true;
+    }
+    // endregion
+}
@@ -4,21 +4,26 @@ import java.util.*;
 
 import mxcompiler.ir.*;
 import mxcompiler.ir.instruction.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
 
 
-public class MergeBB {
+public class MergeBB implements Pass {
     public final Root root;
 
     public MergeBB(Root root) {
         this.root = root;
     }
 
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
     public void execute() {
         for (Function func : root.getFunc().values()) {
             for (BasicBlock bb : func.getReversePostOrder())
                 mergeBB(bb);
-
-            func.initReversePostOrder();
         }
     }
 
@@ -42,13 +47,12 @@ public class MergeBB {
         renameMap.put(prev, next);
 
         // add after-funcall insts into new end(first)
-        ListIterator<Quad> iter = next.getInsts().listIterator();
-        iter.next();
+        Quad first = next.getInsts().getFirst();
         for (Quad inst : prev.getInsts()) {
             if (inst instanceof Jump)
                 continue;
 
-            next.addBeforeInst(iter, inst.copyRename(renameMap));
+            next.addBefore(first, inst.copyRename(renameMap));
         }
 
         if (prev.forNode != null) {
@@ -0,0 +1,133 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode;
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+import static mxcompiler.ir.register.RegValue.RegSize;
+import static mxcompiler.utils.Tool.PROFILE_DUMP_KEY;
+
+
+/**
+ * -fprofile-generate: each BB adds 1 to its counter in a .bss array, and
+ * main writes the counters to a file before it returns
+ * <p>
+ * run right after IRBuilder, so that BBs are numbered the same way when
+ * {@link ProfileReader} reads the file back
+ * <p>
+ * file: "mxprof checksum n", then n counts, one per line
+ */
+public class ProfileInstrument implements Pass {
+    public static final String DEFAULT_FILE = "mx.prof";
+    public static final String COUNTERS_NAME = "profile_counters";
+
+    public final Root root;
+    private final String path;
+
+    public ProfileInstrument(Root root, String path) {
+        this.root = root;
+        this.path = path;
+    }
+
+    /** no BB is added */
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.ORDER, Analysis.DOMINATOR, Analysis.LOOP);
+    }
+
+    public void execute() {
+        List<BasicBlock> blocks = numberBlocks(root);
+        StaticVar counters = new StaticVar(COUNTERS_NAME, RegSize * Math.max(blocks.size(), 1));
+        root.putStaticData(counters);
+
+        for (int i = 0; i < blocks.size(); ++i) {
+            BasicBlock bb = blocks.get(i);
+            VirtualRegister addr = new VirtualRegister("prof_addr");
+            VirtualRegister count = new VirtualRegister("prof_count");
+
+            InstList insts = bb.getInsts();
+            insts.addFirst(new Store(bb, count, RegSize, addr, i * RegSize));
+            insts.addFirst(new Bin(bb, count, BinaryOpExprNode.Op.ADD, count, new IntImm(1)));
+            insts.addFirst(new Load(bb, count, RegSize, addr, i * RegSize));
+            insts.addFirst(new Load(bb, addr, RegSize, counters, true));
+        }
+
+        // dump before main returns
+        Function main = root.getFunc("main");
+        BasicBlock retBB = main.getEnd();
+        Return retInst = (Return) retBB.getInsts().getLast();
+
+        StaticString file = root.getStaticStr(path);
+        if (file == null) {
+            file = new StaticString(path);
+            root.putStaticStr(file);
+        }
+
+        VirtualRegister addr = new VirtualRegister("prof_addr");
+        List<RegValue> args = new ArrayList<>();
+        args.add(addr);
+        args.add(new IntImm(blocks.size()));
+        args.add(new IntImm(checksum(blocks)));
+        args.add(file);
+
+        retBB.delJump(retInst);
+        retBB.addLastInst(new Load(retBB, addr, RegSize, counters, true));
+        retBB.addLastInst(new Funcall(retBB, root.getBuiltInFunc(PROFILE_DUMP_KEY), args, null));
+        retBB.setJump(retInst);
+    }
+
+    /**
+     * BBs of all functions, functions by name and BBs in pre-order by jump
+     * insts (then before else), as BB-order of func iterates a HashSet
+     */
+    public static List<BasicBlock> numberBlocks(Root root) {
+        List<String> names = new ArrayList<>(root.getFunc().keySet());
+        Collections.sort(names);
+
+        List<BasicBlock> blocks = new ArrayList<>();
+        for (String name : names) {
+            Set<BasicBlock> visited = new HashSet<>();
+            Deque<BasicBlock> stack = new ArrayDeque<>();
+            stack.push(root.getFunc(name).getStart());
+            while (!stack.isEmpty()) {
+                BasicBlock bb = stack.pop();
+                if (!visited.add(bb))
+                    continue;
+                blocks.add(bb);
+
+                List<BasicBlock> next = successors(bb);
+                for (int i = next.size() - 1; i >= 0; --i)
+                    stack.push(next.get(i));
+            }
+        }
+        return blocks;
+    }
+
+    private static List<BasicBlock> successors(BasicBlock bb) {
+        Quad last = bb.getInsts().isEmpty() ? null : bb.getInsts().getLast();
+        if (last instanceof Jump)
+            return Arrays.asList(((Jump) last).getTarget());
+        if (last instanceof CJump)
+            return Arrays.asList(((CJump) last).getThen(), ((CJump) last).getElse());
+        return Collections.emptyList();
+    }
+
+    /** of function names and the CFG, to find a profile of other source */
+    public static int checksum(List<BasicBlock> blocks) {
+        Map<BasicBlock, Integer> index = new HashMap<>();
+        for (BasicBlock bb : blocks)
+            index.put(bb, index.size());
+
+        int hash = blocks.size();
+        for (BasicBlock bb : blocks) {
+            hash = hash * 31 + bb.getFunc().getName().hashCode();
+            for (BasicBlock next : successors(bb))
+                hash = hash * 31 + index.getOrDefault(next, -1);
+        }
+        return hash;
+    }
+}
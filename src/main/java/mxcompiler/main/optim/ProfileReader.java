@@ -0,0 +1,61 @@
+package mxcompiler.main.optim;
+
+import java.io.*;
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * -fprofile-use: read the counters written by a -fprofile-generate build
+ * into {@link BasicBlock#profileCount}
+ * <p>
+ * run right after IRBuilder, as {@link ProfileInstrument} does. A missing
+ * file or one of other source is warned and ignored
+ * <p>
+ * used by FuncallInline (hot and cold call sites), RegisterAllocator (spill
+ * cost) and BlockPlacement (cold BBs last)
+ */
+public class ProfileReader implements Pass {
+    public final Root root;
+    private final String path;
+
+    public ProfileReader(Root root, String path) {
+        this.root = root;
+        this.path = path;
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    public void execute() {
+        List<BasicBlock> blocks = ProfileInstrument.numberBlocks(root);
+        long[] counts;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String[] head = reader.readLine().trim().split(" ");
+            if (head.length != 3 || !head[0].equals("mxprof"))
+                throw new IOException("not a profile");
+            if (Long.parseLong(head[1]) != ProfileInstrument.checksum(blocks)
+                    || Long.parseLong(head[2]) != blocks.size()) {
+                System.err.println("warning: profile " + path + " is of other source, ignored");
+                return;
+            }
+
+            counts = new long[blocks.size()];
+            for (int i = 0; i < counts.length; ++i)
+                counts[i] = Long.parseLong(reader.readLine().trim());
+        } catch (IOException | NullPointerException | NumberFormatException e) {
+            System.err.println("warning: can not read profile " + path + ", ignored");
+            return;
+        }
+
+        for (int i = 0; i < counts.length; ++i)
+            blocks.get(i).profileCount = counts[i];
+        root.hasProfile = true;
+    }
+}
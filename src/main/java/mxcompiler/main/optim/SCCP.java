@@ -0,0 +1,487 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.main.IRBuilder;
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * sparse conditional constant propagation (Wegman, Zadeck), must be in SSA
+ * <p>
+ * a global is also a constant if every executed Store of it stores the same
+ * constant (loads in main and init func are not folded, they may run before
+ * the first Store). One stored out of the init func may be loaded before
+ * that Store runs, so its value before it (0 if the init func does not store
+ * it) is met too
+ * <p>
+ * never-taken branches are pruned and unreachable BBs are dropped
+ */
+public class SCCP implements Pass {
+    public final Root root;
+
+    public SCCP(Root root) {
+        this.root = root;
+    }
+
+    // region lattice
+    private static class LatticeValue {
+        static final LatticeValue TOP = new LatticeValue(0);
+        static final LatticeValue BOTTOM = new LatticeValue(0);
+
+        final int value;
+
+        LatticeValue(int value) {
+            this.value = value;
+        }
+
+        boolean isConst() {
+            return this != TOP && this != BOTTOM;
+        }
+    }
+
+    private class FuncInfo {
+        Map<Register, LatticeValue> values = new HashMap<>();
+        Set<Register> defined = new HashSet<>();
+        Map<Register, List<Quad>> users = new HashMap<>();
+
+        Set<BasicBlock> executable = new HashSet<>();
+        Map<BasicBlock, Set<BasicBlock>> executablePrev = new HashMap<>();
+    }
+
+    private Map<Function, FuncInfo> funcInfoMap = new HashMap<>();
+    private Map<StaticData, Integer> globalConst = new HashMap<>();
+    // endregion
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
+    public void execute() {
+        // solve again while more globals are found to be constant
+        boolean changed;
+        do {
+            for (Function func : root.getFunc().values())
+                if (!func.isBuiltIn())
+                    funcInfoMap.put(func, solve(func));
+            changed = updateGlobalConst();
+        } while (changed);
+
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+            rewrite(func, funcInfoMap.get(func));
+            pruneCFG(func);
+        }
+    }
+
+    // region solve
+    private FuncInfo curInfo;
+    private Function curFunc;
+    private Deque<BasicBlock[]> cfgWorklist = new ArrayDeque<>();
+    private Deque<Quad> ssaWorklist = new ArrayDeque<>();
+
+    private FuncInfo solve(Function func) {
+        curFunc = func;
+        curInfo = new FuncInfo();
+        for (BasicBlock bb : func.getReversePostOrder())
+            for (Quad inst : bb.getInsts()) {
+                if (inst.getDefinedRegister() != null)
+                    curInfo.defined.add(inst.getDefinedRegister());
+                for (Register reg : inst.getUsedRegisters())
+                    curInfo.users.computeIfAbsent(reg, k -> new ArrayList<>()).add(inst);
+            }
+
+        cfgWorklist.clear();
+        ssaWorklist.clear();
+        cfgWorklist.add(new BasicBlock[] { null, func.getStart() });
+
+        while (!cfgWorklist.isEmpty() || !ssaWorklist.isEmpty()) {
+            while (!cfgWorklist.isEmpty()) {
+                BasicBlock[] edge = cfgWorklist.poll();
+                BasicBlock from = edge[0], to = edge[1];
+
+                Set<BasicBlock> prevs = curInfo.executablePrev.computeIfAbsent(to,
+                        k -> new HashSet<>());
+                if (from != null && !prevs.add(from))
+                    continue;
+
+                if (curInfo.executable.add(to)) {
+                    for (Quad inst : to.getInsts())
+                        visitInst(inst);
+                } else {
+                    for (Quad inst : to.getInsts()) {
+                        if (!(inst instanceof Phi))
+                            break;
+                        visitInst(inst);
+                    }
+                }
+            }
+
+            while (!ssaWorklist.isEmpty()) {
+                Quad inst = ssaWorklist.poll();
+                if (curInfo.executable.contains(inst.getParent()))
+                    visitInst(inst);
+            }
+        }
+        return curInfo;
+    }
+
+    private LatticeValue getValue(RegValue value) {
+        if (value instanceof IntImm)
+            return new LatticeValue(((IntImm) value).getValue());
+        if (!(value instanceof VirtualRegister) || !curInfo.defined.contains(value))
+            return LatticeValue.BOTTOM;
+        return curInfo.values.getOrDefault(value, LatticeValue.TOP);
+    }
+
+    private void setValue(Register reg, LatticeValue value) {
+        LatticeValue old = getValue(reg);
+        if (old == LatticeValue.BOTTOM || value == LatticeValue.TOP)
+            return;
+        if (old.isConst() && value.isConst() && old.value == value.value)
+            return;
+        if (old.isConst() && value.isConst()) // can only lower
+            value = LatticeValue.BOTTOM;
+
+        curInfo.values.put(reg, value);
+        ssaWorklist.addAll(curInfo.users.getOrDefault(reg, Collections.emptyList()));
+    }
+
+    private void visitInst(Quad inst) {
+        BasicBlock bb = inst.getParent();
+
+        if (inst instanceof Jump) {
+            cfgWorklist.add(new BasicBlock[] { bb, ((Jump) inst).getTarget() });
+            return;
+        }
+
+        if (inst instanceof CJump) {
+            CJump cjump = (CJump) inst;
+            LatticeValue cond = getValue(cjump.getCond());
+            if (cond == LatticeValue.TOP)
+                return;
+            if (cond == LatticeValue.BOTTOM || cond.value != 0)
+                cfgWorklist.add(new BasicBlock[] { bb, cjump.getThen() });
+            if (cond == LatticeValue.BOTTOM || cond.value == 0)
+                cfgWorklist.add(new BasicBlock[] { bb, cjump.getElse() });
+            return;
+        }
+
+        Register dst = inst.getDefinedRegister();
+        if (!(dst instanceof VirtualRegister))
+            return;
+
+        if (inst instanceof Phi) {
+            LatticeValue result = LatticeValue.TOP;
+            Set<BasicBlock> prevs = curInfo.executablePrev.get(bb);
+            for (Map.Entry<BasicBlock, RegValue> path : ((Phi) inst).getPaths().entrySet()) {
+                if (prevs == null || !prevs.contains(path.getKey()))
+                    continue;
+                result = meet(result, getValue(path.getValue()));
+            }
+            setValue(dst, result);
+        } else if (inst instanceof Move) {
+            setValue(dst, getValue(((Move) inst).getRhs()));
+        } else if (inst instanceof Bin) { // include Cmp
+            Bin bin = (Bin) inst;
+            LatticeValue lhs = getValue(bin.getLhs()), rhs = getValue(bin.getRhs());
+            if (lhs == LatticeValue.BOTTOM || rhs == LatticeValue.BOTTOM)
+                setValue(dst, LatticeValue.BOTTOM);
+            else if (lhs.isConst() && rhs.isConst())
+                setValue(dst, foldBin(bin.getOp(), lhs.value, rhs.value));
+        } else if (inst instanceof Uni) {
+            Uni uni = (Uni) inst;
+            LatticeValue rhs = getValue(uni.getRhs());
+            if (rhs == LatticeValue.BOTTOM)
+                setValue(dst, LatticeValue.BOTTOM);
+            else if (rhs.isConst())
+                setValue(dst, foldUni(uni, rhs.value));
+        } else if (inst instanceof Load && isGlobalConstLoad((Load) inst)) {
+            setValue(dst, new LatticeValue(globalConst.get(((Load) inst).baseAddr)));
+        } else {
+            setValue(dst, LatticeValue.BOTTOM);
+        }
+    }
+
+    private LatticeValue meet(LatticeValue x, LatticeValue y) {
+        if (x == LatticeValue.TOP)
+            return y;
+        if (y == LatticeValue.TOP)
+            return x;
+        if (x.isConst() && y.isConst() && x.value == y.value)
+            return x;
+        return LatticeValue.BOTTOM;
+    }
+    // endregion
+
+    // region fold
+    /** only fold what the 64-bit code would compute the same, or BOTTOM */
+    private LatticeValue foldBin(Op op, int lhs, int rhs) {
+        long result;
+        switch (op) {
+        case ADD:
+            result = (long) lhs + rhs;
+            break;
+        case SUB:
+            result = (long) lhs - rhs;
+            break;
+        case MUL:
+            result = (long) lhs * rhs;
+            break;
+        case DIV:
+        case MOD: // 64-bit idiv of the sign-extended ints, seen at AssemblyDump
+            if (rhs == 0)
+                return LatticeValue.BOTTOM;
+            result = (op == Op.DIV) ? (long) lhs / rhs : (long) lhs % rhs;
+            break;
+        case SH_L:
+            if (rhs < 0 || rhs >= 32)
+                return LatticeValue.BOTTOM;
+            result = (long) lhs << rhs;
+            break;
+        case SH_R:
+            if (rhs < 0 || rhs >= 32)
+                return LatticeValue.BOTTOM;
+            result = lhs >> rhs;
+            break;
+        case BIT_AND:
+            result = lhs & rhs;
+            break;
+        case BIT_OR:
+            result = lhs | rhs;
+            break;
+        case BIT_XOR:
+            result = lhs ^ rhs;
+            break;
+        case LESS:
+            result = lhs < rhs ? 1 : 0;
+            break;
+        case LESS_EQUAL:
+            result = lhs <= rhs ? 1 : 0;
+            break;
+        case GREATER:
+            result = lhs > rhs ? 1 : 0;
+            break;
+        case GREATER_EQUAL:
+            result = lhs >= rhs ? 1 : 0;
+            break;
+        case EQUAL:
+            result = lhs == rhs ? 1 : 0;
+            break;
+        case INEQUAL:
+            result = lhs != rhs ? 1 : 0;
+            break;
+        default:
+            return LatticeValue.BOTTOM;
+        }
+
+        if (result != (int) result)
+            return LatticeValue.BOTTOM;
+        return new LatticeValue((int) result);
+    }
+
+    private LatticeValue foldUni(Uni uni, int rhs) {
+        switch (uni.getOp()) {
+        case NEGA:
+            if (rhs == Integer.MIN_VALUE)
+                return LatticeValue.BOTTOM;
+            return new LatticeValue(-rhs);
+        case BIT_NOT:
+            return new LatticeValue(~rhs);
+        default:
+            return LatticeValue.BOTTOM;
+        }
+    }
+
+    private Op mirror(Op op) {
+        switch (op) {
+        case LESS:
+            return Op.GREATER;
+        case LESS_EQUAL:
+            return Op.GREATER_EQUAL;
+        case GREATER:
+            return Op.LESS;
+        case GREATER_EQUAL:
+            return Op.LESS_EQUAL;
+        default:
+            return op;
+        }
+    }
+    // endregion
+
+    // region global const
+    private boolean isGlobalConstLoad(Load load) {
+        if (!load.isStaticData() || load.isLoadAddr() || !globalConst.containsKey(load.baseAddr))
+            return false;
+        // zero-initialized and never stored
+        if (globalConst.get(load.baseAddr) == 0 && !storedData.contains(load.baseAddr))
+            return true;
+        return curFunc != root.getFunc("main")
+                && curFunc != root.getFunc(IRBuilder.INIT_FUNC_NAME);
+    }
+
+    private Set<StaticData> storedData = new HashSet<>();
+
+    /** return true if find new const global */
+    private boolean updateGlobalConst() {
+        Map<StaticData, LatticeValue> storedValues = new HashMap<>();
+        Set<StaticData> storedByInit = new HashSet<>();
+        storedData.clear();
+        Function init = root.getFunc(IRBuilder.INIT_FUNC_NAME);
+
+        for (Map.Entry<Function, FuncInfo> entry : funcInfoMap.entrySet()) {
+            curInfo = entry.getValue();
+            for (BasicBlock bb : entry.getKey().getReversePostOrder()) {
+                boolean executable = curInfo.executable.contains(bb);
+                for (Quad inst : bb.getInsts()) {
+                    if (!(inst instanceof Store) || !((Store) inst).isStaticData())
+                        continue;
+                    StaticData data = (StaticData) ((Store) inst).baseAddr;
+                    storedData.add(data);
+                    if (entry.getKey() == init)
+                        storedByInit.add(data);
+                    if (executable)
+                        storedValues.put(data, meet(
+                                storedValues.getOrDefault(data, LatticeValue.TOP),
+                                getValue(((Store) inst).getValue())));
+                }
+            }
+        }
+
+        for (StaticData data : storedData)
+            if (!storedByInit.contains(data) && storedValues.containsKey(data))
+                storedValues.put(data, meet(storedValues.get(data), new LatticeValue(0)));
+
+        boolean changed = false;
+        for (StaticData data : root.getStaticDataList()) {
+            if (!(data instanceof StaticVar) || globalConst.containsKey(data))
+                continue;
+
+            LatticeValue value = storedData.contains(data) ? storedValues.get(data)
+                    : new LatticeValue(0);
+            if (value != null && value.isConst()) {
+                globalConst.put(data, value.value);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+    // endregion
+
+    // region rewrite
+    private void rewrite(Function func, FuncInfo info) {
+        curInfo = info;
+        curFunc = func;
+
+        for (BasicBlock bb : func.getReversePostOrder()) {
+            if (!info.executable.contains(bb))
+                continue;
+
+            // constant phi -> move after all phis
+            List<Quad> phiMoves = new ArrayList<>();
+            Quad firstNonPhi = bb.getInsts().getFirst();
+            while (firstNonPhi instanceof Phi) {
+                Phi phi = (Phi) firstNonPhi;
+                firstNonPhi = phi.getNextInst();
+                LatticeValue value = getValue(phi.getDst());
+                if (value.isConst()) {
+                    phiMoves.add(new Move(bb, phi.getDst(), new IntImm(value.value)));
+                    bb.removeInst(phi);
+                }
+            }
+            for (Quad move : phiMoves)
+                bb.addBefore(firstNonPhi, move);
+
+            Quad nextInst;
+            for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst();
+
+                Register dst = inst.getDefinedRegister();
+                if (dst != null && getValue(dst).isConst() && !(inst instanceof Phi)
+                        && (inst instanceof Bin || inst instanceof Uni || inst instanceof Move
+                                || inst instanceof Load)) {
+                    bb.replaceInst(inst, new Move(bb, dst, new IntImm(getValue(dst).value)));
+                    continue;
+                }
+
+                if (inst instanceof Cmp) {
+                    Cmp cmp = (Cmp) inst;
+                    if (getValue(cmp.getRhs()).isConst())
+                        cmp.setRhs(new IntImm(getValue(cmp.getRhs()).value));
+                    else if (getValue(cmp.getLhs()).isConst()) // lhs can not be imm
+                        bb.replaceInst(inst, new Cmp(bb, cmp.getDst(), mirror(cmp.getOp()),
+                                cmp.getRhs(), new IntImm(getValue(cmp.getLhs()).value)));
+                } else if (inst instanceof Bin) {
+                    Bin bin = (Bin) inst;
+                    if (getValue(bin.getLhs()).isConst())
+                        bin.setLhs(new IntImm(getValue(bin.getLhs()).value));
+                    if (getValue(bin.getRhs()).isConst())
+                        bin.setRhs(new IntImm(getValue(bin.getRhs()).value));
+                } else if (inst instanceof Move) {
+                    Move move = (Move) inst;
+                    if (getValue(move.getRhs()).isConst())
+                        move.setRhs(new IntImm(getValue(move.getRhs()).value));
+                } else if (inst instanceof Funcall) {
+                    List<RegValue> args = ((Funcall) inst).getArgs();
+                    for (int i = 0; i < args.size(); ++i)
+                        if (getValue(args.get(i)).isConst())
+                            args.set(i, new IntImm(getValue(args.get(i)).value));
+                    ((Funcall) inst).reloadUsedRegs();
+                } else if (inst instanceof Phi) {
+                    Phi phi = (Phi) inst;
+                    for (Map.Entry<BasicBlock, RegValue> path : new ArrayList<>(
+                            phi.getPaths().entrySet()))
+                        if (getValue(path.getValue()).isConst())
+                            phi.setPath(path.getKey(), new IntImm(getValue(path.getValue()).value));
+                } else if (inst instanceof CJump) {
+                    CJump cjump = (CJump) inst;
+                    boolean thenTaken = info.executablePrev.containsKey(cjump.getThen())
+                            && info.executablePrev.get(cjump.getThen()).contains(bb);
+                    boolean elseTaken = info.executablePrev.containsKey(cjump.getElse())
+                            && info.executablePrev.get(cjump.getElse()).contains(bb);
+                    if (thenTaken != elseTaken) {
+                        bb.delJump(cjump);
+                        bb.setJump(new Jump(bb, thenTaken ? cjump.getThen() : cjump.getElse()));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** del unreachable BB (del its jump) and phi-paths from them */
+    private void pruneCFG(Function func) {
+        func.initReversePostOrder();
+        Set<BasicBlock> reachable = new HashSet<>(func.getReversePostOrder());
+
+        for (BasicBlock bb : reachable) {
+            for (BasicBlock prevBB : new ArrayList<>(bb.getPrev()))
+                if (!reachable.contains(prevBB) && prevBB.hasJump())
+                    prevBB.delJump(prevBB.getInsts().getLast());
+
+            for (Quad inst : bb.getInsts()) {
+                if (!(inst instanceof Phi))
+                    break;
+                for (BasicBlock pathBB : new ArrayList<>(((Phi) inst).getPaths().keySet()))
+                    if (!bb.getPrev().contains(pathBB))
+                        ((Phi) inst).delPath(pathBB);
+            }
+        }
+
+        for (Root.ForRecord record : root.forRecMap.values()) {
+            if (record.cond != null && record.cond.getFunc() == func
+                    && !(reachable.contains(record.cond) && reachable.contains(record.incr)
+                            && reachable.contains(record.body)
+                            && reachable.contains(record.after)))
+                record.processed = true;
+        }
+    }
+    // endregion
+}
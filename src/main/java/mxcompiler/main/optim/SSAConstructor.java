@@ -0,0 +1,284 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * construct SSA form for vregs (StaticData is never renamed)
+ * <p>
+ * semi-pruned phi placement via dominance frontier, rename via dominator tree
+ * <p>
+ * {@code Move vreg, vreg} is folded while renaming, no immediate is propagated
+ * (Cmp-lhs and mem-base can not be IntImm)
+ */
+public class SSAConstructor implements Pass {
+    public final Root root;
+
+    public SSAConstructor(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.of(Analysis.DOMINATOR, Analysis.CALLEE_SET);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            prepareEntry(func);
+            func.initDominatorTree();
+
+            insertPhi(func);
+            rename(func);
+            removeUselessPhi(func);
+        }
+    }
+
+    // region entry
+    /** del jump from unreachable BB, make sure start has no prev */
+    private void prepareEntry(Function func) {
+        Set<BasicBlock> reachable = new HashSet<>(func.getReversePostOrder());
+        for (BasicBlock bb : reachable) {
+            for (BasicBlock prevBB : new ArrayList<>(bb.getPrev())) {
+                if (!reachable.contains(prevBB) && prevBB.hasJump())
+                    prevBB.delJump(prevBB.getInsts().getLast());
+            }
+        }
+
+        BasicBlock start = func.getStart();
+        if (!start.getPrev().isEmpty()) {
+            BasicBlock newStart = new BasicBlock(func, start.getName() + "_ssa");
+            newStart.setJump(new Jump(newStart, start));
+            func.setStart(newStart);
+        }
+        func.initReversePostOrder();
+    }
+    // endregion
+
+    // region phi-placement
+    private Map<Phi, VirtualRegister> phiOrigin = new HashMap<>();
+
+    private void insertPhi(Function func) {
+        List<BasicBlock> rpo = func.getReversePostOrder();
+
+        // global names and their def-sites
+        Set<VirtualRegister> globals = new LinkedHashSet<>();
+        Map<VirtualRegister, Set<BasicBlock>> defSites = new HashMap<>();
+        for (VirtualRegister arg : func.argVregs)
+            defSites.computeIfAbsent(arg, k -> new HashSet<>()).add(func.getStart());
+
+        for (BasicBlock bb : rpo) {
+            Set<VirtualRegister> killed = new HashSet<>();
+            for (Quad inst : bb.getInsts()) {
+                for (Register reg : inst.getUsedRegisters())
+                    if (reg instanceof VirtualRegister && !killed.contains(reg))
+                        globals.add((VirtualRegister) reg);
+
+                Register def = inst.getDefinedRegister();
+                if (def instanceof VirtualRegister) {
+                    killed.add((VirtualRegister) def);
+                    defSites.computeIfAbsent((VirtualRegister) def, k -> new HashSet<>())
+                            .add(bb);
+                }
+            }
+        }
+
+        phiOrigin.clear();
+        for (VirtualRegister vreg : globals) {
+            Set<BasicBlock> sites = defSites.get(vreg);
+            if (sites == null)
+                continue;
+
+            Set<BasicBlock> hasPhi = new HashSet<>();
+            Deque<BasicBlock> worklist = new ArrayDeque<>(sites);
+            while (!worklist.isEmpty()) {
+                BasicBlock bb = worklist.poll();
+                for (BasicBlock frontier : bb.domFrontier) {
+                    if (!hasPhi.add(frontier))
+                        continue;
+
+                    Phi phi = new Phi(frontier, vreg);
+                    frontier.getInsts().addFirst(phi);
+                    phiOrigin.put(phi, vreg);
+
+                    if (!sites.contains(frontier))
+                        worklist.add(frontier);
+                }
+            }
+        }
+    }
+    // endregion
+
+    // region rename
+    private Map<VirtualRegister, Deque<Register>> stacks = new HashMap<>();
+
+    private void rename(Function func) {
+        stacks.clear();
+        for (VirtualRegister arg : func.argVregs)
+            pushName(arg, arg);
+
+        renameBB(func.getStart());
+    }
+
+    private void pushName(VirtualRegister origin, Register name) {
+        stacks.computeIfAbsent(origin, k -> new ArrayDeque<>()).push(name);
+    }
+
+    private Register topName(Register origin) {
+        Deque<Register> stack = stacks.get(origin);
+        return (stack == null || stack.isEmpty()) ? null : stack.peek();
+    }
+
+    private void renameBB(BasicBlock bb) {
+        List<VirtualRegister> pushed = new ArrayList<>();
+
+        Quad nextInst;
+        for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = nextInst) {
+            nextInst = inst.getNextInst();
+
+            if (!(inst instanceof Phi)) {
+                Map<Register, Register> renameMap = new HashMap<>();
+                for (Register reg : inst.getUsedRegisters()) {
+                    Register name = topName(reg);
+                    renameMap.put(reg, name == null ? reg : name);
+                }
+                inst.setUsedRegisters(renameMap);
+
+                // copy folding
+                if (inst instanceof Move && ((Move) inst).getDst() instanceof VirtualRegister
+                        && ((Move) inst).getRhs() instanceof VirtualRegister) {
+                    VirtualRegister dst = (VirtualRegister) ((Move) inst).getDst();
+                    pushName(dst, (VirtualRegister) ((Move) inst).getRhs());
+                    pushed.add(dst);
+                    bb.removeInst(inst);
+                    continue;
+                }
+            }
+
+            Register def = inst.getDefinedRegister();
+            if (def instanceof VirtualRegister) {
+                VirtualRegister origin = (inst instanceof Phi) ? phiOrigin.get(inst)
+                        : (VirtualRegister) def;
+                VirtualRegister name = new VirtualRegister(origin.getName());
+                inst.setDefinedRegister(name);
+                pushName(origin, name);
+                pushed.add(origin);
+            }
+        }
+
+        for (BasicBlock nextBB : bb.getNext()) {
+            for (Quad inst : nextBB.getInsts()) {
+                if (!(inst instanceof Phi))
+                    break;
+                Register name = topName(phiOrigin.get(inst));
+                ((Phi) inst).setPath(bb, name == null ? new IntImm(0) : name);
+            }
+        }
+
+        for (BasicBlock child : bb.domChildren)
+            renameBB(child);
+
+        for (VirtualRegister origin : pushed)
+            stacks.get(origin).pop();
+    }
+    // endregion
+
+    // region useless phi
+    /** del dead phi (only used by phis) and trivial phi (single incoming value) */
+    private void removeUselessPhi(Function func) {
+        List<BasicBlock> rpo = func.getReversePostOrder();
+
+        boolean changed;
+        do {
+            changed = false;
+
+            // live phi: used by normal inst, or used by live phi
+            Set<Register> usedByInst = new HashSet<>();
+            Map<Register, Phi> phiOf = new HashMap<>();
+            for (BasicBlock bb : rpo)
+                for (Quad inst : bb.getInsts()) {
+                    if (inst instanceof Phi)
+                        phiOf.put(((Phi) inst).getDst(), (Phi) inst);
+                    else
+                        usedByInst.addAll(inst.getUsedRegisters());
+                }
+
+            Set<Phi> livePhi = new HashSet<>();
+            Deque<Phi> worklist = new ArrayDeque<>();
+            for (Register reg : usedByInst)
+                if (phiOf.containsKey(reg) && livePhi.add(phiOf.get(reg)))
+                    worklist.add(phiOf.get(reg));
+            while (!worklist.isEmpty())
+                for (Register reg : worklist.poll().getUsedRegisters())
+                    if (phiOf.containsKey(reg) && livePhi.add(phiOf.get(reg)))
+                        worklist.add(phiOf.get(reg));
+
+            // trivial phi: dst = phi [v, v, dst ...]
+            Map<Register, Register> replaced = new HashMap<>();
+            for (BasicBlock bb : rpo) {
+                Quad nextInst;
+                for (Quad inst = bb.getInsts().getFirst(); inst instanceof Phi; inst = nextInst) {
+                    nextInst = inst.getNextInst();
+
+                    Phi phi = (Phi) inst;
+                    if (!livePhi.contains(phi)) {
+                        bb.removeInst(phi);
+                        changed = true;
+                        continue;
+                    }
+
+                    Register same = getTrivialValue(phi);
+                    if (same != null) {
+                        replaced.put(phi.getDst(), same);
+                        bb.removeInst(phi);
+                        changed = true;
+                    }
+                }
+            }
+
+            if (!replaced.isEmpty()) {
+                for (BasicBlock bb : rpo)
+                    for (Quad inst : bb.getInsts()) {
+                        Map<Register, Register> renameMap = new HashMap<>();
+                        for (Register reg : inst.getUsedRegisters())
+                            renameMap.put(reg, findReplaced(replaced, reg));
+                        inst.setUsedRegisters(renameMap);
+                    }
+            }
+        } while (changed);
+    }
+
+    /** get the only value (except itself), or null */
+    private Register getTrivialValue(Phi phi) {
+        Register same = null;
+        for (RegValue value : phi.getPaths().values()) {
+            if (value == phi.getDst() || value == same)
+                continue;
+            if (same != null || !(value instanceof Register))
+                return null;
+            same = (Register) value;
+        }
+        return same;
+    }
+
+    private Register findReplaced(Map<Register, Register> replaced, Register reg) {
+        while (replaced.containsKey(reg))
+            reg = replaced.get(reg);
+        return reg;
+    }
+    // endregion
+}
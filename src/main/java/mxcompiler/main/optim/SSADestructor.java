@@ -0,0 +1,65 @@
+package mxcompiler.main.optim;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * translate out of SSA (must run before RegisterAllocator)
+ * <p>
+ * each phi gets a fresh temp (Sreedhar Method I), so no critical edge
+ * splitting and no lost-copy or swap problem:
+ *
+ * <pre>
+ * prevBB_i: ... tmp = value_i; jump
+ * bb: dst = tmp; ...
+ * </pre>
+ */
+public class SSADestructor implements Pass {
+    public final Root root;
+
+    public SSADestructor(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            if (func.isBuiltIn())
+                continue;
+
+            for (BasicBlock bb : func.getReversePostOrder())
+                destructBB(bb);
+        }
+    }
+
+    private void destructBB(BasicBlock bb) {
+        // prevBB may be bb itself, so collect first
+        Map<Phi, VirtualRegister> phiTmp = new LinkedHashMap<>();
+        for (Quad inst : bb.getInsts()) {
+            if (!(inst instanceof Phi))
+                break;
+            Phi phi = (Phi) inst;
+            phiTmp.put(phi, new VirtualRegister(phi.getDst().getName() + "_phi"));
+        }
+
+        phiTmp.forEach((phi, tmp) -> {
+            for (Map.Entry<BasicBlock, RegValue> path : phi.getPaths().entrySet()) {
+                BasicBlock prevBB = path.getKey();
+                prevBB.addBefore(prevBB.getInsts().getLast(),
+                        new Move(prevBB, tmp, path.getValue()));
+            }
+        });
+
+        phiTmp.forEach((phi, tmp) -> bb.replaceInst(phi, new Move(bb, phi.getDst(), tmp)));
+    }
+}
@@ -0,0 +1,335 @@
+package mxcompiler.main.optim;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import mxcompiler.ast.expression.BinaryOpExprNode.Op;
+import mxcompiler.ast.expression.unary.PrefixExprNode;
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * strength reduction on SSA, after AddressModeFold (which has taken the
+ * MULs of array indexes)
+ * <p>
+ * a MUL by constant k of a basic induction variable i = phi(init, i + c)
+ * gets its own induction variable t = phi(init * k, t + c * k), so the loop
+ * adds instead of multiplying. A MUL by 2^n becomes a shift
+ * <p>
+ * DIV and MOD by a constant become a multiply-high and shifts, as truncated
+ * 64-bit division of the sign-extended dividend (Granlund and Montgomery:
+ * Division by Invariant Integers using Multiplication); of two constants
+ * they are folded. {@link Root#hasDivShiftInst} is cleared if no idiv or
+ * shift by register is left, so rbx is not reserved for them
+ */
+public class StrengthReduction implements Pass {
+    public final Root root;
+
+    public StrengthReduction(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.LOOP);
+    }
+
+    /** no BB is added */
+    @Override
+    public EnumSet<Analysis> preserved() {
+        return EnumSet.allOf(Analysis.class);
+    }
+
+    private Map<Register, Quad> defs = new HashMap<>();
+    private Map<Register, List<Quad>> uses = new HashMap<>();
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            defs.clear();
+            uses.clear();
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts()) {
+                    if (inst.getDefinedRegister() != null)
+                        defs.put(inst.getDefinedRegister(), inst);
+                    for (Register reg : inst.getUsedRegisters())
+                        uses.computeIfAbsent(reg, k -> new ArrayList<>()).add(inst);
+                }
+
+            for (Loop loop : func.loops)
+                reduceInductions(loop);
+
+            for (BasicBlock bb : func.getReversePostOrder()) {
+                Quad next;
+                for (Quad inst = bb.getInsts().getFirst(); inst != null; inst = next) {
+                    next = inst.getNextInst();
+                    if (inst instanceof Bin && !(inst instanceof Cmp))
+                        reduce(bb, (Bin) inst);
+                }
+            }
+        }
+
+        root.hasDivShiftInst = hasDivShiftInst();
+    }
+
+    // region induction variable
+    private void reduceInductions(Loop loop) {
+        BasicBlock preheader = loop.preheader;
+        if (preheader == null || loop.latches.size() != 1)
+            return;
+        BasicBlock header = loop.getHeader(), latch = loop.latches.iterator().next();
+
+        List<Phi> phis = new ArrayList<>();
+        for (Quad inst : header.getInsts())
+            if (inst instanceof Phi)
+                phis.add((Phi) inst);
+
+        for (Phi phi : phis) {
+            Register i = phi.getDst();
+            RegValue init = phi.getPaths().get(preheader), next = phi.getPaths().get(latch);
+            Bin step = (next instanceof Register) ? stepOf(loop, i, defs.get(next)) : null;
+            if (phi.getPaths().size() != 2 || init == null || step == null)
+                continue;
+            long c = ((IntImm) ((step.getLhs() == i) ? step.getRhs() : step.getLhs())).getValue();
+            if (step.getOp() == Op.SUB)
+                c = -c;
+
+            // one new induction variable for each k
+            Map<Integer, Register> derived = new HashMap<>();
+            for (Quad use : new ArrayList<>(uses.getOrDefault(i, Collections.emptyList()))) {
+                if (use.removed || use.getClass() != Bin.class || !loop.contains(use.getParent()))
+                    continue;
+                Bin mul = (Bin) use;
+                RegValue factor = (mul.getLhs() == i) ? mul.getRhs() : mul.getLhs();
+                if (mul.getOp() != Op.MUL || !(factor instanceof IntImm))
+                    continue;
+                int k = ((IntImm) factor).getValue();
+                if (isPowerOfTwo(k) || k == 0 || k == -1 || !fitsInt(c * k))
+                    continue; // a shift is as cheap as an add
+
+                Register t = derived.get(k);
+                if (t == null) {
+                    RegValue tInit;
+                    if (init instanceof IntImm) {
+                        long value = (long) ((IntImm) init).getValue() * k;
+                        if (!fitsInt(value))
+                            continue;
+                        tInit = new IntImm((int) value);
+                    } else {
+                        tInit = new VirtualRegister("iv_init");
+                        preheader.addBefore(preheader.getInsts().getLast(),
+                                new Bin(preheader, tInit, Op.MUL, init, new IntImm(k)));
+                    }
+
+                    t = new VirtualRegister("iv");
+                    VirtualRegister tNext = new VirtualRegister("iv_next");
+                    Phi tPhi = new Phi(header, t);
+                    tPhi.setPath(preheader, tInit);
+                    tPhi.setPath(latch, tNext);
+                    header.getInsts().addFirst(tPhi);
+                    step.getParent().addAfter(step,
+                            new Bin(step.getParent(), tNext, Op.ADD, t, new IntImm((int) (c * k))));
+                    derived.put(k, t);
+                }
+
+                mul.getParent().replaceInst(mul, new Move(mul.getParent(), mul.getDst(), t));
+            }
+        }
+    }
+
+    /** i + c, c + i or i - c in loop */
+    private Bin stepOf(Loop loop, Register i, Quad def) {
+        if (def == null || def.getClass() != Bin.class || !loop.contains(def.getParent()))
+            return null;
+        Bin bin = (Bin) def;
+        if (bin.getOp() == Op.ADD)
+            return ((bin.getLhs() == i && bin.getRhs() instanceof IntImm)
+                    || (bin.getRhs() == i && bin.getLhs() instanceof IntImm)) ? bin : null;
+        if (bin.getOp() == Op.SUB)
+            return (bin.getLhs() == i && bin.getRhs() instanceof IntImm) ? bin : null;
+        return null;
+    }
+    // endregion
+
+    // region mul and div by constant
+    private void reduce(BasicBlock bb, Bin bin) {
+        if (bin.getOp() == Op.MUL && bin.getLhs() instanceof IntImm) {
+            RegValue tmp = bin.getLhs();
+            bin.setLhs(bin.getRhs());
+            bin.setRhs(tmp);
+        }
+        if (!(bin.getRhs() instanceof IntImm))
+            return;
+        long k = ((IntImm) bin.getRhs()).getValue();
+        if (bin.getLhs() instanceof IntImm) {
+            // forwarded after SCCP, e.g. by LoadStoreElim
+            fold(bb, bin, ((IntImm) bin.getLhs()).getValue(), k);
+            return;
+        }
+        if (!(bin.getLhs() instanceof VirtualRegister))
+            return;
+
+        switch (bin.getOp()) {
+        case MUL:
+            if (k > 1 && isPowerOfTwo(k))
+                bb.replaceInst(bin, new Bin(bb, bin.getDst(), Op.SH_L, bin.getLhs(), new IntImm(log2(k))));
+            break;
+        case DIV:
+        case MOD:
+            if (k != 0) // keep the fault
+                lowerDivision(bb, bin, k);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** constant lhs and rhs, as the 64-bit code computes them */
+    private void fold(BasicBlock bb, Bin bin, long x, long k) {
+        long result;
+        switch (bin.getOp()) {
+        case MUL:
+            result = x * k;
+            break;
+        case DIV:
+        case MOD:
+            if (k == 0) // keep the fault
+                return;
+            result = (bin.getOp() == Op.DIV) ? x / k : x % k;
+            break;
+        default:
+            return;
+        }
+        if (fitsInt(result))
+            bb.replaceInst(bin, new Move(bb, bin.getDst(), new IntImm((int) result)));
+    }
+
+    private void lowerDivision(BasicBlock bb, Bin bin, long d) {
+        Register dst = bin.getDst();
+        long a = Math.abs(d);
+        List<Quad> insts = new ArrayList<>();
+
+        // the int is the low half of the register (a builtin's upper half
+        // may be 0, a sum may carry), sign-extend it as idiv does
+        VirtualRegister high = new VirtualRegister("div_high32");
+        VirtualRegister x = new VirtualRegister("div_x");
+        insts.add(new Bin(bb, high, Op.SH_L, bin.getLhs(), new IntImm(32)));
+        insts.add(new Bin(bb, x, Op.SH_R, high, new IntImm(32)));
+
+        // q = x / a
+        RegValue q = x;
+        if (a != 1 && isPowerOfTwo(a)) {
+            // negative x rounds toward zero by adding a - 1
+            VirtualRegister sign = new VirtualRegister("div_sign");
+            VirtualRegister bias = new VirtualRegister("div_bias");
+            VirtualRegister sum = new VirtualRegister("div_sum");
+            insts.add(new Bin(bb, sign, Op.SH_R, x, new IntImm(63)));
+            insts.add(new Bin(bb, bias, Op.BIT_AND, sign, new IntImm((int) (a - 1))));
+            insts.add(new Bin(bb, sum, Op.ADD, bias, x));
+            q = new VirtualRegister("div_q");
+            insts.add(new Bin(bb, q, Op.SH_R, sum, new IntImm(log2(a))));
+        } else if (a != 1) {
+            long[] magic = magic(a);
+            RegValue t = new VirtualRegister("div_high");
+            insts.add(new MulHigh(bb, t, x, magic[0]));
+            if (magic[0] < 0) {
+                VirtualRegister sum = new VirtualRegister("div_sum");
+                insts.add(new Bin(bb, sum, Op.ADD, t, x));
+                t = sum;
+            }
+            if (magic[1] > 0) {
+                VirtualRegister shifted = new VirtualRegister("div_shift");
+                insts.add(new Bin(bb, shifted, Op.SH_R, t, new IntImm((int) magic[1])));
+                t = shifted;
+            }
+            // negative x: q + 1
+            VirtualRegister sign = new VirtualRegister("div_sign");
+            insts.add(new Bin(bb, sign, Op.SH_R, x, new IntImm(63)));
+            q = new VirtualRegister("div_q");
+            insts.add(new Bin(bb, q, Op.SUB, t, sign));
+        }
+
+        if (bin.getOp() == Op.DIV) {
+            if (d < 0)
+                insts.add(new Uni(bb, dst, PrefixExprNode.Op.NEGA, q));
+            else if (q == x)
+                insts.add(new Move(bb, dst, x));
+            else
+                insts.get(insts.size() - 1).setDefinedRegister(dst);
+        } else if (a == 1) {
+            insts.add(new Move(bb, dst, new IntImm(0)));
+        } else { // x - q * a
+            VirtualRegister product = new VirtualRegister("mod_product");
+            insts.add(isPowerOfTwo(a) ? new Bin(bb, product, Op.SH_L, q, new IntImm(log2(a)))
+                    : new Bin(bb, product, Op.MUL, q, new IntImm((int) a)));
+            insts.add(new Bin(bb, dst, Op.SUB, x, product));
+        }
+
+        for (Quad inst : insts)
+            bb.addBefore(bin, inst);
+        bb.removeInst(bin);
+    }
+
+    /**
+     * {magic, shift} of signed 64-bit division by d, d > 2 and not a power
+     * of two, Hacker's Delight 10-1
+     */
+    static long[] magic(long d) {
+        BigInteger two63 = BigInteger.ONE.shiftLeft(63), ad = BigInteger.valueOf(d);
+        BigInteger anc = two63.subtract(BigInteger.ONE).subtract(two63.mod(ad));
+        BigInteger q1 = two63.divide(anc), r1 = two63.subtract(q1.multiply(anc));
+        BigInteger q2 = two63.divide(ad), r2 = two63.subtract(q2.multiply(ad));
+        BigInteger delta;
+        int p = 63;
+        do {
+            ++p;
+            q1 = q1.shiftLeft(1);
+            r1 = r1.shiftLeft(1);
+            if (r1.compareTo(anc) >= 0) {
+                q1 = q1.add(BigInteger.ONE);
+                r1 = r1.subtract(anc);
+            }
+            q2 = q2.shiftLeft(1);
+            r2 = r2.shiftLeft(1);
+            if (r2.compareTo(ad) >= 0) {
+                q2 = q2.add(BigInteger.ONE);
+                r2 = r2.subtract(ad);
+            }
+            delta = ad.subtract(r2);
+        } while (q1.compareTo(delta) < 0 || (q1.equals(delta) && r1.signum() == 0));
+
+        return new long[] { q2.add(BigInteger.ONE).longValue(), p - 64 };
+    }
+    // endregion
+
+    /** idiv, or shift by register: both need rbx (and rcx) */
+    private boolean hasDivShiftInst() {
+        for (Function func : root.getFunc().values())
+            for (BasicBlock bb : func.getReversePostOrder())
+                for (Quad inst : bb.getInsts()) {
+                    if (!(inst instanceof Bin) || inst instanceof Cmp)
+                        continue;
+                    Bin bin = (Bin) inst;
+                    if (bin.getOp() == Op.DIV || bin.getOp() == Op.MOD)
+                        return true;
+                    if ((bin.getOp() == Op.SH_L || bin.getOp() == Op.SH_R) && !(bin.getRhs() instanceof IntImm))
+                        return true;
+                }
+        return false;
+    }
+
+    private static boolean isPowerOfTwo(long k) {
+        return k > 0 && (k & (k - 1)) == 0;
+    }
+
+    private static int log2(long k) {
+        return 63 - Long.numberOfLeadingZeros(k);
+    }
+
+    private static boolean fitsInt(long value) {
+        return value == (int) value;
+    }
+}
@@ -0,0 +1,125 @@
+package mxcompiler.main.optim;
+
+import static mxcompiler.asm.x86_64RegisterSet.Arg_Num;
+
+import java.util.*;
+
+import mxcompiler.ir.*;
+import mxcompiler.ir.instruction.*;
+import mxcompiler.ir.register.*;
+import mxcompiler.main.Pass;
+import mxcompiler.main.PassManager.Analysis;
+
+
+/**
+ * tail calls: a call whose value is returned right after it
+ * <p>
+ * a self tail call becomes moves to the args and a jump to the body (the
+ * old start BB, a new start BB jumps to it), so the recursion is a loop for
+ * the later passes. Other tail calls with all args in registers are marked
+ * {@link Funcall#isTail()}, MemAndStack pops the frame before them
+ * <p>
+ * run before FuncallInline, so a function no longer recursive can be
+ * inlined, and again after it for the calls of inlined bodies
+ */
+public class TailCall implements Pass {
+    public final Root root;
+
+    public TailCall(Root root) {
+        this.root = root;
+    }
+
+    @Override
+    public EnumSet<Analysis> required() {
+        return EnumSet.of(Analysis.ORDER);
+    }
+
+    public void execute() {
+        for (Function func : root.getFunc().values()) {
+            BasicBlock body = null;
+            for (BasicBlock bb : func.getReversePostOrder()) {
+                Funcall call = tailCallOf(bb);
+                if (call == null)
+                    continue;
+
+                if (call.getFunc() != func) {
+                    if (call.getArgs().size() <= Arg_Num)
+                        call.setTail(true);
+                } else if (bb.getInsts().getLast() instanceof Jump // else the only return
+                        && call.getArgs().size() == func.argVregs.size()) {
+                    if (body == null)
+                        body = splitStart(func);
+                    eliminate(func, bb, call, body);
+                }
+            }
+        }
+    }
+
+    /**
+     * the call of bb whose value is returned (or func is void), only moves
+     * of the value and jumps are left after it (the ends of inlined bodies)
+     */
+    private Funcall tailCallOf(BasicBlock bb) {
+        Quad inst = bb.getInsts().getLast();
+        do {
+            inst = inst.getPrevInst();
+        } while (inst instanceof Move);
+        if (!(inst instanceof Funcall))
+            return null;
+        Funcall call = (Funcall) inst;
+
+        Set<RegValue> values = new HashSet<>();
+        if (call.getDst() != null)
+            values.add(call.getDst());
+        Set<BasicBlock> visited = new HashSet<>();
+        for (inst = call.getNextInst(); inst != null;) {
+            if (inst instanceof Move) {
+                Move move = (Move) inst;
+                if (!values.contains(move.getRhs()) || !(move.getDst() instanceof VirtualRegister))
+                    return null;
+                values.add(move.getDst());
+                inst = inst.getNextInst();
+            } else if (inst instanceof Jump && visited.add(((Jump) inst).getTarget())) {
+                inst = ((Jump) inst).getTarget().getInsts().getFirst();
+            } else if (inst instanceof Return) {
+                RegValue value = ((Return) inst).getReturnValue();
+                return (value == null || values.contains(value)) ? call : null;
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private BasicBlock splitStart(Function func) {
+        BasicBlock body = func.getStart();
+        BasicBlock start = new BasicBlock(func, func.getName() + "_tail_entry");
+        start.setJump(new Jump(start, body));
+        func.setStart(start);
+        return body;
+    }
+
+    /** args = call args (as parallel moves); jump body */
+    private void eliminate(Function func, BasicBlock bb, Funcall call, BasicBlock body) {
+        bb.delJump(bb.getInsts().getLast());
+        while (bb.getInsts().getLast() != call)
+            bb.removeInst(bb.getInsts().getLast());
+        bb.removeInst(call);
+
+        List<VirtualRegister> params = func.argVregs;
+        List<RegValue> args = new ArrayList<>(call.getArgs());
+        // an arg read after its param is written is saved first
+        for (int i = 0; i < args.size(); ++i) {
+            if (args.get(i) != params.get(i) && params.contains(args.get(i))) {
+                VirtualRegister tmp = new VirtualRegister("tail_arg");
+                bb.addLastInst(new Move(bb, tmp, args.get(i)));
+                args.set(i, tmp);
+            }
+        }
+        for (int i = 0; i < args.size(); ++i)
+            if (args.get(i) != params.get(i))
+                bb.addLastInst(new Move(bb, params.get(i), args.get(i)));
+
+        bb.setJump(new Jump(bb, body));
+    }
+}
@@ -55,5 +55,8 @@ public class Tool {
     public static final String STRING_LESS_KEY = STRING + DOMAIN + STRING_LESS;
     public static final String STRING_LESS_EQUAL_KEY = STRING + DOMAIN + STRING_LESS_EQUAL;
 
+    /** not callable in Mx, added by -fprofile-generate */
+    public static final String PROFILE_DUMP_KEY = "__profile_dump";
+
     // endregion
 }
\ No newline at end of file
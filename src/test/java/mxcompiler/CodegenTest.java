@@ -0,0 +1,180 @@
+package mxcompiler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mxcompiler.main.Compiler;
+
+/**
+ * regression programs of the code generator, run by nasm and gcc and by the
+ * IR interpreter, at -O0 and -O2
+ * <p>
+ * a case is NAME.mx with its stdout in NAME.ans, stdin in NAME.in if any. A
+ * first line {@code // flags: ...} adds compiler options; a bare
+ * -fprofile-use first runs the program built with -fprofile-generate. With
+ * NAME.err the program must exit non-zero with that message on stderr
+ * <p>
+ * programs of codegen_bench.py are cases too, on their small NAME.test.in
+ * and NAME.test.ans
+ * <p>
+ * run from the repo root (BuiltIn.asm is found from there), -Dmxc.nasm and
+ * -Dmxc.cc change the assembler and linker
+ */
+@RunWith(Parameterized.class)
+public class CodegenTest {
+    private static final String path = "src/test/cases/codegen/";
+    private static final String benchPath = "src/bench/programs/";
+    private static final File work = new File("target/codegen-test");
+    private static final long timeout = 60;
+
+    private final File src;
+    private final int level;
+    private final String name;
+    /** path of NAME.in, NAME.ans and NAME.err without the ext */
+    private final String base;
+
+    public CodegenTest(String name, int level) {
+        this.name = name;
+        this.level = level;
+        if (name.startsWith("bench-")) {
+            this.src = new File(benchPath + name.substring(6) + ".mx");
+            this.base = benchPath + name.substring(6) + ".test";
+        } else {
+            this.src = new File(path + name + ".mx");
+            this.base = path + name;
+        }
+    }
+
+    @Parameterized.Parameters(name = "{0} -O{1}")
+    public static Collection<Object[]> testcase() {
+        Collection<Object[]> cases = new ArrayList<>();
+        addCases(cases, path, "");
+        addCases(cases, benchPath, "bench-");
+        return cases;
+    }
+
+    private static void addCases(Collection<Object[]> cases, String dir, String prefix) {
+        File[] files = new File(dir).listFiles();
+        Arrays.sort(files);
+        for (File f : files) {
+            if (!f.isFile() || !f.getName().endsWith(".mx"))
+                continue;
+            String name = f.getName().substring(0, f.getName().length() - 3);
+            if (!prefix.isEmpty() && !new File(dir + name + ".test.ans").exists())
+                continue; // a benchmark without small input
+            cases.add(new Object[] { prefix + name, 0 });
+            cases.add(new Object[] { prefix + name, 2 });
+        }
+    }
+
+    @Test
+    public void testNative() throws Exception {
+        String base = new File(work, name + "-O" + level).getPath();
+        compile(flags(), base);
+        check(run(base));
+    }
+
+    @Test
+    public void testInterpret() throws Exception {
+        List<String> cmd = java();
+        cmd.addAll(Arrays.asList("--test", "--interpret", "-O" + level));
+        cmd.addAll(flags());
+        cmd.add(src.getPath());
+        check(run(cmd.toArray(new String[0])));
+    }
+
+    private void check(String[] result) throws IOException {
+        assertEquals(name + " -O" + level + " stdout", read(".ans"), result[0]);
+        String err = read(".err");
+        if (err == null) {
+            assertEquals(name + " -O" + level + " exit code: " + result[1], "0", result[2]);
+        } else {
+            assertNotEquals(name + " -O" + level + " should fail", "0", result[2]);
+            assertTrue(name + " -O" + level + " stderr: " + result[1], result[1].contains(err.trim()));
+        }
+    }
+
+    private List<String> flags() throws Exception {
+        List<String> flags = new ArrayList<>();
+        String first = Files.readAllLines(src.toPath()).get(0).trim();
+        if (!first.startsWith("// flags:"))
+            return flags;
+
+        String profile = new File(work, name + "-O" + level + ".prof").getPath();
+        for (String flag : first.substring("// flags:".length()).trim().split("\\s+")) {
+            if (flag.equals("-fprofile-generate")) {
+                flags.add(flag + "=" + profile);
+            } else if (flag.equals("-fprofile-use")) {
+                String base = new File(work, name + "-O" + level + "-gen").getPath();
+                compile(Arrays.asList("-fprofile-generate=" + profile), base);
+                check(run(base)); // the instrumented program is the same
+                flags.add(flag + "=" + profile);
+            } else {
+                flags.add(flag);
+            }
+        }
+        return flags;
+    }
+
+    /** asm of src by Compiler, then base (the program) */
+    private void compile(List<String> flags, String base) throws Exception {
+        List<String> cmd = java();
+        cmd.addAll(Arrays.asList("--test", "-o", base + ".asm", "-O" + level));
+        cmd.addAll(flags);
+        cmd.add(src.getPath());
+        String[] result = run(cmd.toArray(new String[0]));
+        assertEquals("compile " + name + ": " + result[1], "0", result[2]);
+
+        result = run(System.getProperty("mxc.nasm", "nasm"), "-felf64", "-o", base + ".o", base + ".asm");
+        assertEquals("nasm " + name + ": " + result[1], "0", result[2]);
+        result = run(System.getProperty("mxc.cc", "gcc"), "-no-pie", "-o", base, base + ".o");
+        assertEquals("link " + name + ": " + result[1], "0", result[2]);
+    }
+
+    private List<String> java() {
+        return new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(), "-Xss64m",
+                "-cp", System.getProperty("java.class.path"), Compiler.class.getName()));
+    }
+
+    /** cmd on NAME.in if exists, return {stdout, stderr, exit code} */
+    private String[] run(String... cmd) throws Exception {
+        work.mkdirs();
+        File in = new File(base + ".in");
+        ProcessBuilder builder = new ProcessBuilder(cmd);
+        builder.redirectInput(in.exists() ? in : new File("/dev/null"));
+        File out = new File(work, name + "-O" + level + ".out"), err = new File(work, name + "-O" + level + ".stderr");
+        builder.redirectOutput(out);
+        builder.redirectError(err);
+
+        Process process = builder.start();
+        if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new AssertionError(name + " -O" + level + ": time out: " + String.join(" ", cmd));
+        }
+        return new String[] { new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8),
+                new String(Files.readAllBytes(err.toPath()), StandardCharsets.UTF_8),
+                Integer.toString(process.exitValue()) };
+    }
+
+    /** content of NAME + ext of this case, null if not exists */
+    private String read(String ext) throws IOException {
+        File f = new File(base + ext);
+        return f.exists() ? new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8) : null;
+    }
+}
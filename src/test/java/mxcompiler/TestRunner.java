@@ -4,7 +4,7 @@ import org.junit.runner.JUnitCore;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 
-import mxcompiler.ir.src.LLIRInterpreter;
+import mxcompiler.main.Compiler;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -29,18 +29,14 @@ public class TestRunner {
 
         fileOut = new PrintStream(new FileOutputStream(opts.outputFile(), false));
 
-        LLIRTest();
+        IRTest();
     }
 
-    private static void LLIRTest() throws Exception, Error {
-        LLIRInterpreter test = new LLIRInterpreter(fileIn, false);
-        if (test.isReady()) {
-            test.run();
-
-            System.out.println(test.getExitcode());
-            System.out.println(test.exitException());
-        } else
-            throw new Error("something wrong");
+    /** run IR by mxcompiler.main.IRInterpreter, output to stdout */
+    private static void IRTest() throws Exception, Error {
+        Compiler c = new Compiler(Compiler.ProgName);
+        c.execute(new String[] { "--test", "--interpret", "-O" + opts.OptimizationLevel(),
+                opts.sourceFile().getPath() });
 
         fileOut.close();
     }